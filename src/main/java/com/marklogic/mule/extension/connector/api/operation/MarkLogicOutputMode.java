@@ -0,0 +1,29 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.api.operation;
+
+/**
+ * How the content of each retrieved document is returned.
+ * <ul>
+ *     <li>STRUCTURED, used by queryDocs and exportDocs, parses JSON into maps, lists and values and returns XML and
+ *     text as strings and binaries as bytes.</li>
+ *     <li>RAW, used by queryDocsRaw and exportDocsRaw, returns the unparsed content of every document as a Result
+ *     stream with the document's media type, leaving any parsing to the flow.</li>
+ * </ul>
+ */
+public enum MarkLogicOutputMode
+{
+    STRUCTURED,
+    RAW
+}
@@ -0,0 +1,32 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.api.operation;
+
+/**
+ * How queryDocs moves from one page of results to the next.
+ * <ul>
+ *     <li>OFFSET requests each page by its start offset, so the server resolves and skips every earlier result on
+ *     each page; results are returned in the order determined by the search.</li>
+ *     <li>URI_KEYSET uses a DMSDK QueryBatcher, which walks the URIs of each forest from the last one it retrieved,
+ *     at a consistent point-in-time snapshot, so each page costs the same no matter how deep the scan goes. Batches
+ *     from different forests are interleaved, so the order of the results is unspecified; it is neither relevance
+ *     order nor URI order. Pages are fetched one after another, so it can't be combined with a prefetch depth or
+ *     parallel page fetches.</li>
+ * </ul>
+ */
+public enum MarkLogicPagingStrategy
+{
+    OFFSET,
+    URI_KEYSET
+}
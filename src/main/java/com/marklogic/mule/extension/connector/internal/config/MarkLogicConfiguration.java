@@ -14,8 +14,10 @@
 package com.marklogic.mule.extension.connector.internal.config;
 
 import com.marklogic.client.document.ServerTransform;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicBackpressurePolicy;
 import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
 import com.marklogic.mule.extension.connector.internal.operation.MarkLogicOperations;
+import com.marklogic.mule.extension.connector.internal.operation.WriteRateLimiter;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.mule.runtime.extension.api.annotation.Operations;
 import org.mule.runtime.extension.api.annotation.connectivity.ConnectionProviders;
@@ -52,7 +54,7 @@ public class MarkLogicConfiguration
     private String configId;
 
     @Parameter
-    @Summary("The thread count passed to DMSDK, representing the number of parallel processing threads.")
+    @Summary("The thread count passed to DMSDK, representing the number of parallel processing threads. Imports share one pool of this many writer threads for each combination of temporal collection and transform, however much their metadata varies.")
     @Example("4")
     @Placement(tab = Placement.DEFAULT_TAB)
     private int threadCount;
@@ -76,7 +78,7 @@ public class MarkLogicConfiguration
     private String serverTransformParams;
 
     @Parameter
-    @Summary("The number of seconds before DMSDK automatically flushes the current batch if not yet filled to the specified batchSize configurable.")
+    @Summary("The number of seconds before DMSDK automatically flushes the current batch if not yet filled to the specified batchSize configurable. 0 means partial batches are not flushed on a timer, unless Linger Millis is set.")
     @Example("2")
     @Placement(tab = Placement.DEFAULT_TAB)
     private int secondsBeforeFlush;
@@ -87,6 +89,150 @@ public class MarkLogicConfiguration
     @Placement(tab = Placement.DEFAULT_TAB)
     private String jobName;
 
+    @DisplayName("In-Memory Document Threshold")
+    @Parameter
+    @Summary("Retrieved XML, text and binary documents larger than this many bytes are spooled to a temporary file and returned as a binary stream instead of a string or byte array; 0, the default, keeps every document in memory.")
+    @Optional(defaultValue = "0")
+    @Example("1048576")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int inMemoryDocumentThreshold;
+
+    @DisplayName("Maximum Insertion Batchers")
+    @Parameter
+    @Summary("The maximum number of insertion batchers kept per connection, one for each distinct combination of temporal collection and transform; the least recently used batcher is flushed and stopped when the limit is exceeded. 0 means no limit.")
+    @Optional(defaultValue = "64")
+    @Example("64")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int maxInsertionBatchers;
+
+    @DisplayName("Insertion Batcher Idle Timeout")
+    @Parameter
+    @Summary("The number of seconds an insertion batcher may go without receiving a document before it is flushed and stopped. 0 keeps idle batchers until the connection is closed.")
+    @Optional(defaultValue = "300")
+    @Example("300")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int insertionBatcherIdleTimeout;
+
+    @DisplayName("Maximum Concurrent Batches")
+    @Parameter
+    @Summary("The maximum number of batches written at once by all of a connection's insertion batchers together, however many distinct combinations of temporal collection and transform its imports use; inserts that would start another batch wait until one has been written. 0 means each batcher is only limited by Thread Count.")
+    @Optional(defaultValue = "0")
+    @Example("8")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int maxConcurrentBatches;
+
+    @DisplayName("Maximum In-Flight Documents")
+    @Parameter
+    @Summary("The maximum number of documents added to an insertion batcher but not yet written to MarkLogic; once reached, the Backpressure Policy decides what importDocs does. Documents are held in memory until they are written, so this also bounds the memory they take. 0 means no limit.")
+    @Optional(defaultValue = "0")
+    @Example("10000")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int maxInFlightDocuments;
+
+    @DisplayName("Backpressure Policy")
+    @Parameter
+    @Summary("Whether importDocs blocks, blocks up to the Backpressure Timeout, or fails immediately when the maximum number of in-flight documents is reached.")
+    @Optional(defaultValue = "BLOCK")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private MarkLogicBackpressurePolicy backpressurePolicy;
+
+    @DisplayName("Backpressure Timeout")
+    @Parameter
+    @Summary("The number of milliseconds importDocs waits for an in-flight document to be written before failing, when the Backpressure Policy is TIMEOUT.")
+    @Optional(defaultValue = "30000")
+    @Example("30000")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long backpressureTimeout;
+
+    @DisplayName("Max Batch Bytes")
+    @Parameter
+    @Summary("The maximum combined size in bytes of the documents in one batch; a batch is written as soon as adding another document would exceed it. 0 means batches are limited by Batch Size only.")
+    @Optional(defaultValue = "0")
+    @Example("10485760")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long maxBatchBytes;
+
+    @DisplayName("Linger Milliseconds")
+    @Parameter
+    @Summary("The number of milliseconds a partial batch may wait for more documents before it is written. 0 means partial batches are written every Seconds Before Flush.")
+    @Optional(defaultValue = "0")
+    @Example("250")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int lingerMillis;
+
+    @DisplayName("Max Batch Retries")
+    @Parameter
+    @Summary("The number of times a batch that failed because the server was unavailable, busy or timed out is retried, waiting on its writer thread between retries. Whatever this is set to, a batch the server rejects as a bad request is split to find the documents that can't be written.")
+    @Optional(defaultValue = "0")
+    @Example("5")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int maxBatchRetries;
+
+    @DisplayName("Batch Retry Backoff")
+    @Parameter
+    @Summary("The number of milliseconds before the first retry of a failed batch; the wait doubles with every retry, up to the Max Batch Retry Backoff.")
+    @Optional(defaultValue = "1000")
+    @Example("1000")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long batchRetryBackoff;
+
+    @DisplayName("Max Batch Retry Backoff")
+    @Parameter
+    @Summary("The maximum number of milliseconds between retries of a failed batch.")
+    @Optional(defaultValue = "30000")
+    @Example("30000")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long maxBatchRetryBackoff;
+
+    @DisplayName("Dead Letter Directory")
+    @Parameter
+    @Summary("A local directory where documents that could not be written are spooled, to be replayed with Replay Dead Letters.")
+    @Optional
+    @Example("/var/spool/marklogic-mule")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private String deadLetterDirectory;
+
+    @DisplayName("Adaptive Batching")
+    @Parameter
+    @Summary("Whether the batch size and the number of batches written at once are adjusted to the throughput MarkLogic sustains, between Min Batch Size and Batch Size, and between 1 and Thread Count.")
+    @Optional(defaultValue = "false")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private boolean adaptiveBatching;
+
+    @DisplayName("Min Batch Size")
+    @Parameter
+    @Summary("The smallest batch size chosen by Adaptive Batching.")
+    @Optional(defaultValue = "10")
+    @Example("10")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private int minBatchSize;
+
+    @DisplayName("Max Documents Per Second")
+    @Parameter
+    @Summary("The maximum number of documents per second written by all of this configuration's imports; 0 means not limited. Can be changed while running with Set Write Rate Limit.")
+    @Optional(defaultValue = "0")
+    @Example("1000")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long maxDocumentsPerSecond;
+
+    @DisplayName("Max Bytes Per Second")
+    @Parameter
+    @Summary("The maximum number of bytes per second written by all of this configuration's imports; 0 means not limited. Can be changed while running with Set Write Rate Limit.")
+    @Optional(defaultValue = "0")
+    @Example("10485760")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private long maxBytesPerSecond;
+
+    @DisplayName("Deduplicate URIs")
+    @Parameter
+    @Summary("Whether a document replaces a pending document with the same URI in its batch, rather than both being sent and MarkLogic rejecting the batch with a conflicting updates error. Only the last write of each URI in a batch is kept.")
+    @Optional(defaultValue = "false")
+    @Placement(tab = Placement.ADVANCED_TAB)
+    private boolean deduplicateUris;
+
+    // Shared by every batcher of this configuration, and created from the rates above when first needed
+    private volatile WriteRateLimiter writeRateLimiter;
+
     public String getConfigId()
     {
         return configId;
@@ -122,6 +268,113 @@ public class MarkLogicConfiguration
         return jobName;
     }
 
+    public int getInMemoryDocumentThreshold()
+    {
+        return inMemoryDocumentThreshold;
+    }
+
+    public int getMaxInsertionBatchers()
+    {
+        return maxInsertionBatchers;
+    }
+
+    public int getInsertionBatcherIdleTimeout()
+    {
+        return insertionBatcherIdleTimeout;
+    }
+
+    public int getMaxConcurrentBatches()
+    {
+        return maxConcurrentBatches;
+    }
+
+    public int getMaxInFlightDocuments()
+    {
+        return maxInFlightDocuments;
+    }
+
+    public MarkLogicBackpressurePolicy getBackpressurePolicy()
+    {
+        return backpressurePolicy;
+    }
+
+    public long getBackpressureTimeout()
+    {
+        return backpressureTimeout;
+    }
+
+    public long getMaxBatchBytes()
+    {
+        return maxBatchBytes;
+    }
+
+    public int getLingerMillis()
+    {
+        return lingerMillis;
+    }
+
+    public int getMaxBatchRetries()
+    {
+        return maxBatchRetries;
+    }
+
+    public long getBatchRetryBackoff()
+    {
+        return batchRetryBackoff;
+    }
+
+    public long getMaxBatchRetryBackoff()
+    {
+        return maxBatchRetryBackoff;
+    }
+
+    public String getDeadLetterDirectory()
+    {
+        return deadLetterDirectory;
+    }
+
+    public boolean isAdaptiveBatching()
+    {
+        return adaptiveBatching;
+    }
+
+    public int getMinBatchSize()
+    {
+        return minBatchSize;
+    }
+
+    public long getMaxDocumentsPerSecond()
+    {
+        return maxDocumentsPerSecond;
+    }
+
+    public long getMaxBytesPerSecond()
+    {
+        return maxBytesPerSecond;
+    }
+
+    public boolean isDeduplicateUris()
+    {
+        return deduplicateUris;
+    }
+
+    public WriteRateLimiter getWriteRateLimiter()
+    {
+        WriteRateLimiter limiter = writeRateLimiter;
+        if (limiter == null)
+        {
+            synchronized (this)
+            {
+                if (writeRateLimiter == null)
+                {
+                    writeRateLimiter = new WriteRateLimiter(maxDocumentsPerSecond, maxBytesPerSecond);
+                }
+                limiter = writeRateLimiter;
+            }
+        }
+        return limiter;
+    }
+
     public void setConfigId(String configId)
     {
         this.configId = configId;
@@ -157,6 +410,96 @@ public class MarkLogicConfiguration
         this.jobName = jobName;
     }
 
+    public void setInMemoryDocumentThreshold(int inMemoryDocumentThreshold)
+    {
+        this.inMemoryDocumentThreshold = inMemoryDocumentThreshold;
+    }
+
+    public void setMaxInsertionBatchers(int maxInsertionBatchers)
+    {
+        this.maxInsertionBatchers = maxInsertionBatchers;
+    }
+
+    public void setInsertionBatcherIdleTimeout(int insertionBatcherIdleTimeout)
+    {
+        this.insertionBatcherIdleTimeout = insertionBatcherIdleTimeout;
+    }
+
+    public void setMaxConcurrentBatches(int maxConcurrentBatches)
+    {
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    public void setMaxInFlightDocuments(int maxInFlightDocuments)
+    {
+        this.maxInFlightDocuments = maxInFlightDocuments;
+    }
+
+    public void setBackpressurePolicy(MarkLogicBackpressurePolicy backpressurePolicy)
+    {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public void setBackpressureTimeout(long backpressureTimeout)
+    {
+        this.backpressureTimeout = backpressureTimeout;
+    }
+
+    public void setMaxBatchBytes(long maxBatchBytes)
+    {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setLingerMillis(int lingerMillis)
+    {
+        this.lingerMillis = lingerMillis;
+    }
+
+    public void setMaxBatchRetries(int maxBatchRetries)
+    {
+        this.maxBatchRetries = maxBatchRetries;
+    }
+
+    public void setBatchRetryBackoff(long batchRetryBackoff)
+    {
+        this.batchRetryBackoff = batchRetryBackoff;
+    }
+
+    public void setMaxBatchRetryBackoff(long maxBatchRetryBackoff)
+    {
+        this.maxBatchRetryBackoff = maxBatchRetryBackoff;
+    }
+
+    public void setDeadLetterDirectory(String deadLetterDirectory)
+    {
+        this.deadLetterDirectory = deadLetterDirectory;
+    }
+
+    public void setAdaptiveBatching(boolean adaptiveBatching)
+    {
+        this.adaptiveBatching = adaptiveBatching;
+    }
+
+    public void setMinBatchSize(int minBatchSize)
+    {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public void setMaxDocumentsPerSecond(long maxDocumentsPerSecond)
+    {
+        this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(long maxBytesPerSecond)
+    {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void setDeduplicateUris(boolean deduplicateUris)
+    {
+        this.deduplicateUris = deduplicateUris;
+    }
+
     /**
      *
      * @param transformName
@@ -228,11 +571,33 @@ public class MarkLogicConfiguration
                 .append(serverTransform, that.serverTransform)
                 .append(serverTransformParams, that.serverTransformParams)
                 .append(jobName, that.jobName)
+                .append(inMemoryDocumentThreshold, that.inMemoryDocumentThreshold)
+                .append(maxInsertionBatchers, that.maxInsertionBatchers)
+                .append(insertionBatcherIdleTimeout, that.insertionBatcherIdleTimeout)
+                .append(maxConcurrentBatches, that.maxConcurrentBatches)
+                .append(maxInFlightDocuments, that.maxInFlightDocuments)
+                .append(backpressurePolicy, that.backpressurePolicy)
+                .append(backpressureTimeout, that.backpressureTimeout)
+                .append(maxBatchBytes, that.maxBatchBytes)
+                .append(lingerMillis, that.lingerMillis)
+                .append(maxBatchRetries, that.maxBatchRetries)
+                .append(batchRetryBackoff, that.batchRetryBackoff)
+                .append(maxBatchRetryBackoff, that.maxBatchRetryBackoff)
+                .append(deadLetterDirectory, that.deadLetterDirectory)
+                .append(adaptiveBatching, that.adaptiveBatching)
+                .append(minBatchSize, that.minBatchSize)
+                .append(maxDocumentsPerSecond, that.maxDocumentsPerSecond)
+                .append(maxBytesPerSecond, that.maxBytesPerSecond)
+                .append(deduplicateUris, that.deduplicateUris)
                 .isEquals();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(configId, threadCount, batchSize, serverTransform, serverTransformParams, secondsBeforeFlush, jobName);
+        return Objects.hash(configId, threadCount, batchSize, serverTransform, serverTransformParams, secondsBeforeFlush, jobName, inMemoryDocumentThreshold,
+            maxInsertionBatchers, insertionBatcherIdleTimeout, maxConcurrentBatches, maxInFlightDocuments, backpressurePolicy, backpressureTimeout,
+            maxBatchBytes, lingerMillis, maxBatchRetries, batchRetryBackoff, maxBatchRetryBackoff,
+            deadLetterDirectory, adaptiveBatching, minBatchSize, maxDocumentsPerSecond, maxBytesPerSecond,
+            deduplicateUris);
     }
 }
\ No newline at end of file
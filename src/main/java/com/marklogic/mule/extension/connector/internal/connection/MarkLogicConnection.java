@@ -15,6 +15,7 @@ package com.marklogic.mule.extension.connector.internal.connection;
 
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.DatabaseClientFactory;
+import com.marklogic.client.datamovement.WriteEvent;
 import com.marklogic.client.ext.DatabaseClientConfig;
 import com.marklogic.client.ext.DefaultConfiguredDatabaseClientFactory;
 import com.marklogic.client.ext.SecurityContextType;
@@ -25,6 +26,7 @@ import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfigura
 import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
 import com.marklogic.mule.extension.connector.internal.operation.InsertionBatcherContext;
 import com.marklogic.mule.extension.connector.internal.operation.MarkLogicConnectionInvalidationListener;
+import com.marklogic.mule.extension.connector.internal.operation.MarkLogicFlushScheduler;
 import com.marklogic.mule.extension.connector.internal.operation.MarkLogicInsertionBatcher;
 import org.mule.runtime.api.connection.ConnectionException;
 import org.mule.runtime.api.scheduler.SchedulerService;
@@ -42,17 +44,29 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 public final class MarkLogicConnection
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicConnection.class);
 
+    // How often idle batchers are looked for and evicted
+    private static final long EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
     private DatabaseClient client;
     private final String hostname;
     private final int port;
@@ -63,21 +77,57 @@ public final class MarkLogicConnection
     private final MarkLogicConnectionType marklogicConnectionType;
     private final String kerberosExternalName;
     private final String connectionId;
-    private Set<MarkLogicConnectionInvalidationListener> markLogicClientInvalidationListeners = new HashSet<>();
-    private final HashMap<Integer, MarkLogicInsertionBatcher> insertionBatchers;
-    private final ReentrantLock insertionBatchersLock;
+    // Batchers add and remove themselves concurrently as they are created and evicted
+    private Set<MarkLogicConnectionInvalidationListener> markLogicClientInvalidationListeners = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<InsertionBatcherContext, MarkLogicInsertionBatcher> insertionBatchers;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong nextEvictionNanos = new AtomicLong(System.nanoTime());
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    // The configuration of the most recent insert, whose limits the scheduled eviction applies
+    private volatile MarkLogicConfiguration evictionConfiguration;
     private final SchedulerService schedulerService;
+    // Created with the first insertion batcher, so that a connection that only queries doesn't take an I/O scheduler.
+    // Stays null when there is no Mule scheduler, in which case partial batches are only written when a batcher is
+    // released.
+    private volatile MarkLogicFlushScheduler flushScheduler;
+    // Guarded by this; keeps a scheduler from being created once the connection is invalidated
+    private boolean flushSchedulerShutdown;
+    // One permit per batch that any of the connection's batchers may be writing; created with the first batcher that
+    // asks for it, and null when the configuration doesn't limit the batches written at once
+    private Semaphore batchPermits;
+    private boolean batchPermitsInitialized;
     private final MarkLogicConnectionProvider connectionProvider;
+    private final BiFunction<InsertionBatcherContext, MarkLogicFlushScheduler, MarkLogicInsertionBatcher> batcherFactory;
 
     public MarkLogicConnection(MarkLogicConnectionProvider provider) {
         this(provider, null);
     }
 
     public MarkLogicConnection(MarkLogicConnectionProvider provider, SchedulerService schedulerService) {
+        this(provider, schedulerService, null);
+    }
+
+    /**
+     * @param flushScheduler flushes the connection's batchers; when null, one is created from the scheduler service
+     *                       along with the first insertion batcher
+     */
+    public MarkLogicConnection(MarkLogicConnectionProvider provider, SchedulerService schedulerService,
+                               MarkLogicFlushScheduler flushScheduler) {
+        this(provider, schedulerService, flushScheduler, MarkLogicInsertionBatcher::new);
+    }
+
+    /**
+     * @param batcherFactory creates the batcher for a context, along with its DMSDK job; tests use it to provide
+     *                       batchers that don't connect
+     */
+    public MarkLogicConnection(MarkLogicConnectionProvider provider, SchedulerService schedulerService,
+                               MarkLogicFlushScheduler flushScheduler,
+                               BiFunction<InsertionBatcherContext, MarkLogicFlushScheduler, MarkLogicInsertionBatcher> batcherFactory) {
+        this.batcherFactory = batcherFactory;
         this.connectionProvider = provider;
         this.schedulerService = schedulerService;
-        this.insertionBatchers = new HashMap<>();
-        this.insertionBatchersLock = new ReentrantLock(true);
+        this.flushScheduler = flushScheduler;
+        this.insertionBatchers = new ConcurrentHashMap<>();
 
         this.hostname = provider.getHostname();
         this.port = provider.getPort();
@@ -111,11 +161,28 @@ public final class MarkLogicConnection
         return this.connectionId;
     }
 
+    public SchedulerService getSchedulerService()
+    {
+        return this.schedulerService;
+    }
+
     public void invalidate()
     {
         markLogicClientInvalidationListeners.forEach(MarkLogicConnectionInvalidationListener::markLogicConnectionInvalidated);
         releaseInsertionBatchers();
-        client.release();
+        handOffUnwrittenDocuments();
+        MarkLogicFlushScheduler scheduler;
+        synchronized (this) {
+            flushSchedulerShutdown = true;
+            scheduler = flushScheduler;
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        // Null when the connection was never connected
+        if (client != null) {
+            client.release();
+        }
         LOGGER.info("MarkLogic connection invalidated.");
     }
     
@@ -254,47 +321,189 @@ public final class MarkLogicConnection
         return KeyStore.getInstance(trustStoreType);
     }
 	
-	public MarkLogicInsertionBatcher getInsertionBatcher(MarkLogicConfiguration config, String outputCollections, String outputPermissions,
-                                                         int outputQuality, String temporalCollection,
+    /**
+     * Returns the batcher for the given configuration, temporal collection and transform, creating it if needed.
+     * Metadata is given per document, so it is not part of the key. The batcher is leased to the caller, which must
+     * call {@link MarkLogicInsertionBatcher#returnLease()} once it has added its document, so that the batcher cannot
+     * be evicted in the meantime.
+     */
+    public MarkLogicInsertionBatcher getInsertionBatcher(MarkLogicConfiguration config, String temporalCollection,
                                                          String serverTransform, String serverTransformParams) {
         InsertionBatcherContext context = new InsertionBatcherContext();
         context.setConfiguration(config);
         context.setConnection(this);
-        context.setOutputCollections(outputCollections);
-        context.setOutputPermissions(outputPermissions);
-        context.setOutputQuality(outputQuality);
         context.setJobName(config.getJobName());
         context.setTemporalCollection(temporalCollection);
         context.setServerTransform(serverTransform);
         context.setServerTransformParams(serverTransformParams);
-        final int signature = context.computeSignature();
 
-        insertionBatchersLock.lock();
-        try {
-            MarkLogicInsertionBatcher insertionBatcher = insertionBatchers.getOrDefault(signature, null);
+        evictionConfiguration = config;
+        // Nearly every call finds an existing batcher, so the map is read without a lock. Keying on the full context
+        // means two contexts with the same hash can never share a batcher.
+        while (true) {
+            MarkLogicInsertionBatcher insertionBatcher = insertionBatchers.get(context);
+            boolean created = false;
             if (insertionBatcher == null) {
-                insertionBatcher = new MarkLogicInsertionBatcher(context, schedulerService);
-                insertionBatchers.put(insertionBatcher.getSignature(), insertionBatcher);
-                if (insertionBatcher.getSignature() != signature) {
-                    LOGGER.warn("Computed batcher signature {} different than generated by instance {}", signature, insertionBatcher.getSignature());
+                // Creating a batcher starts a DMSDK job, so it is done outside the map's bin lock, which computeIfAbsent
+                // would hold meanwhile against every other context in the bin. Of two inserts racing to create the same
+                // batcher, the one that publishes first wins, and the other releases its own.
+                MarkLogicInsertionBatcher newBatcher = batcherFactory.apply(context, getFlushScheduler());
+                insertionBatcher = insertionBatchers.putIfAbsent(context, newBatcher);
+                if (insertionBatcher == null) {
+                    insertionBatcher = newBatcher;
+                    created = true;
+                } else {
+                    discardInsertionBatcher(newBatcher);
+                }
+            }
+            if (insertionBatcher.tryLease()) {
+                if (created) {
+                    scheduleEviction();
+                }
+                // Without a scheduler, batchers can only be evicted by the inserts themselves
+                if (flushScheduler == null && (created || isEvictionDue())) {
+                    evictInsertionBatchers(config);
+                }
+                return insertionBatcher;
+            }
+            // The batcher was retired for eviction after it was looked up; make sure it is gone and create a new one
+            insertionBatchers.remove(context, insertionBatcher);
+        }
+    }
+
+    /**
+     * @return a snapshot of the connection's insertion batchers, keyed by the context each was created for
+     */
+    public Map<InsertionBatcherContext, MarkLogicInsertionBatcher> getInsertionBatchers() {
+        return new HashMap<>(insertionBatchers);
+    }
+
+    /**
+     * Returns the permits that every batcher on this connection takes before writing a batch, so that the number of
+     * batches written at once stays within the configured maximum however many batchers there are.
+     *
+     * @return null when the configuration doesn't limit the number of batches written at once
+     */
+    public synchronized Semaphore getBatchPermits(MarkLogicConfiguration config) {
+        if (!batchPermitsInitialized) {
+            batchPermitsInitialized = true;
+            if (config.getMaxConcurrentBatches() > 0) {
+                // Fair, so that a batcher filling its batches slowly isn't starved by busier ones
+                batchPermits = new Semaphore(config.getMaxConcurrentBatches(), true);
+            }
+        }
+        return batchPermits;
+    }
+
+    private MarkLogicFlushScheduler getFlushScheduler() {
+        MarkLogicFlushScheduler scheduler = flushScheduler;
+        if (scheduler == null && schedulerService != null) {
+            synchronized (this) {
+                if (flushScheduler == null && !flushSchedulerShutdown) {
+                    flushScheduler = new MarkLogicFlushScheduler(schedulerService.ioScheduler());
+                }
+                scheduler = flushScheduler;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Evicts batchers from the flush scheduler rather than from inserts, so that batchers on a connection that has
+     * stopped importing are still evicted, and no insert waits for an evicted batcher to be flushed.
+     */
+    private void scheduleEviction() {
+        MarkLogicFlushScheduler scheduler = flushScheduler;
+        if (scheduler != null && evictionScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> evictInsertionBatchers(evictionConfiguration),
+                TimeUnit.NANOSECONDS.toMillis(EVICTION_INTERVAL_NANOS));
+        }
+    }
+
+    private boolean isEvictionDue() {
+        long next = nextEvictionNanos.get();
+        return System.nanoTime() - next >= 0 && nextEvictionNanos.compareAndSet(next, System.nanoTime() + EVICTION_INTERVAL_NANOS);
+    }
+
+    /**
+     * Flushes and stops batchers that have been idle for longer than the configured timeout, and then the least
+     * recently used batchers until no more than the configured maximum remain. Batchers with an insert in progress are
+     * skipped, so the maximum can be exceeded briefly while they are busy, or until the next scheduled eviction.
+     */
+    private void evictInsertionBatchers(MarkLogicConfiguration config) {
+        if (!evictionLock.tryLock()) {
+            // Another thread is already evicting
+            return;
+        }
+        try {
+            List<Map.Entry<InsertionBatcherContext, MarkLogicInsertionBatcher>> entries = new ArrayList<>(insertionBatchers.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().getLastUsedNanos()));
+
+            long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getInsertionBatcherIdleTimeout());
+            int excess = config.getMaxInsertionBatchers() > 0 ? entries.size() - config.getMaxInsertionBatchers() : 0;
+            long now = System.nanoTime();
+            for (Map.Entry<InsertionBatcherContext, MarkLogicInsertionBatcher> entry : entries) {
+                boolean idle = idleTimeoutNanos > 0 && now - entry.getValue().getLastUsedNanos() > idleTimeoutNanos;
+                if (!idle && excess <= 0) {
+                    // Entries are ordered from least to most recently used, so none of the rest are idle either
+                    break;
+                }
+                if (evictInsertionBatcher(entry.getKey(), entry.getValue())) {
+                    excess--;
                 }
             }
-            return insertionBatcher;
         }
         finally {
-            insertionBatchersLock.unlock();
+            evictionLock.unlock();
         }
     }
 
+    private boolean evictInsertionBatcher(InsertionBatcherContext context, MarkLogicInsertionBatcher insertionBatcher) {
+        if (!insertionBatcher.tryRetire()) {
+            return false;
+        }
+        insertionBatchers.remove(context, insertionBatcher);
+        removeMarkLogicClientInvalidationListener(insertionBatcher);
+        LOGGER.info("Evicting insertion batcher with signature {} on connection ID {}", insertionBatcher.getSignature(), getId());
+        insertionBatcher.release();
+        return true;
+    }
+
+    private void discardInsertionBatcher(MarkLogicInsertionBatcher insertionBatcher) {
+        removeMarkLogicClientInvalidationListener(insertionBatcher);
+        insertionBatcher.release();
+    }
+
     private void releaseInsertionBatchers() {
-        insertionBatchersLock.lock();
-        try {
-            for (MarkLogicInsertionBatcher insertionBatcher : insertionBatchers.values()) {
-                insertionBatcher.release();
+        for (MarkLogicInsertionBatcher insertionBatcher : insertionBatchers.values()) {
+            insertionBatcher.release();
+        }
+    }
+
+    // Documents that were accepted but could not be written are given to the provider, which gives them to the next
+    // connection it creates
+    private void handOffUnwrittenDocuments() {
+        for (Map.Entry<InsertionBatcherContext, MarkLogicInsertionBatcher> entry : insertionBatchers.entrySet()) {
+            List<WriteEvent> documents = entry.getValue().drainUnwrittenDocuments();
+            if (!documents.isEmpty()) {
+                LOGGER.warn("Handing {} unwritten documents on connection ID {} to the next connection", documents.size(), getId());
+                connectionProvider.handOff(entry.getKey(), documents);
             }
         }
+    }
+
+    /**
+     * Adds documents that an invalidated connection could not write to this connection's batcher for the same
+     * configuration, temporal collection and transform, as {@link MarkLogicInsertionBatcher#resubmit(List)} does.
+     */
+    public void resubmit(InsertionBatcherContext context, List<WriteEvent> documents) {
+        MarkLogicInsertionBatcher insertionBatcher = getInsertionBatcher(context.getConfiguration(),
+            context.getTemporalCollection(), context.getServerTransform(), context.getServerTransformParams());
+        try {
+            insertionBatcher.resubmit(documents);
+        }
         finally {
-            insertionBatchersLock.unlock();
+            insertionBatcher.returnLease();
         }
     }
 }
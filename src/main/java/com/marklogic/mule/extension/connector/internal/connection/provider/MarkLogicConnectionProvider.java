@@ -13,9 +13,11 @@
  */
 package com.marklogic.mule.extension.connector.internal.connection.provider;
 
+import com.marklogic.client.datamovement.WriteEvent;
 import com.marklogic.mule.extension.connector.api.connection.AuthenticationType;
 import com.marklogic.mule.extension.connector.api.connection.MarkLogicConnectionType;
 import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.operation.InsertionBatcherContext;
 import org.mule.runtime.api.connection.CachedConnectionProvider;
 import org.mule.runtime.api.connection.ConnectionException;
 import org.mule.runtime.api.connection.ConnectionProvider;
@@ -36,6 +38,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class (as it's name implies) provides connection instances and the
@@ -126,6 +132,9 @@ public class MarkLogicConnectionProvider implements CachedConnectionProvider<Mar
     @Inject
     private SchedulerService schedulerService;
 
+    // Documents that an invalidated connection accepted but could not write, for the next connection to write
+    private final Map<InsertionBatcherContext, List<WriteEvent>> handedOffDocuments = new ConcurrentHashMap<>();
+
     @Override
     public void initialise() throws InitialisationException {
         if (tlsContextFactory instanceof Initialisable) {
@@ -138,9 +147,63 @@ public class MarkLogicConnectionProvider implements CachedConnectionProvider<Mar
         MarkLogicConnection conn = new MarkLogicConnection(this, this.schedulerService);
         LOGGER.info("MarkLogicConnectionProvider connect() called");
         conn.connect();
+        resubmitHandedOffDocuments(conn);
         return conn;
     }
 
+    /**
+     * Adds the documents handed off by invalidated connections to the new one. Documents that can't be added are
+     * spooled when a dead letter directory is configured; otherwise they are kept for the next connection, and the
+     * new one is invalidated and the failure thrown, so that Mule reconnects rather than losing them.
+     */
+    void resubmitHandedOffDocuments(MarkLogicConnection conn) throws ConnectionException
+    {
+        RuntimeException failure = null;
+        for (InsertionBatcherContext context : new ArrayList<>(handedOffDocuments.keySet()))
+        {
+            List<WriteEvent> documents = handedOffDocuments.remove(context);
+            if (documents == null)
+            {
+                continue;
+            }
+            LOGGER.info("Resubmitting {} documents handed off by connection ID {}", documents.size(), context.getConnection().getId());
+            try
+            {
+                conn.resubmit(context, documents);
+            }
+            catch (RuntimeException ex)
+            {
+                // Only the documents that were not added are left in the list
+                handOff(context, documents);
+                if (failure == null)
+                {
+                    failure = ex;
+                }
+                else
+                {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (failure != null)
+        {
+            conn.invalidate();
+            throw new ConnectionException("Unable to resubmit the documents handed off by an invalidated connection", failure);
+        }
+    }
+
+    /**
+     * Keeps documents that an invalidated connection could not write, so that the next connection can write them.
+     */
+    public void handOff(InsertionBatcherContext context, List<WriteEvent> documents)
+    {
+        handedOffDocuments.merge(context, documents, (existing, added) -> {
+            List<WriteEvent> merged = new ArrayList<>(existing);
+            merged.addAll(added);
+            return merged;
+        });
+    }
+
     @Override
     public void disconnect(MarkLogicConnection connection)
     {
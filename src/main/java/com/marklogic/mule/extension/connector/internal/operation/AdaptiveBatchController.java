@@ -0,0 +1,277 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses the batch size and the number of batches written at once for an insertion batcher, within the configured
+ * bounds, by measuring throughput. While throughput holds up, both are increased additively; when it drops, or a batch
+ * fails, both are halved. This tracks the highest throughput the cluster sustains as document sizes and load change.
+ * <p>
+ * The WriteBatcher's own batch size and thread count can't change once its job has started, so they are the upper
+ * bounds; smaller batches are made by flushing early, and fewer batches are written at once by holding back the
+ * documents that would start another one.
+ * <p>
+ * Throughput is measured over the time at least one batch was being written, so that a pause in the documents
+ * arriving isn't mistaken for the cluster slowing down.
+ */
+class AdaptiveBatchController
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchController.class);
+
+    // A window whose throughput is within this fraction of the best seen so far still counts as holding up
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+
+    private final int minBatchSize;
+
+    private final int maxBatchSize;
+
+    private final int maxConcurrency;
+
+    private final int batchSizeIncrement;
+
+    private final LongSupplier clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition slotFreed = lock.newCondition();
+
+    private volatile int batchSize;
+
+    private volatile int concurrency;
+
+    private int inFlightBatches;
+
+    private int windowBatches;
+
+    private long windowDocuments;
+
+    // Time in the window during which at least one batch was being written, not counting the current stretch
+    private long windowBusyNanos;
+
+    // When the current stretch of writing started, while a batch is in flight
+    private long busySinceNanos;
+
+    private boolean windowFailed;
+
+    private double bestThroughput;
+
+    private volatile double throughput;
+
+    private volatile long lastLatencyMillis;
+
+    AdaptiveBatchController(int minBatchSize, int maxBatchSize, int maxConcurrency)
+    {
+        this(minBatchSize, maxBatchSize, maxConcurrency, System::nanoTime);
+    }
+
+    AdaptiveBatchController(int minBatchSize, int maxBatchSize, int maxConcurrency, LongSupplier clock)
+    {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.minBatchSize = Math.max(1, Math.min(minBatchSize, this.maxBatchSize));
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.batchSizeIncrement = Math.max(1, this.maxBatchSize / 10);
+        this.clock = clock;
+        // Start small and grow, rather than overwhelm a cluster that can't take the maximum
+        this.batchSize = this.minBatchSize;
+        this.concurrency = 1;
+    }
+
+    int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    /**
+     * @return documents per second written during the last complete measurement window
+     */
+    double getThroughput()
+    {
+        return throughput;
+    }
+
+    long getLastLatencyMillis()
+    {
+        return lastLatencyMillis;
+    }
+
+    /**
+     * Waits until another batch may be written.
+     */
+    void awaitSlot() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (inFlightBatches >= concurrency)
+            {
+                slotFreed.await();
+            }
+            takeSlot();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claims a slot for another batch if one is free, without waiting.
+     */
+    boolean tryAcquireSlot()
+    {
+        lock.lock();
+        try
+        {
+            if (inFlightBatches >= concurrency)
+            {
+                return false;
+            }
+            takeSlot();
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot that was claimed for a batch that was not written after all.
+     */
+    void releaseSlot()
+    {
+        lock.lock();
+        try
+        {
+            if (inFlightBatches > 0)
+            {
+                giveBackSlot(clock.getAsLong());
+            }
+            slotFreed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Must be called with the lock held
+    private void takeSlot()
+    {
+        if (inFlightBatches == 0)
+        {
+            busySinceNanos = clock.getAsLong();
+        }
+        inFlightBatches++;
+    }
+
+    // Must be called with the lock held
+    private void giveBackSlot(long now)
+    {
+        inFlightBatches--;
+        if (inFlightBatches == 0)
+        {
+            windowBusyNanos += now - busySinceNanos;
+        }
+    }
+
+    /**
+     * Records a written or failed batch, frees its slot, and adjusts the batch size and concurrency once enough
+     * batches have been written to measure throughput.
+     */
+    void batchCompleted(int documents, long latencyMillis, boolean success)
+    {
+        lock.lock();
+        try
+        {
+            long now = clock.getAsLong();
+            if (inFlightBatches > 0)
+            {
+                giveBackSlot(now);
+            }
+            else
+            {
+                // Batches written while the batcher is released were never given a slot, so their own latency is
+                // the only measure of the time they took
+                windowBusyNanos += TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            }
+            slotFreed.signalAll();
+            lastLatencyMillis = latencyMillis;
+            windowBatches++;
+            windowDocuments += documents;
+            windowFailed |= !success;
+
+            long busy = windowBusyNanos + (inFlightBatches > 0 ? now - busySinceNanos : 0);
+            if (windowFailed || (windowBatches >= concurrency && busy > 0))
+            {
+                adjust(busy > 0 ? windowDocuments * (double) TimeUnit.SECONDS.toNanos(1) / busy : 0);
+                windowBatches = 0;
+                windowDocuments = 0;
+                windowFailed = false;
+                windowBusyNanos = 0;
+                if (inFlightBatches > 0)
+                {
+                    // The batches still in flight count towards the next window from here
+                    busySinceNanos = now;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(double windowThroughput)
+    {
+        int oldBatchSize = batchSize;
+        int oldConcurrency = concurrency;
+        if (!windowFailed && windowThroughput >= bestThroughput * THROUGHPUT_TOLERANCE)
+        {
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement);
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+            bestThroughput = Math.max(bestThroughput, windowThroughput);
+        }
+        else
+        {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            concurrency = Math.max(1, concurrency / 2);
+            // Measure against what the cluster manages now, so that the sizes can grow again from here
+            bestThroughput = windowThroughput;
+        }
+        throughput = windowThroughput;
+        if (batchSize != oldBatchSize || concurrency != oldConcurrency)
+        {
+            LOGGER.info("Adaptive batching: batch size {} -> {}, concurrency {} -> {} at {} documents per second",
+                oldBatchSize, batchSize, oldConcurrency, concurrency, Math.round(windowThroughput));
+            if (concurrency > oldConcurrency)
+            {
+                slotFreed.signalAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An append-only store for documents that could not be written, so that they can be replayed once MarkLogic is
+ * available again. Documents are appended to a segment file through a file channel, with their content written from
+ * the buffer it is already held in. A segment is renamed to end with {@value #SEGMENT_SUFFIX} once it is full, once
+ * the documents of a failed batch have been appended, or when the spool is closed; only those segments are replayed,
+ * so a segment is never read while it is being written.
+ * <p>
+ * A segment being written is locked by its spool. A segment left open by a spool that is gone, such as after a crash,
+ * is no longer locked, and is completed when the segments are next listed; a record it was cut short in is skipped.
+ * <p>
+ * A completed segment is replayed by claiming it, which locks it and renames it to end with
+ * {@value #CLAIMED_SEGMENT_SUFFIX}, so that concurrent replays never read the same segment. A claimed segment is
+ * deleted once its documents have been written, or given back with only the records after the last confirmed one; one
+ * left claimed by a replay that is gone is given back whole when the segments are next listed. Replay is therefore
+ * at-least-once: documents read after the last confirmation may be written again.
+ */
+class DeadLetterSpool implements Closeable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterSpool.class);
+
+    static final String SEGMENT_SUFFIX = ".dls";
+
+    private static final String OPEN_SEGMENT_SUFFIX = ".dls.open";
+
+    static final String CLAIMED_SEGMENT_SUFFIX = ".dls.replaying";
+
+    // Not matched by any listing, so that a remainder cut short by a crash is never read; the claimed segment it was
+    // copied from is replayed whole instead
+    private static final String REMAINDER_SUFFIX = ".dls.remainder";
+
+    // Marks the start of every record, so that a truncated segment is detected rather than misread
+    private static final int RECORD_MAGIC = 0x4D4C444C;
+
+    private static final int FIELD_COUNT = 8;
+
+    private static final int HEADER_LENGTH = Integer.BYTES * (FIELD_COUNT + 1);
+
+    private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    // Keeps segment names unique when spools with the same prefix open segments in the same millisecond
+    private static final AtomicLong SEGMENT_SEQUENCE = new AtomicLong();
+
+    /**
+     * A document that could not be written, along with the batcher settings needed to write it again.
+     */
+    static class DeadLetter
+    {
+        final String uri;
+        final String format;
+        final String mimetype;
+        final String temporalCollection;
+        final String serverTransform;
+        final String serverTransformParams;
+        final byte[] metadata;
+        final byte[] content;
+
+        // sonarqube flags this because of the number of args, one per field of the record
+        @SuppressWarnings("java:S107")
+        DeadLetter(String uri, String format, String mimetype, String temporalCollection, String serverTransform,
+                   String serverTransformParams, byte[] metadata, byte[] content)
+        {
+            this.uri = uri;
+            this.format = format;
+            this.mimetype = mimetype;
+            this.temporalCollection = temporalCollection;
+            this.serverTransform = serverTransform;
+            this.serverTransformParams = serverTransformParams;
+            this.metadata = metadata;
+            this.content = content;
+        }
+    }
+
+    private final Path directory;
+
+    private final String prefix;
+
+    // Reused for every record, so that only the fields themselves are buffers of their own
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+
+    private FileChannel channel;
+
+    private Path segment;
+
+    DeadLetterSpool(Path directory, String prefix)
+    {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    synchronized void append(DeadLetter letter)
+    {
+        ByteBuffer[] fields = {
+            encode(letter.uri), encode(letter.format), encode(letter.mimetype), encode(letter.temporalCollection),
+            encode(letter.serverTransform), encode(letter.serverTransformParams), wrap(letter.metadata),
+            wrap(letter.content)
+        };
+        header.clear();
+        header.putInt(RECORD_MAGIC);
+        long recordLength = HEADER_LENGTH;
+        for (ByteBuffer field : fields)
+        {
+            header.putInt(field != null ? field.remaining() : -1);
+            recordLength += field != null ? field.remaining() : 0;
+        }
+        header.flip();
+
+        ByteBuffer[] record = new ByteBuffer[FIELD_COUNT + 1];
+        record[0] = header;
+        for (int i = 0; i < FIELD_COUNT; i++)
+        {
+            record[i + 1] = fields[i] != null ? fields[i] : ByteBuffer.allocate(0);
+        }
+        try
+        {
+            FileChannel out = openSegment();
+            long written = 0;
+            while (written < recordLength)
+            {
+                written += out.write(record);
+            }
+            if (out.size() >= MAX_SEGMENT_BYTES)
+            {
+                closeSegment();
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new MarkLogicConnectorException(String.format("Unable to spool document %s to %s", letter.uri, directory), ex);
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk and completes the segment, so that it survives a crash and can be
+     * replayed straight away; the next document starts a new segment.
+     */
+    synchronized void roll()
+    {
+        try
+        {
+            closeSegment();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.error(String.format("Unable to complete dead letter segment %s", segment), ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        roll();
+    }
+
+    private FileChannel openSegment() throws IOException
+    {
+        if (channel == null)
+        {
+            Files.createDirectories(directory);
+            segment = directory.resolve(String.format("%s-%d-%d%s", prefix, System.currentTimeMillis(),
+                SEGMENT_SEQUENCE.incrementAndGet(), OPEN_SEGMENT_SUFFIX));
+            channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            // Held until the segment is closed, so that it isn't taken for one left open by a spool that is gone
+            channel.lock();
+            LOGGER.warn("Spooling documents that could not be written to {}", segment);
+        }
+        return channel;
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        try
+        {
+            channel.force(false);
+            channel.close();
+        }
+        finally
+        {
+            channel = null;
+        }
+        complete(segment);
+        segment = null;
+    }
+
+    private static void complete(Path openSegment) throws IOException
+    {
+        Files.move(openSegment, withSuffix(openSegment, OPEN_SEGMENT_SUFFIX, SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path withSuffix(Path segment, String suffix, String newSuffix)
+    {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - suffix.length()) + newSuffix);
+    }
+
+    private static ByteBuffer encode(String value)
+    {
+        return value != null ? ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)) : null;
+    }
+
+    private static ByteBuffer wrap(byte[] value)
+    {
+        return value != null ? ByteBuffer.wrap(value) : null;
+    }
+
+    /**
+     * Returns the segments that are no longer being written, oldest first, after completing any left open by a spool
+     * that is gone.
+     */
+    static List<Path> completedSegments(Path directory)
+    {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+        {
+            return segments;
+        }
+        recoverOrphanedSegments(directory, OPEN_SEGMENT_SUFFIX);
+        recoverOrphanedSegments(directory, CLAIMED_SEGMENT_SUFFIX);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX))
+        {
+            stream.forEach(segments::add);
+        }
+        catch (IOException ex)
+        {
+            throw new MarkLogicConnectorException(String.format("Unable to list dead letter segments in %s", directory), ex);
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        return segments;
+    }
+
+    // Segments left open by a spool, or claimed by a replay, that is gone are completed; a claimed one is replayed whole
+    private static void recoverOrphanedSegments(Path directory, String suffix)
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix))
+        {
+            for (Path orphanCandidate : stream)
+            {
+                try
+                {
+                    if (isOrphaned(orphanCandidate))
+                    {
+                        LOGGER.warn("Completing dead letter segment {}, which was left by a spool or replay that is gone", orphanCandidate);
+                        Files.move(orphanCandidate, withSuffix(orphanCandidate, suffix, SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                catch (NoSuchFileException ex)
+                {
+                    // Completed by its spool or replay, or recovered by another replay, since the directory was listed
+                    LOGGER.debug("Dead letter segment {} has already been completed", orphanCandidate);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new MarkLogicConnectorException(String.format("Unable to recover dead letter segments in %s", directory), ex);
+        }
+    }
+
+    // A segment's lock is released when its spool closes it, or when the process that held it exits
+    private static boolean isOrphaned(Path openSegment) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(openSegment, StandardOpenOption.WRITE))
+        {
+            FileLock lock = channel.tryLock();
+            if (lock == null)
+            {
+                // Held by another process
+                return false;
+            }
+            lock.release();
+            return true;
+        }
+        catch (OverlappingFileLockException ex)
+        {
+            // Held by a spool in this process
+            return false;
+        }
+    }
+
+    /**
+     * Receives each record of a segment, along with the offset at which the next one starts.
+     */
+    interface RecordConsumer
+    {
+        void accept(DeadLetter letter, long nextOffset);
+    }
+
+    /**
+     * Reads every record of a completed segment in order; a record cut short by a crash ends the segment.
+     */
+    static void read(Path segment, Consumer<DeadLetter> consumer)
+    {
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ))
+        {
+            readRecords(in, segment, (letter, nextOffset) -> consumer.accept(letter));
+        }
+        catch (IOException ex)
+        {
+            throw new MarkLogicConnectorException(String.format("Unable to read dead letter segment %s", segment), ex);
+        }
+    }
+
+    private static void readRecords(FileChannel in, Path segment, RecordConsumer consumer) throws IOException
+    {
+        ByteBuffer recordHeader = ByteBuffer.allocate(HEADER_LENGTH);
+        while (readFully(in, recordHeader))
+        {
+            recordHeader.flip();
+            long recordOffset = in.position() - HEADER_LENGTH;
+            if (recordHeader.getInt() != RECORD_MAGIC)
+            {
+                LOGGER.error("Dead letter segment {} is corrupt at offset {}; the rest of it is skipped", segment, recordOffset);
+                return;
+            }
+            // The lengths are checked against what is left of the segment before anything is allocated, so that a
+            // corrupt header can't ask for more memory than the segment could hold
+            long remaining = in.size() - in.position();
+            int[] lengths = new int[FIELD_COUNT];
+            for (int i = 0; i < FIELD_COUNT; i++)
+            {
+                lengths[i] = recordHeader.getInt();
+                if (lengths[i] < -1 || lengths[i] > remaining)
+                {
+                    LOGGER.error("Dead letter segment {} is corrupt at offset {}; the rest of it is skipped", segment, recordOffset);
+                    return;
+                }
+                remaining -= Math.max(0, lengths[i]);
+            }
+            byte[][] fields = new byte[FIELD_COUNT][];
+            for (int i = 0; i < FIELD_COUNT; i++)
+            {
+                fields[i] = lengths[i] >= 0 ? new byte[lengths[i]] : null;
+                if (fields[i] != null && !readFully(in, ByteBuffer.wrap(fields[i])))
+                {
+                    LOGGER.warn("Dead letter segment {} ends with an incomplete record, which is skipped", segment);
+                    return;
+                }
+            }
+            consumer.accept(new DeadLetter(decode(fields[0]), decode(fields[1]), decode(fields[2]),
+                decode(fields[3]), decode(fields[4]), decode(fields[5]), fields[6], fields[7]), in.position());
+            recordHeader.clear();
+        }
+    }
+
+    /**
+     * Claims a completed segment for replay, so that no other replay reads it.
+     *
+     * @return null if another replay has already claimed the segment
+     */
+    static ClaimedSegment claim(Path segment)
+    {
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Locked before it is renamed, so that a claimed segment is never taken for one left by a replay that is
+            // gone. Of two replays that both opened the segment, only the one that renames it has claimed it.
+            if (channel.tryLock() == null)
+            {
+                channel.close();
+                return null;
+            }
+            Path claimed = withSuffix(segment, SEGMENT_SUFFIX, CLAIMED_SEGMENT_SUFFIX);
+            Files.move(segment, claimed, StandardCopyOption.ATOMIC_MOVE);
+            return new ClaimedSegment(segment, claimed, channel);
+        }
+        catch (NoSuchFileException | OverlappingFileLockException ex)
+        {
+            LOGGER.debug("Dead letter segment {} has already been claimed by another replay", segment);
+            closeQuietly(channel);
+            return null;
+        }
+        catch (IOException ex)
+        {
+            closeQuietly(channel);
+            throw new MarkLogicConnectorException(String.format("Unable to claim dead letter segment %s", segment), ex);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.warn("Unable to close a dead letter segment", ex);
+        }
+    }
+
+    /**
+     * A segment claimed by a replay. The records up to the last confirmed offset are those whose documents have been
+     * written, or spooled again; closing the segment deletes it if every record has been confirmed, and otherwise
+     * gives back a completed segment of the records after that offset.
+     */
+    static final class ClaimedSegment implements Closeable
+    {
+        private final Path completed;
+
+        private final Path claimed;
+
+        private final FileChannel channel;
+
+        private long confirmedOffset;
+
+        private ClaimedSegment(Path completed, Path claimed, FileChannel channel)
+        {
+            this.completed = completed;
+            this.claimed = claimed;
+            this.channel = channel;
+        }
+
+        Path getPath()
+        {
+            return claimed;
+        }
+
+        void read(RecordConsumer consumer)
+        {
+            try
+            {
+                channel.position(0);
+                readRecords(channel, claimed, consumer);
+            }
+            catch (IOException ex)
+            {
+                throw new MarkLogicConnectorException(String.format("Unable to read dead letter segment %s", claimed), ex);
+            }
+        }
+
+        /**
+         * Records that the documents of every record before the offset have been written or spooled again;
+         * {@link Long#MAX_VALUE} confirms the whole segment, including any records skipped as corrupt.
+         */
+        void confirm(long offset)
+        {
+            confirmedOffset = Math.max(confirmedOffset, offset);
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                if (confirmedOffset >= channel.size())
+                {
+                    channel.close();
+                    Files.delete(claimed);
+                }
+                else if (confirmedOffset == 0)
+                {
+                    channel.close();
+                    Files.move(claimed, completed, StandardCopyOption.ATOMIC_MOVE);
+                }
+                else
+                {
+                    giveBackRemainder();
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new MarkLogicConnectorException(String.format("Unable to complete replayed dead letter segment %s", claimed), ex);
+            }
+            finally
+            {
+                closeQuietly(channel);
+            }
+        }
+
+        // Copies the unconfirmed records to a segment of their own, dated like the original so it is replayed as early
+        private void giveBackRemainder() throws IOException
+        {
+            Path remainder = withSuffix(completed, SEGMENT_SUFFIX, "-" + confirmedOffset + REMAINDER_SUFFIX);
+            try (FileChannel out = FileChannel.open(remainder, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                long position = confirmedOffset;
+                long size = channel.size();
+                while (position < size)
+                {
+                    position += channel.transferTo(position, size - position, out);
+                }
+                out.force(false);
+            }
+            Files.setLastModifiedTime(remainder, Files.getLastModifiedTime(claimed));
+            // Should this fail before the claimed segment is deleted, both are replayed, which is at-least-once still
+            Files.move(remainder, withSuffix(remainder, REMAINDER_SUFFIX, SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            Files.delete(claimed);
+        }
+    }
+
+    // Returns false at the end of the segment, including when it ends partway through the buffer
+    private static boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (in.read(buffer) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(byte[] value)
+    {
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicSplitFormat;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a payload into one JSON record at a time with a streaming parser, so that only the record being read is
+ * held in memory no matter how large the payload is.
+ */
+class DocumentSplitter implements Closeable
+{
+    private final JsonParser jsonParser;
+
+    private final MappingIterator<JsonNode> csvRows;
+
+    private final ObjectMapper objectMapper;
+
+    private final boolean inArray;
+
+    DocumentSplitter(InputStream payload, MarkLogicSplitFormat format, ObjectMapper objectMapper) throws IOException
+    {
+        this.objectMapper = objectMapper;
+        if (MarkLogicSplitFormat.CSV.equals(format))
+        {
+            this.jsonParser = null;
+            this.inArray = false;
+            this.csvRows = new CsvMapper().readerFor(JsonNode.class)
+                .with(CsvSchema.emptySchema().withHeader())
+                // Otherwise a blank line, such as one between rows, becomes a record with empty values
+                .with(CsvParser.Feature.SKIP_EMPTY_LINES)
+                .readValues(payload);
+        }
+        else
+        {
+            this.csvRows = null;
+            this.jsonParser = objectMapper.getFactory().createParser(payload);
+            this.inArray = MarkLogicSplitFormat.JSON_ARRAY.equals(format);
+            if (inArray && jsonParser.nextToken() != JsonToken.START_ARRAY)
+            {
+                throw new MarkLogicConnectorException("Expected the payload to be a JSON array");
+            }
+        }
+    }
+
+    /**
+     * @return the next record, or null once every record has been read
+     */
+    JsonNode next() throws IOException
+    {
+        if (csvRows != null)
+        {
+            return csvRows.hasNextValue() ? csvRows.nextValue() : null;
+        }
+        JsonToken token = jsonParser.nextToken();
+        if (token == null || (inArray && token == JsonToken.END_ARRAY))
+        {
+            return null;
+        }
+        // Reads the value that starts at the current token, leaving the parser at its end
+        return objectMapper.readTree(jsonParser);
+    }
+
+    /**
+     * @return the remaining records, each read only when the iterator reaches it
+     */
+    Iterator<JsonNode> iterator()
+    {
+        return new Iterator<JsonNode>()
+        {
+            private JsonNode nextRecord;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (nextRecord == null)
+                {
+                    try
+                    {
+                        nextRecord = DocumentSplitter.this.next();
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return nextRecord != null;
+            }
+
+            @Override
+            public JsonNode next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                JsonNode record = nextRecord;
+                nextRecord = null;
+                return record;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (csvRows != null)
+        {
+            csvRows.close();
+        }
+        else
+        {
+            jsonParser.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.MarkLogicServerException;
+import com.marklogic.client.datamovement.WriteEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes a batch that the WriteBatcher failed to write. A batch that failed for a reason that may pass, such as a
+ * server that is restarting, is retried with jittered exponential backoff. A batch that the server rejected as a bad
+ * request is split in half recursively, so that only the documents that can't be written are rejected; any other
+ * failure, such as a missing permission, would fail every document alike, so the whole batch is rejected.
+ * <p>
+ * The handler runs on the WriteBatcher thread that failed to write the batch, which writes nothing else while it
+ * backs off. This is deliberate: during an outage every batch would fail, and holding the threads keeps new documents
+ * waiting, through the WriteBatcher's queue and the in-flight limit, rather than failing them too.
+ */
+class FailedBatchHandler
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailedBatchHandler.class);
+
+    // Timeouts, throttling and an unavailable or restarting server
+    private static final List<Integer> RETRYABLE_STATUS_CODES = Arrays.asList(408, 429, 502, 503, 504);
+
+    // The status of a request the server rejected because of its content
+    private static final int BAD_REQUEST_STATUS_CODE = 400;
+
+    /**
+     * Writes documents in a single request, throwing if they could not be written.
+     */
+    interface BatchWriter
+    {
+        void write(List<WriteEvent> documents);
+    }
+
+    /**
+     * Waits between retries; replaced in tests so they don't have to.
+     */
+    interface Sleeper
+    {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private final BatchWriter writer;
+
+    private final int maxRetries;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final BiConsumer<WriteEvent, Throwable> rejectedDocumentListener;
+
+    private final Sleeper sleeper;
+
+    FailedBatchHandler(BatchWriter writer, int maxRetries, long initialBackoffMillis, long maxBackoffMillis,
+                       BiConsumer<WriteEvent, Throwable> rejectedDocumentListener)
+    {
+        this(writer, maxRetries, initialBackoffMillis, maxBackoffMillis, rejectedDocumentListener, Thread::sleep);
+    }
+
+    FailedBatchHandler(BatchWriter writer, int maxRetries, long initialBackoffMillis, long maxBackoffMillis,
+                       BiConsumer<WriteEvent, Throwable> rejectedDocumentListener, Sleeper sleeper)
+    {
+        this.writer = writer;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialBackoffMillis = Math.max(0, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+        this.rejectedDocumentListener = rejectedDocumentListener;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Retries, and then splits, the given batch; returns once every document has either been written or rejected.
+     */
+    void handle(List<WriteEvent> documents, Throwable failure)
+    {
+        Throwable lastFailure = failure;
+        for (int attempt = 0; attempt < maxRetries && isRetryable(lastFailure); attempt++)
+        {
+            long backoff = backoffMillis(attempt);
+            LOGGER.warn("Batch of {} documents failed; retrying in {} ms (attempt {} of {}): {}",
+                documents.size(), backoff, attempt + 1, maxRetries, lastFailure.getMessage());
+            try
+            {
+                sleeper.sleep(backoff);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                reject(documents, lastFailure);
+                return;
+            }
+            try
+            {
+                writer.write(documents);
+                return;
+            }
+            catch (RuntimeException ex)
+            {
+                lastFailure = ex;
+            }
+        }
+        split(documents, lastFailure);
+    }
+
+    private void split(List<WriteEvent> documents, Throwable failure)
+    {
+        if (documents.size() == 1 || !isDocumentError(failure))
+        {
+            // Either the bad document has been found, or every part of the batch would fail the same way and
+            // splitting would only send more requests
+            reject(documents, failure);
+            return;
+        }
+        int middle = documents.size() / 2;
+        writeOrSplit(documents.subList(0, middle));
+        writeOrSplit(documents.subList(middle, documents.size()));
+    }
+
+    private void writeOrSplit(List<WriteEvent> documents)
+    {
+        try
+        {
+            writer.write(documents);
+        }
+        catch (RuntimeException ex)
+        {
+            split(documents, ex);
+        }
+    }
+
+    private void reject(List<WriteEvent> documents, Throwable failure)
+    {
+        for (WriteEvent document : documents)
+        {
+            rejectedDocumentListener.accept(document, failure);
+        }
+    }
+
+    /**
+     * Doubles the backoff for every attempt, up to the maximum, and then picks a random delay between half of it and
+     * all of it, so that batchers that failed together don't all retry together.
+     */
+    long backoffMillis(int attempt)
+    {
+        long backoff = initialBackoffMillis;
+        for (int i = 0; i < attempt && backoff < maxBackoffMillis; i++)
+        {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffMillis);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    /**
+     * @return whether the failure may have been caused by some of the documents rather than by the request as a whole;
+     * failures that didn't come from the server, such as content that couldn't be sent, are assumed to be
+     */
+    static boolean isDocumentError(Throwable failure)
+    {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof MarkLogicIOException)
+            {
+                return false;
+            }
+            if (cause instanceof MarkLogicServerException)
+            {
+                return ((MarkLogicServerException) cause).getServerStatusCode() == BAD_REQUEST_STATUS_CODE;
+            }
+            if (cause.getCause() == cause)
+            {
+                break;
+            }
+        }
+        return failure != null;
+    }
+
+    static boolean isRetryable(Throwable failure)
+    {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof MarkLogicIOException)
+            {
+                return true;
+            }
+            if (cause instanceof MarkLogicServerException)
+            {
+                return RETRYABLE_STATUS_CODES.contains(((MarkLogicServerException) cause).getServerStatusCode());
+            }
+            if (cause.getCause() == cause)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+}
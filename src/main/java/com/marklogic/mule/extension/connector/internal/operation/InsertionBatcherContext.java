@@ -19,14 +19,12 @@ import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConne
 import java.util.Objects;
 
 /**
- * Captures the inputs and context needed for constructing a MarkLogicInsertionBatcher.
+ * Captures the inputs and context needed for constructing a MarkLogicInsertionBatcher. Also used as the key that a
+ * connection looks its batchers up by, so it must not be modified once it has been used to get a batcher.
  */
 public class InsertionBatcherContext {
     private MarkLogicConfiguration configuration;
     private MarkLogicConnection connection;
-    private String outputCollections;
-    private String outputPermissions;
-    private int outputQuality;
     private String jobName;
     private String temporalCollection;
     private String serverTransform;
@@ -35,9 +33,6 @@ public class InsertionBatcherContext {
     public int computeSignature() {
         return Objects.hash(configuration,
             connection,
-            outputCollections,
-            outputPermissions,
-            outputQuality,
             jobName,
             temporalCollection,
             serverTransform,
@@ -61,30 +56,6 @@ public class InsertionBatcherContext {
         this.connection = connection;
     }
 
-    public String getOutputCollections() {
-        return outputCollections;
-    }
-
-    public void setOutputCollections(String outputCollections) {
-        this.outputCollections = outputCollections;
-    }
-
-    public String getOutputPermissions() {
-        return outputPermissions;
-    }
-
-    public void setOutputPermissions(String outputPermissions) {
-        this.outputPermissions = outputPermissions;
-    }
-
-    public int getOutputQuality() {
-        return outputQuality;
-    }
-
-    public void setOutputQuality(int outputQuality) {
-        this.outputQuality = outputQuality;
-    }
-
     public String getJobName() {
         return jobName;
     }
@@ -116,4 +87,24 @@ public class InsertionBatcherContext {
     public void setServerTransformParams(String serverTransformParams) {
         this.serverTransformParams = serverTransformParams;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        InsertionBatcherContext that = (InsertionBatcherContext)o;
+        return Objects.equals(configuration, that.configuration)
+            && connection == that.connection
+            && Objects.equals(jobName, that.jobName)
+            && Objects.equals(temporalCollection, that.temporalCollection)
+            && Objects.equals(serverTransform, that.serverTransform)
+            && Objects.equals(serverTransformParams, that.serverTransformParams);
+    }
+
+    @Override
+    public int hashCode() {
+        return computeSignature();
+    }
 }
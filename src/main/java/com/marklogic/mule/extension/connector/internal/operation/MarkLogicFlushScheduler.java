@@ -0,0 +1,154 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Checks every insertion batcher on a connection for documents that have waited long enough to be written, from a
+ * single task, rather than each batcher scheduling its own. The task runs as often as the most demanding batcher
+ * needs, and is stopped along with the connection.
+ */
+public class MarkLogicFlushScheduler
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicFlushScheduler.class);
+
+    private final ScheduledExecutorService executor;
+
+    private final LongSupplier clock;
+
+    private final Set<MarkLogicFlushable> flushables = ConcurrentHashMap.newKeySet();
+
+    private ScheduledFuture<?> checkTask;
+
+    private final List<ScheduledFuture<?>> periodicTasks = new ArrayList<>();
+
+    private long checkIntervalMillis;
+
+    private boolean shutdown;
+
+    public MarkLogicFlushScheduler(ScheduledExecutorService executor)
+    {
+        this(executor, System::nanoTime);
+    }
+
+    /**
+     * @param executor runs the check; it is owned by the scheduler and shut down with it
+     * @param clock the time in nanoseconds, as given by {@link System#nanoTime()}
+     */
+    public MarkLogicFlushScheduler(ScheduledExecutorService executor, LongSupplier clock)
+    {
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    public long nanoTime()
+    {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Starts checking the given batcher, at least as often as the given interval.
+     */
+    public synchronized void register(MarkLogicFlushable flushable, long checkIntervalMillis)
+    {
+        if (shutdown)
+        {
+            LOGGER.warn("Flush scheduler has been shut down; documents will only be written in full batches");
+            return;
+        }
+        flushables.add(flushable);
+        long interval = Math.max(1, checkIntervalMillis);
+        if (checkTask == null || interval < this.checkIntervalMillis)
+        {
+            if (checkTask != null)
+            {
+                checkTask.cancel(false);
+            }
+            this.checkIntervalMillis = interval;
+            LOGGER.info("Checking insertion batchers for documents to flush every {} ms", interval);
+            checkTask = executor.scheduleAtFixedRate(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void unregister(MarkLogicFlushable flushable)
+    {
+        flushables.remove(flushable);
+    }
+
+    /**
+     * Runs a housekeeping task for the connection's batchers, such as evicting idle ones, at the given interval. It runs
+     * separately from the flush check, so a task that waits for batches to be written doesn't delay other flushes.
+     */
+    public synchronized void schedule(Runnable task, long intervalMillis)
+    {
+        if (shutdown)
+        {
+            return;
+        }
+        long interval = Math.max(1, intervalMillis);
+        periodicTasks.add(executor.scheduleAtFixedRate(() -> {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException ex)
+            {
+                // An exception would otherwise cancel the task
+                LOGGER.error("Unable to run insertion batcher task", ex);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS));
+    }
+
+    private void check()
+    {
+        long now = clock.getAsLong();
+        for (MarkLogicFlushable flushable : flushables)
+        {
+            try
+            {
+                flushable.flushIfDue(now);
+            }
+            catch (RuntimeException ex)
+            {
+                // An exception would otherwise cancel the task, and no batcher would be flushed again
+                LOGGER.error("Unable to flush insertion batcher", ex);
+            }
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        flushables.clear();
+        if (checkTask != null)
+        {
+            checkTask.cancel(false);
+            checkTask = null;
+        }
+        periodicTasks.forEach(task -> task.cancel(false));
+        periodicTasks.clear();
+        executor.shutdown();
+    }
+}
@@ -16,36 +16,73 @@ package com.marklogic.mule.extension.connector.internal.operation;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.DataMovementManager;
 import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.client.datamovement.WriteBatch;
 import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.document.DocumentWriteSet;
+import com.marklogic.client.document.GenericDocumentManager;
 import com.marklogic.client.document.ServerTransform;
+import com.marklogic.client.io.BaseHandle;
+import com.marklogic.client.io.BytesHandle;
 import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
 import com.marklogic.client.io.InputStreamHandle;
-import org.mule.runtime.api.scheduler.SchedulerService;
-import org.mule.runtime.extension.api.runtime.operation.Result;
-import org.mule.weave.v2.model.structure.Attributes;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
+import com.marklogic.client.io.marker.BufferableHandle;
+import com.marklogic.client.io.marker.DocumentMetadataWriteHandle;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicBackpressurePolicy;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by jkrebs on 9/12/2018. Singleton class that manages inserting
- * documents into MarkLogic
+ * documents into MarkLogic. One batcher is shared by every document with the
+ * same configuration, temporal collection and transform; collections,
+ * permissions and quality are given per document, so documents with different
+ * metadata fill the same batches and share one pool of writer threads. DMSDK
+ * gives no way to share an executor between WriteBatchers, so each distinct
+ * temporal collection and transform still has a pool of its own; the number of
+ * pools is bounded by the configuration's Maximum Insertion Batchers, and the
+ * batches they write at once by its Maximum Concurrent Batches.
  */
-public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidationListener
+public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidationListener, MarkLogicFlushable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicInsertionBatcher.class);
 
+    private static final int RETIRED = -1;
+
+    // Bounds the metadata cache for flows that compute a different combination for nearly every document
+    private static final int MAX_CACHED_METADATA = 1024;
+
     // a hash used internally to uniquely identify the batcher based on its current configuration
     private final int signature;
 
-    // Object that describes the metadata for documents being inserted
-    private DocumentMetadataHandle metadataHandle;
+    // Metadata handles keyed by collections, permissions and quality, so that the handle for a combination is built
+    // once rather than for every document
+    private final ConcurrentHashMap<List<Object>, DocumentMetadataHandle> metadataHandles = new ConcurrentHashMap<>();
 
     // How will we know when the resources are ready to be freed up and provide the results report?
     private JobTicket jobTicket;
@@ -54,44 +91,204 @@ public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidatio
 
     private DataMovementManager dmm;
 
-    private boolean batcherRequiresReinit;
+    private volatile boolean batcherRequiresReinit;
+
+    // Retries failed batches when retries are configured, and splits them to find the documents that can't be written
+    private FailedBatchHandler failedBatchHandler;
+
+    // Shared by every batcher of the configuration
+    private WriteRateLimiter rateLimiter;
+
+    // When URIs are deduplicated, the pending batch is held here rather than in the WriteBatcher, so that a later
+    // write of a URI can replace an earlier one; null otherwise
+    private UriIndex uriIndex;
+
+    private String[] heldUris;
+
+    private DocumentMetadataWriteHandle[] heldMetadata;
+
+    private AbstractWriteHandle[] heldContent;
+
+    private long[] heldSizes;
+
+    // Null unless the batch size and concurrency are adapted to the measured throughput
+    private AdaptiveBatchController adaptiveController;
+
+    // Shared by every batcher on the connection, one permit per batch being written; null when not limited
+    private Semaphore batchPermits;
+
+    // The shared permits taken for batches this batcher has started writing
+    private final AtomicInteger heldBatchPermits = new AtomicInteger();
+
+    // Null when documents that can't be written are only logged
+    private DeadLetterSpool deadLetterSpool;
+
+    // Whether content is read into memory when it is added, because retries, dead lettering or the byte limit on
+    // batches need it; otherwise a stream is only read as its batch is written
+    private boolean bufferContent;
+
+    // As given to the operation, so that spooled documents can be replayed through an equivalent batcher
+    private String temporalCollection;
+
+    private String serverTransform;
+
+    private String serverTransformParams;
+
+    // Documents from batches that failed after the connection was invalidated, for the next connection to write
+    private final Queue<WriteEvent> unwrittenDocuments = new ConcurrentLinkedQueue<>();
+
+    // Every document from a batch that failed after the connection was invalidated, whether or not it could be kept
+    private final AtomicLong retainedDocumentCount = new AtomicLong();
+
+    // Null when nothing flushes partial batches on a timer, such as in unit tests without a Mule scheduler
+    private MarkLogicFlushScheduler flushScheduler;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    // One permit per document that has been added but not yet written; null when the number is not limited
+    private Semaphore inFlightDocuments;
+
+    private MarkLogicBackpressurePolicy backpressurePolicy;
+
+    private long backpressureTimeout;
+
+    // The number of inserts currently using this batcher, or RETIRED once it has been chosen for eviction
+    private final AtomicInteger leases = new AtomicInteger();
+
+    private volatile long lastUsedNanos = System.nanoTime();
 
-    private SchedulerService schedulerService;
+    private int batchSize;
+
+    // 0 when batches are not limited by size
+    private long maxBatchBytes;
+
+    // How long the first document of a partial batch waits for more before the batch is written
+    private long flushAfterNanos;
+
+    // Mirrors the partial batch the WriteBatcher is filling, so that it can be flushed early on size or age
+    private final ReentrantLock pendingLock = new ReentrantLock();
+
+    // False when no byte limit, linger, URI deduplication, adaptive batching or connection-wide batch limit needs the
+    // partial batch mirrored, in which case inserts add to the WriteBatcher without taking the pending lock
+    private boolean trackPending;
+
+    // When the partial batch isn't tracked, it is flushed whatever its age once this long after the last timed flush
+    private long lastTimedFlushNanos;
+
+    // Volatile so that the flush check can skip a batcher with nothing pending without taking the lock
+    private volatile int pendingDocuments;
+
+    private long pendingBytes;
+
+    private long firstPendingNanos;
 
     /**
      * Creates a new insertion batcher.
      *
      * @param context captures inputs and context for the insertion process
+     * @param flushScheduler writes partial batches once they have waited long enough; may be null
      */
-    public MarkLogicInsertionBatcher(InsertionBatcherContext context, SchedulerService schedulerService)
+    public MarkLogicInsertionBatcher(InsertionBatcherContext context, MarkLogicFlushScheduler flushScheduler)
+    {
+        this(context, context.getConnection().getClient(), flushScheduler);
+    }
+
+    // The client is given separately so that tests can provide one without connecting
+    MarkLogicInsertionBatcher(InsertionBatcherContext context, DatabaseClient client, MarkLogicFlushScheduler flushScheduler)
     {
-        this.schedulerService = schedulerService;
+        this.flushScheduler = flushScheduler;
         this.batcherRequiresReinit = false;
         LOGGER.debug("MarkLogicInsertionBatcher batcherRequiresReinit {}", batcherRequiresReinit);
         this.signature = context.computeSignature();
 
         // get the object handles needed to talk to MarkLogic
-        initializeBatcher(context);
+        initializeBatcher(context, client);
         LOGGER.info("MarkLogicInsertionBatcher with job name: {}", context.getJobName());
     }
 
-    private void initializeBatcher(InsertionBatcherContext context)
+    private void initializeBatcher(InsertionBatcherContext context, DatabaseClient myClient)
     {
         context.getConnection().addMarkLogicClientInvalidationListener(this);
-        DatabaseClient myClient = context.getConnection().getClient();
         dmm = myClient.newDataMovementManager();
         batcher = dmm.newWriteBatcher();
-        batcher.withBatchSize(context.getConfiguration().getBatchSize())
+        initializeBackpressure(context.getConfiguration());
+        this.rateLimiter = context.getConfiguration().getWriteRateLimiter();
+        if (context.getConfiguration().isDeduplicateUris())
+        {
+            int maxHeld = Math.max(1, context.getConfiguration().getBatchSize());
+            this.uriIndex = new UriIndex(maxHeld);
+            this.heldUris = new String[maxHeld];
+            this.heldMetadata = new DocumentMetadataWriteHandle[maxHeld];
+            this.heldContent = new AbstractWriteHandle[maxHeld];
+            this.heldSizes = new long[maxHeld];
+        }
+        if (context.getConfiguration().isAdaptiveBatching())
+        {
+            this.adaptiveController = new AdaptiveBatchController(context.getConfiguration().getMinBatchSize(),
+                context.getConfiguration().getBatchSize(), context.getConfiguration().getThreadCount());
+        }
+        this.batchPermits = context.getConnection().getBatchPermits(context.getConfiguration());
+        this.batchSize = context.getConfiguration().getBatchSize();
+        this.maxBatchBytes = Math.max(0, context.getConfiguration().getMaxBatchBytes());
+        int lingerMillis = context.getConfiguration().getLingerMillis();
+        this.flushAfterNanos = lingerMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(lingerMillis) :
+            TimeUnit.SECONDS.toNanos(context.getConfiguration().getSecondsBeforeFlush());
+        this.trackPending = maxBatchBytes > 0 || lingerMillis > 0 || uriIndex != null || adaptiveController != null ||
+            batchPermits != null;
+        this.lastTimedFlushNanos = nanoTime();
+        batcher.withBatchSize(batchSize)
                 .withThreadCount(context.getConfiguration().getThreadCount())
-                .onBatchSuccess(batch -> LOGGER.info("Batcher with signature {} on connection ID {} writes so far: {}",
-                    getSignature(), context.getConnection().getId(), batch.getJobWritesSoFar()))
-                .onBatchFailure((batch, throwable) -> LOGGER.error("Exception thrown by an onBatchSuccess listener", throwable));
+                .onBatchSuccess(batch -> {
+                    releaseInFlightDocuments(batch.getItems().length);
+                    batchCompleted(batch, true);
+                    LOGGER.info("Batcher with signature {} on connection ID {} writes so far: {}",
+                        getSignature(), context.getConnection().getId(), batch.getJobWritesSoFar());
+                })
+                .onBatchFailure((batch, throwable) -> {
+                    // The permits are kept while the batch is retried, so that new documents wait for it
+                    try
+                    {
+                        if (batcherRequiresReinit)
+                        {
+                            LOGGER.error(String.format("Batch of %d documents failed after the connection was " +
+                                "invalidated; keeping them for the next connection", batch.getItems().length), throwable);
+                            retainUnwrittenDocuments(batch.getItems());
+                        }
+                        else if (isResendable(batch.getItems()))
+                        {
+                            failedBatchHandler.handle(Arrays.asList(batch.getItems()), throwable);
+                        }
+                        else
+                        {
+                            // Streamed content was consumed by the failed request, so the batch can't be split or
+                            // retried
+                            for (WriteEvent document : batch.getItems())
+                            {
+                                rejectDocument(document, throwable);
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        if (deadLetterSpool != null)
+                        {
+                            // One sync per failed batch rather than per document, after which its documents can be
+                            // replayed
+                            deadLetterSpool.roll();
+                        }
+                        releaseInFlightDocuments(batch.getItems().length);
+                        batchCompleted(batch, false);
+                    }
+                });
 
         // Configure the transform to be used, if any
         // ASSUMPTION: The same transform (or lack thereof) will be used for every document to be inserted during the
         // lifetime of this object
 
         final String temporalCollection = context.getTemporalCollection();
+        this.temporalCollection = temporalCollection;
+        this.serverTransform = context.getServerTransform();
+        this.serverTransformParams = context.getServerTransformParams();
         if (temporalCollection != null && !"null".equalsIgnoreCase(temporalCollection))
         {
             LOGGER.info("TEMPORAL COLLECTION: {}", temporalCollection);
@@ -105,13 +302,408 @@ public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidatio
             batcher.withTransform(transform.get());
         }
 
+        initializeRetries(context.getConfiguration(), myClient, transform.orElse(null),
+            temporalCollection != null && !"null".equalsIgnoreCase(temporalCollection) ? temporalCollection : null);
+        this.bufferContent = context.getConfiguration().getMaxBatchRetries() > 0 || deadLetterSpool != null ||
+            maxBatchBytes > 0;
+
         scheduleThreadToFlushBatcher(context);
 
-        // Set up the metadata to be used for the documents that will be inserted
-        // ASSUMPTION: The same metadata will be used for every document to be inserted during the lifetime of this
-        // object
-        this.metadataHandle = new DocumentMetadataHandle();
-        String[] configCollections = context.getOutputCollections().split(",");
+        // start the batcher job
+        this.jobTicket = dmm.startJob(batcher);
+    }
+
+    private void initializeRetries(MarkLogicConfiguration configuration, DatabaseClient client, ServerTransform transform,
+                                   String temporalCollection)
+    {
+        // Failed batches are written with the document manager, as the WriteBatcher only writes new batches. Even
+        // without retries, a batch rejected because of some of its documents is split, so that the rest are written.
+        GenericDocumentManager documentManager = client.newDocumentManager();
+        this.failedBatchHandler = new FailedBatchHandler(documents -> {
+                DocumentWriteSet writeSet = documentManager.newWriteSet();
+                for (WriteEvent document : documents)
+                {
+                    writeSet.add(document.getTargetUri(), document.getMetadata(), document.getContent());
+                }
+                documentManager.write(writeSet, transform, null, temporalCollection);
+            },
+            configuration.getMaxBatchRetries(), configuration.getBatchRetryBackoff(),
+            configuration.getMaxBatchRetryBackoff(), this::rejectDocument);
+        if (MarkLogicConfiguration.isDefined(configuration.getDeadLetterDirectory()))
+        {
+            this.deadLetterSpool = new DeadLetterSpool(Paths.get(configuration.getDeadLetterDirectory()),
+                "batcher-" + Integer.toHexString(signature));
+        }
+    }
+
+    private static boolean isResendable(WriteEvent[] documents)
+    {
+        for (WriteEvent document : documents)
+        {
+            if (document.getContent() instanceof InputStreamHandle)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rejectDocument(WriteEvent document, Throwable failure)
+    {
+        LOGGER.error(String.format("Document %s could not be written and has been rejected", document.getTargetUri()), failure);
+        if (deadLetterSpool == null)
+        {
+            return;
+        }
+        AbstractWriteHandle content = document.getContent();
+        if (content instanceof InputStreamHandle || !(content instanceof BufferableHandle))
+        {
+            LOGGER.error("Document {} can't be spooled, as its content has already been read", document.getTargetUri());
+            return;
+        }
+        BaseHandle<?, ?> contentHandle = content instanceof BaseHandle ? (BaseHandle<?, ?>) content : null;
+        byte[] metadata = document.getMetadata() instanceof BufferableHandle ?
+            ((BufferableHandle) document.getMetadata()).toBuffer() : null;
+        deadLetterSpool.append(new DeadLetterSpool.DeadLetter(document.getTargetUri(),
+            contentHandle != null ? contentHandle.getFormat().name() : null,
+            contentHandle != null ? contentHandle.getMimetype() : null,
+            temporalCollection, serverTransform, serverTransformParams, metadata,
+            ((BufferableHandle) content).toBuffer()));
+    }
+
+    private void initializeBackpressure(MarkLogicConfiguration configuration)
+    {
+        if (configuration.getMaxInFlightDocuments() > 0)
+        {
+            this.inFlightDocuments = new Semaphore(configuration.getMaxInFlightDocuments());
+            this.backpressurePolicy = configuration.getBackpressurePolicy() != null ?
+                configuration.getBackpressurePolicy() : MarkLogicBackpressurePolicy.BLOCK;
+            this.backpressureTimeout = configuration.getBackpressureTimeout();
+        }
+    }
+
+    /**
+     * Waits for, or fails, according to the backpressure policy, when the maximum number of documents are already
+     * waiting to be written. This keeps the documents and the Mule streams they hold from piling up in memory when
+     * MarkLogic falls behind, and lets the flow's own backpressure reach its source.
+     */
+    private void acquireInFlightDocument()
+    {
+        if (inFlightDocuments == null || inFlightDocuments.tryAcquire())
+        {
+            return;
+        }
+        // The documents in a partial batch hold permits too, and would otherwise keep them until the next timed flush
+        flushPending();
+        try
+        {
+            switch (backpressurePolicy)
+            {
+                case FAIL:
+                    throw new MarkLogicConnectorException("The maximum number of in-flight documents has been reached");
+                case TIMEOUT:
+                    if (!inFlightDocuments.tryAcquire(backpressureTimeout, TimeUnit.MILLISECONDS))
+                    {
+                        throw new MarkLogicConnectorException(String.format(
+                            "Timed out after %d ms waiting for in-flight documents to be written", backpressureTimeout));
+                    }
+                    break;
+                default:
+                    inFlightDocuments.acquire();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new MarkLogicConnectorException("Interrupted while waiting for in-flight documents to be written", ex);
+        }
+    }
+
+    private void releaseInFlightDocuments(int count)
+    {
+        if (inFlightDocuments != null)
+        {
+            inFlightDocuments.release(count);
+        }
+    }
+
+    /**
+     * Documents can get "stuck" in the WriteBatcher when not enough are received to meet the batch size.
+     *
+     * @param context
+     */
+    private void scheduleThreadToFlushBatcher(InsertionBatcherContext context) {
+        if (flushAfterNanos <= 0) {
+            // Checking with no delay to wait for would poll the batcher continuously
+            LOGGER.info("Partial batches of job {} are only written when the batcher is flushed or released", context.getJobName());
+        }
+        else if (flushScheduler != null) {
+            // Checking twice per period writes a partial batch at most 1.5 periods after its first document arrived
+            flushScheduler.register(this, TimeUnit.NANOSECONDS.toMillis(flushAfterNanos) / 2);
+        }
+    }
+
+    /**
+     * Writes the partial batch now, and starts counting the next one.
+     */
+    private void flushPending()
+    {
+        pendingLock.lock();
+        try
+        {
+            dispatchPending();
+        }
+        finally
+        {
+            pendingLock.unlock();
+        }
+    }
+
+    // Must be called with the pending lock held
+    private void dispatchPending()
+    {
+        if (pendingDocuments > 0)
+        {
+            awaitBatchSlot();
+        }
+        handOffHeldDocuments();
+        batcher.flushAsync();
+        clearPending();
+    }
+
+    @Override
+    public void flushIfDue(long nowNanos)
+    {
+        if (!trackPending)
+        {
+            // Only called from the scheduler's thread; flushing with nothing pending costs next to nothing
+            if (nowNanos - lastTimedFlushNanos >= flushAfterNanos && !batcher.isStopped())
+            {
+                lastTimedFlushNanos = nowNanos;
+                batcher.flushAsync();
+            }
+            return;
+        }
+        // Most checks find nothing pending, so look before taking the lock; the count is checked again under it.
+        // An insert holding the lock may be waiting for a batch to finish, which the scheduler must not wait for too;
+        // the batch will be checked again on the next run.
+        if (pendingDocuments == 0 || batcher.isStopped() || !pendingLock.tryLock())
+        {
+            return;
+        }
+        try
+        {
+            if (pendingDocuments > 0 && nowNanos - firstPendingNanos >= flushAfterNanos && tryAcquireBatchSlot())
+            {
+                handOffHeldDocuments();
+                batcher.flushAsync();
+                clearPending();
+            }
+        }
+        finally
+        {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Waits, when the batch size and concurrency are adaptive or the connection limits the batches written at once,
+     * until another batch may be written.
+     */
+    private void awaitBatchSlot()
+    {
+        try
+        {
+            if (adaptiveController != null)
+            {
+                adaptiveController.awaitSlot();
+            }
+            if (batchPermits != null)
+            {
+                try
+                {
+                    batchPermits.acquire();
+                }
+                catch (InterruptedException ex)
+                {
+                    if (adaptiveController != null)
+                    {
+                        adaptiveController.releaseSlot();
+                    }
+                    throw ex;
+                }
+                heldBatchPermits.incrementAndGet();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new MarkLogicConnectorException("Interrupted while waiting for a batch to be written", ex);
+        }
+    }
+
+    /**
+     * Claims what {@link #awaitBatchSlot()} waits for if it is free, without waiting.
+     */
+    private boolean tryAcquireBatchSlot()
+    {
+        if (adaptiveController != null && !adaptiveController.tryAcquireSlot())
+        {
+            return false;
+        }
+        if (batchPermits != null)
+        {
+            if (!batchPermits.tryAcquire())
+            {
+                if (adaptiveController != null)
+                {
+                    adaptiveController.releaseSlot();
+                }
+                return false;
+            }
+            heldBatchPermits.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Gives back a slot claimed for a batch that was not written after all
+    private void releaseBatchSlot()
+    {
+        if (adaptiveController != null)
+        {
+            adaptiveController.releaseSlot();
+        }
+        releaseBatchPermit();
+    }
+
+    private void releaseBatchPermit()
+    {
+        if (batchPermits == null)
+        {
+            return;
+        }
+        // Batches written while the batcher is released never took a permit, so only those taken are given back
+        int held;
+        do
+        {
+            held = heldBatchPermits.get();
+            if (held == 0)
+            {
+                return;
+            }
+        }
+        while (!heldBatchPermits.compareAndSet(held, held - 1));
+        batchPermits.release();
+    }
+
+    private void batchCompleted(WriteBatch batch, boolean success)
+    {
+        releaseBatchPermit();
+        if (adaptiveController != null)
+        {
+            long latencyMillis = batch.getTimestamp() != null ?
+                System.currentTimeMillis() - batch.getTimestamp().getTimeInMillis() : 0;
+            adaptiveController.batchCompleted(batch.getItems().length, latencyMillis, success);
+        }
+    }
+
+    public boolean isAdaptive()
+    {
+        return adaptiveController != null;
+    }
+
+    /**
+     * @return the batch size currently chosen; the configured one unless batching is adaptive
+     */
+    public int getEffectiveBatchSize()
+    {
+        return adaptiveController != null ? adaptiveController.getBatchSize() : batchSize;
+    }
+
+    /**
+     * @return the number of batches currently allowed to be written at once, when batching is adaptive
+     */
+    public int getEffectiveConcurrency()
+    {
+        return adaptiveController != null ? adaptiveController.getConcurrency() : 0;
+    }
+
+    /**
+     * @return documents per second written during the last measurement, when batching is adaptive
+     */
+    public double getMeasuredThroughput()
+    {
+        return adaptiveController != null ? adaptiveController.getThroughput() : 0;
+    }
+
+    public long getLastBatchLatencyMillis()
+    {
+        return adaptiveController != null ? adaptiveController.getLastLatencyMillis() : 0;
+    }
+
+    private long nanoTime()
+    {
+        return flushScheduler != null ? flushScheduler.nanoTime() : System.nanoTime();
+    }
+
+    private void clearPending()
+    {
+        pendingDocuments = 0;
+        pendingBytes = 0;
+    }
+
+    /**
+     * Adds the documents of the pending batch to the WriteBatcher, when URIs are deduplicated; must be called with
+     * the pending lock held, before the batch is flushed.
+     */
+    private void handOffHeldDocuments()
+    {
+        if (uriIndex == null)
+        {
+            return;
+        }
+        int count = uriIndex.size();
+        int handedOff = 0;
+        try
+        {
+            for (; handedOff < count; handedOff++)
+            {
+                batcher.addAs(heldUris[handedOff], heldMetadata[handedOff], heldContent[handedOff]);
+            }
+        }
+        finally
+        {
+            // Documents that never reached the WriteBatcher won't be written, so no batch listener will give back
+            // their permits
+            releaseInFlightDocuments(count - handedOff);
+            Arrays.fill(heldUris, 0, count, null);
+            Arrays.fill(heldMetadata, 0, count, null);
+            Arrays.fill(heldContent, 0, count, null);
+            uriIndex.clear();
+        }
+    }
+
+    private DocumentMetadataHandle getMetadataHandle(String outputCollections, String outputPermissions, int outputQuality)
+    {
+        List<Object> key = Arrays.asList(outputCollections, outputPermissions, outputQuality);
+        DocumentMetadataHandle metadataHandle = metadataHandles.get(key);
+        if (metadataHandle == null)
+        {
+            if (metadataHandles.size() >= MAX_CACHED_METADATA)
+            {
+                metadataHandles.clear();
+            }
+            metadataHandle = metadataHandles.computeIfAbsent(key,
+                k -> newMetadataHandle(outputCollections, outputPermissions, outputQuality));
+        }
+        return metadataHandle;
+    }
+
+    // The handle is shared by every document with the same metadata, so it must not be modified once built
+    private static DocumentMetadataHandle newMetadataHandle(String outputCollections, String outputPermissions, int outputQuality)
+    {
+        DocumentMetadataHandle metadataHandle = new DocumentMetadataHandle();
+        String[] configCollections = String.valueOf(outputCollections).split(",");
 
         // Set up list of collections that new docs should be put into
         if (!configCollections[0].equals("null"))
@@ -119,10 +711,10 @@ public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidatio
             metadataHandle.withCollections(configCollections);
         }
         // Set up quality new docs should have
-        metadataHandle.setQuality(context.getOutputQuality());
+        metadataHandle.setQuality(outputQuality);
 
         // Set up list of permissions that new docs should be granted
-        String[] permissions = context.getOutputPermissions().split(",");
+        String[] permissions = String.valueOf(outputPermissions).split(",");
         for (int i = 0; i < permissions.length - 1; i++)
         {
             String role = permissions[i];
@@ -148,70 +740,459 @@ public class MarkLogicInsertionBatcher implements MarkLogicConnectionInvalidatio
                     LOGGER.info("No additive permissions assigned");
             }
         }
-
-        // start the batcher job
-        this.jobTicket = dmm.startJob(batcher);
-    }
-
-    /**
-     * Documents can get "stuck" in the WriteBatcher when not enough are received to meet the batch size.
-     *
-     * @param context
-     */
-    private void scheduleThreadToFlushBatcher(InsertionBatcherContext context) {
-        // The service will be null in unit tests that don't inject a SchedulerService.
-        // Need this toString check as a bit of a dirty hack to prevent executeDeleteDocsStructuredQueryFlow from
-        // failing when it tries to dispose of the Mule context.
-        if (this.schedulerService != null && !this.schedulerService.toString().contains("SimpleUnitTestSupportSchedulerService")) {
-            int secondsBeforeFlush = context.getConfiguration().getSecondsBeforeFlush();
-            LOGGER.info("Scheduling thread to flush batcher; will run every {} seconds", secondsBeforeFlush);
-            // There's no real penalty to calling flushAsync repeatedly; if there are no documents waiting to be
-            // written, the cost of calling flushAsync is negligible.
-            this.schedulerService.ioScheduler().scheduleAtFixedRate(() -> {
-                if (batcher != null && !batcher.isStopped()) {
-                    batcher.flushAsync();
-                }
-            }, secondsBeforeFlush, secondsBeforeFlush, TimeUnit.SECONDS);
-        }
+        return metadataHandle;
     }
 
     public void release() {
+        // Taking the lock means no document can be added once the batcher has been flushed for the last time
+        pendingLock.lock();
+        try {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            handOffHeldDocuments();
+        }
+        finally {
+            pendingLock.unlock();
+        }
+        if (flushScheduler != null) {
+            // Otherwise an evicted batcher would keep being checked after it is gone
+            flushScheduler.unregister(this);
+        }
         if (batcher != null) {
             // finalize all writes
             batcher.flushAndWait();
             dmm.stopJob(this.jobTicket);
         }
+        if (batchPermits != null) {
+            // A batch the stopped job never reported on would otherwise keep its permit from the connection's other
+            // batchers for good
+            batchPermits.release(heldBatchPermits.getAndSet(0));
+        }
+        if (deadLetterSpool != null) {
+            deadLetterSpool.close();
+        }
     }
 
     public int getSignature() {
         return this.signature;
     }
 
+    /**
+     * Claims this batcher for an insert, so that it cannot be evicted until {@link #returnLease()} is called.
+     *
+     * @return false if the batcher has already been retired for eviction, in which case it must not be used
+     */
+    public boolean tryLease()
+    {
+        int current;
+        do
+        {
+            current = leases.get();
+            if (current == RETIRED)
+            {
+                return false;
+            }
+        }
+        while (!leases.compareAndSet(current, current + 1));
+        lastUsedNanos = System.nanoTime();
+        return true;
+    }
+
+    public void returnLease()
+    {
+        leases.decrementAndGet();
+    }
+
+    /**
+     * Marks this batcher as chosen for eviction, which only succeeds while no insert holds a lease on it. Once retired,
+     * the batcher can no longer be leased and should be released.
+     */
+    public boolean tryRetire()
+    {
+        return leases.compareAndSet(0, RETIRED);
+    }
+
+    public long getLastUsedNanos()
+    {
+        return lastUsedNanos;
+    }
+
     /**
      * Actually does the work of passing the document on to DMSDK to do its
      * thing
      *
      * @param outURI -- the URI to be used for the document being inserted
+     * @param outputCollections -- comma-separated collections for the document
+     * @param outputPermissions -- comma-separated alternating roles and capabilities for the document
+     * @param outputQuality -- the quality of the document
      * @param documentStream -- the InputStream containing the document to be inserted...comes from Mule
      * @return jobTicketID
      */
-    InputStream doInsert(String outURI, InputStream documentStream)
+    InputStream doInsert(String outURI, String outputCollections, String outputPermissions, int outputQuality,
+                         InputStream documentStream)
     {
         // Add the InputStream to the DMSDK WriteBatcher object
-        batcher.addAs(outURI, metadataHandle, new InputStreamHandle(documentStream));
+        add(outURI, outputCollections, outputPermissions, outputQuality, new InputStreamHandle(documentStream));
 
         // Return the job ticket ID so it can be used to retrieve the document in the future
-        String jsonout = "\"" + jobTicket.getJobId() + "\"";
+        String jsonout = "\"" + getJobId() + "\"";
         LOGGER.debug("importDocs getJobId outcome: {}", jsonout);
         
         Charset cs = StandardCharsets.UTF_8;
         return new ByteArrayInputStream(jsonout.getBytes(cs));
     }
 
+    /**
+     * Queues a document in the WriteBatcher; used directly when many documents are added in one operation.
+     */
+    void add(String outURI, String outputCollections, String outputPermissions, int outputQuality,
+             AbstractWriteHandle contentHandle)
+    {
+        acquireInFlightDocument();
+        try
+        {
+            DocumentMetadataHandle metadataHandle = getMetadataHandle(outputCollections, outputPermissions, outputQuality);
+            AbstractWriteHandle content = contentHandle;
+            long size = 0;
+            // A document is only read into memory when its size is needed, or when its batch may have to be sent
+            // again: retried or spooled. The memory this takes is bounded by the batch size and thread count, or by
+            // the Max In-Flight Documents. The content is read outside the lock, so that slow Mule streams don't hold
+            // up other inserts. Otherwise a stream is passed on as it is, and counts as no bytes.
+            BytesHandle sizedHandle = bufferContent || rateLimiter.getBytesPerSecond() > 0 ?
+                toBytesHandle(contentHandle) : null;
+            if (sizedHandle != null)
+            {
+                content = sizedHandle;
+                size = sizedHandle.get() != null ? sizedHandle.get().length : 0;
+            }
+            rateLimiter.acquire(size);
+            addPending(outURI, metadataHandle, content, size);
+        }
+        catch (RuntimeException ex)
+        {
+            // The document never reached a batch, so no batch listener will give its permit back
+            releaseInFlightDocuments(1);
+            throw ex;
+        }
+    }
+
+    private void addPending(String outURI, DocumentMetadataWriteHandle metadataHandle, AbstractWriteHandle contentHandle,
+                            long size)
+    {
+        if (!trackPending)
+        {
+            // The WriteBatcher is thread-safe, so inserts don't wait on each other, nor on a batch that the WriteBatcher
+            // writes on the inserting thread. A batcher is only released without the lock once no insert holds a lease on
+            // it, or once its connection is invalidated, when the stopped WriteBatcher fails the insert instead.
+            checkNotReleased(outURI);
+            batcher.addAs(outURI, metadataHandle, contentHandle);
+            return;
+        }
+        // The WriteBatcher is added to under the lock as well, so that the mirrored count always matches its partial
+        // batch; a document added just after a flush would otherwise sit unflushed in the next one
+        pendingLock.lock();
+        try
+        {
+            checkNotReleased(outURI);
+            if (maxBatchBytes > 0 && pendingDocuments > 0 && pendingBytes + size > maxBatchBytes)
+            {
+                // Write what is pending first, so that the batch stays within the limit; a single document larger
+                // than the limit is still written, in a batch of its own
+                dispatchPending();
+            }
+            if (uriIndex != null && replaceHeldDocument(outURI, metadataHandle, contentHandle, size))
+            {
+                return;
+            }
+            int effectiveBatchSize = getEffectiveBatchSize();
+            boolean completesBatch = pendingDocuments + 1 >= effectiveBatchSize;
+            if (completesBatch)
+            {
+                awaitBatchSlot();
+            }
+            if (uriIndex != null)
+            {
+                holdDocument(outURI, metadataHandle, contentHandle, size);
+            }
+            else
+            {
+                try
+                {
+                    batcher.addAs(outURI, metadataHandle, contentHandle);
+                }
+                catch (RuntimeException ex)
+                {
+                    if (completesBatch)
+                    {
+                        releaseBatchSlot();
+                    }
+                    throw ex;
+                }
+            }
+            if (pendingDocuments == 0)
+            {
+                firstPendingNanos = nanoTime();
+            }
+            pendingDocuments++;
+            pendingBytes += size;
+            if (uriIndex == null && pendingDocuments >= batchSize)
+            {
+                // The WriteBatcher has started writing the full batch on its own
+                clearPending();
+            }
+            else if (completesBatch)
+            {
+                // The adaptive batch size is smaller than the WriteBatcher's, or the batch is being held
+                handOffHeldDocuments();
+                batcher.flushAsync();
+                clearPending();
+            }
+        }
+        finally
+        {
+            pendingLock.unlock();
+        }
+    }
+
+    private void checkNotReleased(String outURI)
+    {
+        if (released.get())
+        {
+            // Fail the insert rather than add to a stopped batcher, so that it can be retried on a new connection
+            throw new MarkLogicConnectorException(String.format(
+                "The batcher for %s has been released, as its connection was closed or invalidated", outURI));
+        }
+    }
+
+    /**
+     * Replaces the document with the same URI in the pending batch, if there is one, as MarkLogic rejects a batch
+     * that writes a URI twice. Only the last write of the URI is kept.
+     */
+    private boolean replaceHeldDocument(String uri, DocumentMetadataWriteHandle metadataHandle,
+                                        AbstractWriteHandle contentHandle, long size)
+    {
+        int position = uriIndex.get(uri);
+        if (position < 0)
+        {
+            return false;
+        }
+        LOGGER.debug("Replacing the pending write of {} with a later one", uri);
+        pendingBytes += size - heldSizes[position];
+        // The replaced content will never be read, so a stream it holds is released now
+        closeContent(heldContent[position]);
+        heldMetadata[position] = metadataHandle;
+        heldContent[position] = contentHandle;
+        heldSizes[position] = size;
+        // The replaced document will never be written, so its permit is given back now
+        releaseInFlightDocuments(1);
+        return true;
+    }
+
+    private void holdDocument(String uri, DocumentMetadataWriteHandle metadataHandle, AbstractWriteHandle contentHandle,
+                              long size)
+    {
+        int position = uriIndex.size();
+        heldUris[position] = uri;
+        heldMetadata[position] = metadataHandle;
+        heldContent[position] = contentHandle;
+        heldSizes[position] = size;
+        uriIndex.put(uri, position);
+    }
+
+    /**
+     * Reads the content into memory so that its size is known, keeping its format and mime type. Returns null when
+     * the handle can't be read into a buffer, in which case the document doesn't count towards the byte limit.
+     */
+    private static BytesHandle toBytesHandle(AbstractWriteHandle contentHandle)
+    {
+        if (contentHandle instanceof BytesHandle)
+        {
+            return (BytesHandle) contentHandle;
+        }
+        if (!(contentHandle instanceof BufferableHandle))
+        {
+            return null;
+        }
+        BytesHandle bytesHandle = new BytesHandle(((BufferableHandle) contentHandle).toBuffer());
+        // The Mule stream has been read to the end, and only the buffer is written from here on
+        closeContent(contentHandle);
+        if (contentHandle instanceof BaseHandle)
+        {
+            BaseHandle<?, ?> baseHandle = (BaseHandle<?, ?>) contentHandle;
+            bytesHandle.setFormat(baseHandle.getFormat());
+            bytesHandle.setMimetype(baseHandle.getMimetype());
+        }
+        return bytesHandle;
+    }
+
+    private static void closeContent(AbstractWriteHandle contentHandle)
+    {
+        InputStream stream = contentHandle instanceof InputStreamHandle ? ((InputStreamHandle) contentHandle).get() : null;
+        if (stream == null)
+        {
+            return;
+        }
+        try
+        {
+            stream.close();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.warn("Unable to close a document's content stream", ex);
+        }
+    }
+
+    String getJobId()
+    {
+        return jobTicket.getJobId();
+    }
+
+    /**
+     * Adds documents that a batcher on an invalidated connection accepted but could not write, removing each from the
+     * list once it has been added. Should one fail to be added, it and the rest are spooled when a dead letter
+     * directory is configured; otherwise the failure is thrown, and the documents not added are left in the list.
+     */
+    public void resubmit(List<WriteEvent> documents)
+    {
+        Iterator<WriteEvent> iterator = documents.iterator();
+        while (iterator.hasNext())
+        {
+            WriteEvent document = iterator.next();
+            try
+            {
+                addPrepared(document.getTargetUri(), document.getMetadata(), document.getContent());
+            }
+            catch (RuntimeException ex)
+            {
+                if (deadLetterSpool == null)
+                {
+                    throw new MarkLogicConnectorException(String.format(
+                        "Unable to resubmit document %s; %d documents were not resubmitted", document.getTargetUri(),
+                        documents.size()), ex);
+                }
+                for (WriteEvent rejected : documents)
+                {
+                    rejectDocument(rejected, ex);
+                }
+                deadLetterSpool.roll();
+                // Everything left has been spooled, so there is nothing more for the caller to keep
+                documents.clear();
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Adds a document that was spooled because it could not be written.
+     */
+    void replay(DeadLetterSpool.DeadLetter letter)
+    {
+        DocumentMetadataHandle metadataHandle = new DocumentMetadataHandle();
+        if (letter.metadata != null)
+        {
+            metadataHandle.fromBuffer(letter.metadata);
+        }
+        BytesHandle contentHandle = new BytesHandle(letter.content);
+        if (letter.format != null)
+        {
+            contentHandle.setFormat(Format.valueOf(letter.format));
+        }
+        if (letter.mimetype != null)
+        {
+            contentHandle.setMimetype(letter.mimetype);
+        }
+        addPrepared(letter.uri, metadataHandle, contentHandle);
+    }
+
+    // Adds a document whose metadata and content are already in their final form
+    private void addPrepared(String uri, DocumentMetadataWriteHandle metadataHandle, AbstractWriteHandle content)
+    {
+        acquireInFlightDocument();
+        try
+        {
+            long size = content instanceof BytesHandle && ((BytesHandle) content).get() != null ?
+                ((BytesHandle) content).get().length : 0;
+            rateLimiter.acquire(size);
+            addPending(uri, metadataHandle, content, size);
+        }
+        catch (RuntimeException ex)
+        {
+            releaseInFlightDocuments(1);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes every document added so far, and waits until they have been written or rejected.
+     */
+    void flushAndWait()
+    {
+        pendingLock.lock();
+        try
+        {
+            if (pendingDocuments > 0)
+            {
+                awaitBatchSlot();
+            }
+            handOffHeldDocuments();
+            clearPending();
+        }
+        finally
+        {
+            pendingLock.unlock();
+        }
+        batcher.flushAndWait();
+    }
+
+    private void retainUnwrittenDocuments(WriteEvent[] documents)
+    {
+        retainedDocumentCount.addAndGet(documents.length);
+        for (WriteEvent document : documents)
+        {
+            if (document.getContent() instanceof InputStreamHandle || !(document.getContent() instanceof BufferableHandle))
+            {
+                // Content is only buffered when it is added if retries, dead lettering or a byte limit need it; a
+                // stream that wasn't was consumed by the failed request
+                LOGGER.error("Document {} could not be written before the connection was invalidated, and its " +
+                    "content can't be resent", document.getTargetUri());
+            }
+            else
+            {
+                unwrittenDocuments.add(document);
+            }
+        }
+    }
+
+    /**
+     * @return the number of documents that failed to be written after the connection was invalidated, and so are only
+     * held in memory for the next connection, if at all
+     */
+    long getRetainedDocumentCount()
+    {
+        return retainedDocumentCount.get();
+    }
+
+    /**
+     * Returns the documents that could not be written after the connection was invalidated, so that they can be
+     * resubmitted on a new connection. Should be called once the batcher has been released.
+     */
+    public List<WriteEvent> drainUnwrittenDocuments()
+    {
+        List<WriteEvent> documents = new ArrayList<>();
+        WriteEvent document;
+        while ((document = unwrittenDocuments.poll()) != null)
+        {
+            documents.add(document);
+        }
+        return documents;
+    }
+
     @Override
     public void markLogicConnectionInvalidated()
     {
-        LOGGER.info("MarkLogic connection invalidated... reinitializing insertion batcher...");
+        LOGGER.info("MarkLogic connection invalidated... documents that can't be written will be handed to the next connection");
         batcherRequiresReinit = true;
     }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@
  */
 package com.marklogic.mule.extension.connector.internal.operation;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -21,30 +22,44 @@ import com.marklogic.client.datamovement.DataMovementManager;
 import com.marklogic.client.datamovement.DeleteListener;
 import com.marklogic.client.datamovement.QueryBatcher;
 import com.marklogic.client.document.ServerTransform;
+import com.marklogic.client.io.BytesHandle;
 import com.marklogic.client.io.Format;
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.io.JacksonHandle;
 import com.marklogic.client.io.SearchHandle;
 import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
 import com.marklogic.client.query.QueryDefinition;
 import com.marklogic.client.query.QueryManager;
 import com.marklogic.client.query.RawCtsQueryDefinition;
 import com.marklogic.client.query.RawStructuredQueryDefinition;
 import com.marklogic.client.query.StructuredQueryDefinition;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicOutputMode;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicPagingStrategy;
 import com.marklogic.mule.extension.connector.api.operation.MarkLogicQueryFormat;
 import com.marklogic.mule.extension.connector.api.operation.MarkLogicQueryStrategy;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicSplitFormat;
 import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
 import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
 import com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider;
 import com.marklogic.mule.extension.connector.internal.metadata.MarkLogicAnyMetadataResolver;
 import com.marklogic.mule.extension.connector.internal.metadata.MarkLogicSelectMetadataResolver;
 import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicExportListener;
+import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicPageIterator;
+import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicQueryBatcherIterator;
 import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicResultSetCloser;
 import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicResultSetIterator;
+import com.marklogic.mule.extension.connector.internal.result.resultset.RecordExtractor;
 import org.apache.commons.jexl3.JexlBuilder;
 import org.apache.commons.jexl3.JexlContext;
 import org.apache.commons.jexl3.JexlEngine;
 import org.apache.commons.jexl3.JexlExpression;
 import org.apache.commons.jexl3.MapContext;
 import org.mule.runtime.api.exception.MuleException;
+import org.mule.runtime.api.metadata.TypedValue;
+import org.mule.runtime.api.streaming.bytes.CursorStreamProvider;
+import org.mule.runtime.api.streaming.object.CursorIteratorProvider;
 import org.mule.runtime.extension.api.annotation.error.Throws;
 import org.mule.runtime.extension.api.annotation.metadata.OutputResolver;
 import org.mule.runtime.extension.api.annotation.param.Config;
@@ -56,17 +71,30 @@ import org.mule.runtime.extension.api.annotation.param.display.DisplayName;
 import org.mule.runtime.extension.api.annotation.param.display.Example;
 import org.mule.runtime.extension.api.annotation.param.display.Summary;
 import org.mule.runtime.extension.api.annotation.param.display.Text;
+import org.mule.runtime.extension.api.runtime.operation.Result;
 import org.mule.runtime.extension.api.runtime.streaming.PagingProvider;
+import org.mule.runtime.extension.api.runtime.streaming.StreamingHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static org.mule.runtime.extension.api.annotation.param.MediaType.ANY;
 import static org.mule.runtime.extension.api.annotation.param.MediaType.APPLICATION_JSON;
@@ -87,15 +115,35 @@ public class MarkLogicOperations
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicOperations.class);
     private static final String OUTPUT_URI_TEMPLATE = "%s%s%s"; // URI Prefix + basenameUri + URI Suffix
+    private static final int JEXL_EXPRESSION_CACHE_SIZE = 256;
+    private static final String BULK_CONTENT = "content";
+    private static final String BULK_URI = "uri";
+    private static final String BULK_COLLECTIONS = "collections";
+    private static final String BULK_PERMISSIONS = "permissions";
+    private static final String BULK_QUALITY = "quality";
+    private static final int JEXL_EXPRESSION_CACHE_MAX_LENGTH = 16384;
 
     private ObjectMapper jsonFactory = new ObjectMapper();
 
+    // Shared by every operations instance, as the engine and the expressions it compiles are thread-safe
+    private static final JexlEngine JEXL_ENGINE = new JexlBuilder().create();
+
+    // The compiled StructuredQueryBuilder expressions of the most recently used query strings, so that a query is only
+    // parsed the first time it is seen. Queries longer than JEXL_EXPRESSION_CACHE_MAX_LENGTH are compiled every time.
+    private static final Map<String, JexlExpression> JEXL_EXPRESSIONS = Collections.synchronizedMap(
+        new LinkedHashMap<String, JexlExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JexlExpression> eldest) {
+                return size() > JEXL_EXPRESSION_CACHE_SIZE;
+            }
+        });
+
  /**
  * <p>Loads JSON, XML, text, or binary document content asynchronously into MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a> returning the DMSDK <a target="_blank" href="https://docs.marklogic.com/javadoc/client/com/marklogic/client/datamovement/JobTicket.html">JobTicket</a> ID used to insert the contents into MarkLogic.</p>
  * @param markLogicConfiguration The MarkLogic configuration details
  * @param connection The MarkLogic connection details
  * @param docPayloads The content of the input files to be used for ingestion into MarkLogic.
- * @param outputCollections A comma-separated list of output collections used during ingestion.
+ * @param outputCollections A comma-separated list of output collections used during ingestion; may be computed per document, e.g. from the payload.
  * @param outputPermissions A comma-separated list of roles and capabilities used during ingestion.
  * @param outputQuality A number indicating the quality of the persisted documents.
  * @param outputUriPrefix The URI prefix, used to prepend and concatenate basenameUri.
@@ -122,7 +170,7 @@ public class MarkLogicOperations
             @Example("#[payload]")
             @Content InputStream docPayloads,
             @Optional(defaultValue = "null")
-            @Summary("A comma-separated list of output collections used during ingestion.")
+            @Summary("A comma-separated list of output collections used during ingestion; may be computed per document, e.g. from the payload.")
             @Example("mulesoft-test") String outputCollections,
             @Optional(defaultValue = "rest-reader,read,rest-writer,update")
             @Summary("A comma-separated list of roles and capabilities used during ingestion.")
@@ -158,15 +206,540 @@ public class MarkLogicOperations
             )
     {
         // Get a handle to the Insertion batch manager
-        MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(markLogicConfiguration, outputCollections, outputPermissions, outputQuality, temporalCollection, serverTransform, serverTransformParams);
+        MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(markLogicConfiguration, temporalCollection, serverTransform, serverTransformParams);
         String outURI = generateOutputUri(outputUriPrefix, outputUriSuffix, generateOutputUriBasename, basenameUri);
 
-        // Actually do the insert and return the result
-        return batcher.doInsert(outURI, docPayloads);
+        // Actually do the insert and return the result; the lease keeps the batcher from being evicted until then
+        try {
+            return batcher.doInsert(outURI, outputCollections, outputPermissions, outputQuality, docPayloads);
+        }
+        finally {
+            batcher.returnLease();
+        }
+    }
+
+ /**
+ * <p>Loads many JSON, XML, text, or binary documents asynchronously into MarkLogic in one call, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>, returning a JSON object with the DMSDK <a target="_blank" href="https://docs.marklogic.com/javadoc/client/com/marklogic/client/datamovement/JobTicket.html">JobTicket</a> ID and the number of documents added.</p>
+ * <p>Each item is either the content of a document, or an object with a "content" field and optional "uri", "collections", "permissions" and "quality" fields that override the operation's defaults for that document.</p>
+ * <p>The documents may be a list, or a streamed collection such as the output of a streaming DataWeave script, which is read one item at a time so that only the documents waiting to be written are held in memory. If a document can't be added, the error reports how many documents before it were added; those are still written.</p>
+ * @param markLogicConfiguration The MarkLogic configuration details
+ * @param connection The MarkLogic connection details
+ * @param documents The documents to be used for ingestion into MarkLogic, as a list or a streamed collection.
+ * @param outputCollections A comma-separated list of output collections used for documents that do not specify their own.
+ * @param outputPermissions A comma-separated list of roles and capabilities used for documents that do not specify their own.
+ * @param outputQuality A number indicating the quality of documents that do not specify their own.
+ * @param outputUriPrefix The URI prefix, used to prepend and concatenate the generated basename of documents without a URI.
+ * @param outputUriSuffix The URI suffix, used to append and concatenate the generated basename of documents without a URI.
+ * @param temporalCollection The temporal collection imported documents will be loaded into.
+ * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
+ * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @return java.io.InputStream
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = APPLICATION_JSON, strict = true)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Bulk Import Docs")
+    // sonarqube flags this because of the number of args, which mirror those of importDocs
+    @SuppressWarnings("java:S107")
+    public InputStream importDocsBulk(
+            @Config MarkLogicConfiguration markLogicConfiguration,
+            @Connection MarkLogicConnection connection,
+            @DisplayName("Documents")
+            @Summary("The documents to be used for ingestion into MarkLogic, as a list or a streamed collection; each is either document content or an object with content, uri, collections, permissions and quality fields.")
+            @Example("#[payload]")
+            @Content Object documents,
+            @Optional(defaultValue = "null")
+            @Summary("A comma-separated list of output collections used for documents that do not specify their own.")
+            @Example("mulesoft-test") String outputCollections,
+            @Optional(defaultValue = "rest-reader,read,rest-writer,update")
+            @Summary("A comma-separated list of roles and capabilities used for documents that do not specify their own.")
+            @Example("myRole,read,myRole,update") String outputPermissions,
+            @Optional(defaultValue = "1")
+            @Summary("A number indicating the quality of documents that do not specify their own.")
+            @Example("1") int outputQuality,
+            @Optional(defaultValue = "/")
+            @Summary("The URI prefix, used to prepend and concatenate the generated basename of documents without a URI.")
+            @Example("/mulesoft/") String outputUriPrefix,
+            @Optional(defaultValue = "")
+            @Summary("The URI suffix, used to append and concatenate the generated basename of documents without a URI.")
+            @Example(".json") String outputUriSuffix,
+            @DisplayName("Temporal collection")
+            @Optional(defaultValue = "null")
+            @Summary("The temporal collection imported documents will be loaded into.")
+            @Example("myTemporalCollection") String temporalCollection,
+            @Summary("The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.")
+            @Optional(defaultValue = "null")
+            @Example("ml:sjsInputFlow") String serverTransform,
+            @Summary("A comma-separated list of alternating transform parameter names and values.")
+            @Optional(defaultValue = "null")
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity")
+            String serverTransformParams
+            )
+    {
+        // One lookup and one lease for all of the documents
+        MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(markLogicConfiguration, temporalCollection, serverTransform, serverTransformParams);
+        long count;
+        try {
+            count = addBulkDocuments(batcher, documents, outputCollections, outputPermissions, outputQuality, outputUriPrefix, outputUriSuffix);
+        }
+        finally {
+            batcher.returnLease();
+        }
+
+        return toImportResult(batcher, count);
+    }
+
+    /**
+     * Adds each of the documents to the batcher as it is read, so that a streamed collection is never held in memory
+     * as a whole.
+     *
+     * @return the number of documents added
+     */
+    // sonarqube flags this because of the number of args, but they are the defaults each document may override
+    @SuppressWarnings("java:S107")
+    long addBulkDocuments(MarkLogicInsertionBatcher batcher, Object documents, String outputCollections,
+                          String outputPermissions, int outputQuality, String outputUriPrefix, String outputUriSuffix) {
+        Object items = unwrap(documents);
+        Closeable source = null;
+        Iterator<?> iterator;
+        if (items instanceof CursorIteratorProvider) {
+            iterator = ((CursorIteratorProvider) items).openCursor();
+            source = (Closeable) iterator;
+        } else if (items instanceof Iterator) {
+            iterator = (Iterator<?>) items;
+        } else if (items instanceof Iterable) {
+            iterator = ((Iterable<?>) items).iterator();
+        } else if (items instanceof CursorStreamProvider || items instanceof InputStream) {
+            // A JSON array that Mule hasn't parsed is read one element at a time rather than parsed into a list
+            InputStream payload = items instanceof CursorStreamProvider ? ((CursorStreamProvider) items).openCursor() : (InputStream) items;
+            try {
+                DocumentSplitter splitter = new DocumentSplitter(payload, MarkLogicSplitFormat.JSON_ARRAY, jsonFactory);
+                iterator = splitter.iterator();
+                source = splitter;
+            } catch (IOException ex) {
+                closeQuietly(payload);
+                throw new MarkLogicConnectorException("Unable to read the documents as a JSON array", ex);
+            }
+        } else {
+            throw new MarkLogicConnectorException(String.format("The documents must be a list, a streamed collection or a JSON array, not %s",
+                items == null ? "null" : items.getClass().getName()));
+        }
+
+        long count = 0;
+        try {
+            while (iterator.hasNext()) {
+                addBulkDocument(batcher, iterator.next(), outputCollections, outputPermissions, outputQuality, outputUriPrefix, outputUriSuffix);
+                count++;
+            }
+        } catch (RuntimeException ex) {
+            // The documents already added are still written, so the caller needs to know how far the import got
+            throw new MarkLogicConnectorException(String.format(
+                "Unable to add document %d; the %d documents before it were added to job %s", count + 1, count, batcher.getJobId()), ex);
+        } finally {
+            if (source != null) {
+                closeQuietly(source);
+            }
+        }
+        return count;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to close the documents being imported", ex);
+        }
+    }
+
+ /**
+ * <p>Splits a single large payload into documents with a streaming parser and loads them asynchronously into MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>, returning a JSON object with the DMSDK <a target="_blank" href="https://docs.marklogic.com/javadoc/client/com/marklogic/client/datamovement/JobTicket.html">JobTicket</a> ID and the number of documents added.</p>
+ * <p>Only the record being read is held in memory, so payloads of any size can be loaded without splitting them first. Every record is written as a JSON document.</p>
+ * @param markLogicConfiguration The MarkLogic configuration details
+ * @param connection The MarkLogic connection details
+ * @param payload The newline-delimited JSON, JSON array or CSV content to be split into documents.
+ * @param format How the payload is split into documents.
+ * @param uriField The field of each record used as the document's URI basename; a UUID is used when not set or missing.
+ * @param outputCollections A comma-separated list of output collections used during ingestion.
+ * @param outputPermissions A comma-separated list of roles and capabilities used during ingestion.
+ * @param outputQuality A number indicating the quality of the persisted documents.
+ * @param outputUriPrefix The URI prefix, used to prepend and concatenate the basename.
+ * @param outputUriSuffix The URI suffix, used to append and concatenate the basename.
+ * @param temporalCollection The temporal collection imported documents will be loaded into.
+ * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
+ * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @return java.io.InputStream
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = APPLICATION_JSON, strict = true)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Split And Import Docs")
+    // sonarqube flags this because of the number of args, which mirror those of importDocs
+    @SuppressWarnings("java:S107")
+    public InputStream importSplitDocs(
+            @Config MarkLogicConfiguration markLogicConfiguration,
+            @Connection MarkLogicConnection connection,
+            @DisplayName("Payload")
+            @Summary("The newline-delimited JSON, JSON array or CSV content to be split into documents.")
+            @Example("#[payload]")
+            @Content InputStream payload,
+            @DisplayName("Split Format")
+            @Summary("How the payload is split into documents.") MarkLogicSplitFormat format,
+            @DisplayName("URI Field")
+            @Optional
+            @Summary("The field of each record used as the document's URI basename; a UUID is used when not set or missing.")
+            @Example("id") String uriField,
+            @Optional(defaultValue = "null")
+            @Summary("A comma-separated list of output collections used during ingestion.")
+            @Example("mulesoft-test") String outputCollections,
+            @Optional(defaultValue = "rest-reader,read,rest-writer,update")
+            @Summary("A comma-separated list of roles and capabilities used during ingestion.")
+            @Example("myRole,read,myRole,update") String outputPermissions,
+            @Optional(defaultValue = "1")
+            @Summary("A number indicating the quality of the persisted documents.")
+            @Example("1") int outputQuality,
+            @Optional(defaultValue = "/")
+            @Summary("The URI prefix, used to prepend and concatenate the basename.")
+            @Example("/mulesoft/") String outputUriPrefix,
+            @Optional(defaultValue = ".json")
+            @Summary("The URI suffix, used to append and concatenate the basename.")
+            @Example(".json") String outputUriSuffix,
+            @DisplayName("Temporal collection")
+            @Optional(defaultValue = "null")
+            @Summary("The temporal collection imported documents will be loaded into.")
+            @Example("myTemporalCollection") String temporalCollection,
+            @Summary("The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.")
+            @Optional(defaultValue = "null")
+            @Example("ml:sjsInputFlow") String serverTransform,
+            @Summary("A comma-separated list of alternating transform parameter names and values.")
+            @Optional(defaultValue = "null")
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity")
+            String serverTransformParams
+            )
+    {
+        MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(markLogicConfiguration, temporalCollection, serverTransform, serverTransformParams);
+        long count;
+        try {
+            count = addSplitDocuments(batcher, payload, format, uriField, outputCollections, outputPermissions,
+                outputQuality, outputUriPrefix, outputUriSuffix);
+        }
+        finally {
+            batcher.returnLease();
+        }
+        return toImportResult(batcher, count);
+    }
+
+    /**
+     * Adds each record of the payload to the batcher, returning the number added.
+     */
+    // sonarqube flags this because of the number of args, which mirror those of importSplitDocs
+    @SuppressWarnings("java:S107")
+    long addSplitDocuments(MarkLogicInsertionBatcher batcher, InputStream payload, MarkLogicSplitFormat format,
+                           String uriField, String outputCollections, String outputPermissions, int outputQuality,
+                           String outputUriPrefix, String outputUriSuffix) {
+        long count = 0;
+        try (DocumentSplitter splitter = new DocumentSplitter(payload, format, jsonFactory)) {
+            JsonNode record;
+            while ((record = splitter.next()) != null) {
+                JsonNode basename = MarkLogicConfiguration.isDefined(uriField) ? record.get(uriField) : null;
+                boolean hasBasename = basename != null && basename.isValueNode() && !basename.asText().isEmpty();
+                String outURI = generateOutputUri(outputUriPrefix, outputUriSuffix, !hasBasename, hasBasename ? basename.asText() : null);
+                batcher.add(outURI, outputCollections, outputPermissions, outputQuality, new JacksonHandle(record));
+                count++;
+            }
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException(String.format("Unable to read record %d of the %s payload", count + 1, format), ex);
+        } catch (RuntimeException ex) {
+            // The records already added are still written, so the caller needs to know how far the import got
+            throw new MarkLogicConnectorException(String.format(
+                "Unable to add record %d; the %d records before it were added to job %s", count + 1, count, batcher.getJobId()), ex);
+        }
+        return count;
+    }
+
+    // The values adaptive batching has currently chosen, and the measurements they are based on
+    private static void putAdaptiveBatching(ObjectNode rootObj, MarkLogicInsertionBatcher batcher) {
+        if (batcher.isAdaptive()) {
+            ObjectNode adaptive = rootObj.putObject("adaptiveBatching");
+            adaptive.put("batchSize", batcher.getEffectiveBatchSize());
+            adaptive.put("concurrency", batcher.getEffectiveConcurrency());
+            adaptive.put("documentsPerSecond", Math.round(batcher.getMeasuredThroughput()));
+            adaptive.put("lastBatchLatencyMillis", batcher.getLastBatchLatencyMillis());
+        }
+    }
+
+    private InputStream toImportResult(MarkLogicInsertionBatcher batcher, long count) {
+        ObjectNode rootObj = jsonFactory.createObjectNode();
+        rootObj.put("jobTicketId", batcher.getJobId());
+        rootObj.put("importCount", count);
+        putAdaptiveBatching(rootObj, batcher);
+        LOGGER.debug("Import outcome: {}", rootObj);
+        try {
+            return new ByteArrayInputStream(jsonFactory.writeValueAsBytes(rootObj));
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException("Unable to write the import result", ex);
+        }
+    }
+
+    // sonarqube flags this because of the number of args, but they are the defaults each document may override
+    @SuppressWarnings("java:S107")
+    private void addBulkDocument(MarkLogicInsertionBatcher batcher, Object document, String outputCollections,
+                                 String outputPermissions, int outputQuality, String outputUriPrefix, String outputUriSuffix) {
+        Object item = unwrap(document);
+        if (item instanceof JsonNode) {
+            // An element of a JSON array payload, read as a tree
+            item = jsonFactory.convertValue(item, Object.class);
+        }
+        if (item instanceof Map && ((Map<?, ?>) item).containsKey(BULK_CONTENT)) {
+            Map<?, ?> fields = (Map<?, ?>) item;
+            Object uri = unwrap(fields.get(BULK_URI));
+            Object collections = unwrap(fields.get(BULK_COLLECTIONS));
+            Object permissions = unwrap(fields.get(BULK_PERMISSIONS));
+            Object quality = unwrap(fields.get(BULK_QUALITY));
+            batcher.add(
+                uri != null ? uri.toString() : generateOutputUri(outputUriPrefix, outputUriSuffix, true, null),
+                collections != null ? joinValues(collections) : outputCollections,
+                permissions != null ? joinValues(permissions) : outputPermissions,
+                quality instanceof Number ? ((Number) quality).intValue() : outputQuality,
+                toContentHandle(fields.get(BULK_CONTENT)));
+        }
+        else {
+            batcher.add(generateOutputUri(outputUriPrefix, outputUriSuffix, true, null), outputCollections,
+                outputPermissions, outputQuality, toContentHandle(item));
+        }
+    }
+
+    private static Object unwrap(Object value) {
+        return value instanceof TypedValue ? ((TypedValue<?>) value).getValue() : value;
+    }
+
+    // Collections and permissions may be given as arrays as well as comma-separated strings
+    private static String joinValues(Object values) {
+        if (values instanceof Collection) {
+            return ((Collection<?>) values).stream().map(String::valueOf).collect(Collectors.joining(","));
+        }
+        return values.toString();
+    }
+
+    private AbstractWriteHandle toContentHandle(Object value) {
+        Object content = unwrap(value);
+        if (content instanceof CursorStreamProvider) {
+            return new InputStreamHandle(((CursorStreamProvider) content).openCursor());
+        }
+        if (content instanceof InputStream) {
+            return new InputStreamHandle((InputStream) content);
+        }
+        if (content instanceof byte[]) {
+            return new BytesHandle((byte[]) content);
+        }
+        if (content instanceof String) {
+            return new StringHandle((String) content);
+        }
+        if (content instanceof Map || content instanceof Collection) {
+            return new JacksonHandle(jsonFactory.valueToTree(content));
+        }
+        throw new MarkLogicConnectorException(String.format("Unsupported document content type: %s",
+            content == null ? "null" : content.getClass().getName()));
+    }
+
+ /**
+ * <p>Replays the documents that were spooled to the configuration's dead letter directory because they could not be written, loading them asynchronously into MarkLogic via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>, and returning a JSON object with the number of documents and segments replayed.</p>
+ * <p>Each document is written with the temporal collection and transform it was originally imported with. A segment is claimed before it is read, so that concurrent replays skip it, and is deleted once its documents have been written or rejected; documents that are rejected again are spooled to a new segment. Documents are confirmed a round of batches, Batch Size times Thread Count documents, at a time. If the connection is invalidated while a segment is being replayed, the documents after the last confirmed ones are kept and an error is raised, so that they can be replayed again. Replay is therefore at-least-once: the documents of the round that was cut short may be written twice.</p>
+ * @param markLogicConfiguration The MarkLogic configuration details
+ * @param connection The MarkLogic connection details
+ * @param documentsPerSecond The maximum number of documents replayed per second; 0 replays them as fast as they can be written.
+ * @return java.io.InputStream
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = APPLICATION_JSON, strict = true)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Replay Dead Letters")
+    public InputStream replayDeadLetters(
+            @Config MarkLogicConfiguration markLogicConfiguration,
+            @Connection MarkLogicConnection connection,
+            @DisplayName("Documents Per Second")
+            @Optional(defaultValue = "0")
+            @Summary("The maximum number of documents replayed per second; 0 replays them as fast as they can be written.")
+            @Example("500") int documentsPerSecond
+            )
+    {
+        if (!MarkLogicConfiguration.isDefined(markLogicConfiguration.getDeadLetterDirectory())) {
+            throw new MarkLogicConnectorException("No Dead Letter Directory is configured");
+        }
+        Path directory = Paths.get(markLogicConfiguration.getDeadLetterDirectory());
+        long intervalNanos = documentsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / documentsPerSecond : 0;
+
+        // Documents imported with different temporal collections and transforms are replayed through different batchers
+        Map<List<String>, MarkLogicInsertionBatcher> batchers = new HashMap<>();
+        // As many documents as may be written twice should the replay be cut short
+        int confirmEvery = Math.max(1, markLogicConfiguration.getBatchSize()) * Math.max(1, markLogicConfiguration.getThreadCount());
+        long[] count = {0};
+        long[] nextNanos = {System.nanoTime()};
+        int segmentCount = 0;
+        try {
+            for (Path segment : DeadLetterSpool.completedSegments(directory)) {
+                DeadLetterSpool.ClaimedSegment claimed = DeadLetterSpool.claim(segment);
+                if (claimed == null) {
+                    // Being replayed by another flow
+                    continue;
+                }
+                try {
+                    long retainedBefore = retainedDocumentCount(batchers);
+                    int[] unconfirmed = {0};
+                    claimed.read((letter, nextOffset) -> {
+                        nextNanos[0] = pace(nextNanos[0], intervalNanos);
+                        batchers.computeIfAbsent(
+                            Arrays.asList(letter.temporalCollection, letter.serverTransform, letter.serverTransformParams),
+                            key -> connection.getInsertionBatcher(markLogicConfiguration, key.get(0), key.get(1), key.get(2))
+                        ).replay(letter);
+                        count[0]++;
+                        if (++unconfirmed[0] >= confirmEvery) {
+                            confirmReplayed(batchers, claimed, retainedBefore, nextOffset);
+                            unconfirmed[0] = 0;
+                        }
+                    });
+                    confirmReplayed(batchers, claimed, retainedBefore, Long.MAX_VALUE);
+                }
+                finally {
+                    // Deletes the segment, or gives back the records that were not confirmed
+                    claimed.close();
+                }
+                segmentCount++;
+            }
+        }
+        finally {
+            batchers.values().forEach(MarkLogicInsertionBatcher::returnLease);
+        }
+
+        ObjectNode rootObj = jsonFactory.createObjectNode();
+        rootObj.put("replayCount", count[0]);
+        rootObj.put("segmentCount", segmentCount);
+        LOGGER.info("Replay outcome: {}", rootObj);
+        try {
+            return new ByteArrayInputStream(jsonFactory.writeValueAsBytes(rootObj));
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException("Unable to write the replay result", ex);
+        }
+    }
+
+    /**
+     * Confirms the records replayed so far once their documents are no longer held by the batchers alone.
+     */
+    private static void confirmReplayed(Map<List<String>, MarkLogicInsertionBatcher> batchers,
+                                        DeadLetterSpool.ClaimedSegment claimed, long retainedBefore, long offset) {
+        batchers.values().forEach(MarkLogicInsertionBatcher::flushAndWait);
+        if (retainedDocumentCount(batchers) > retainedBefore) {
+            // Some of the documents are only held in memory for the next connection, and would be lost if they never
+            // reach it
+            throw new MarkLogicConnectorException(String.format(
+                "The connection was invalidated while replaying %s; the documents after the last confirmed ones have been kept, to be replayed again",
+                claimed.getPath()));
+        }
+        claimed.confirm(offset);
+    }
+
+    private static long retainedDocumentCount(Map<List<String>, MarkLogicInsertionBatcher> batchers) {
+        return batchers.values().stream().mapToLong(MarkLogicInsertionBatcher::getRetainedDocumentCount).sum();
+    }
+
+    // Waits until the next document may be replayed, and returns when the one after it may be
+    private static long pace(long nextNanos, long intervalNanos) {
+        if (intervalNanos <= 0) {
+            return nextNanos;
+        }
+        long waitNanos = nextNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MarkLogicConnectorException("Interrupted while replaying dead letters", ex);
+            }
+        }
+        // Don't let an idle stretch build up credit for a burst
+        return Math.max(nextNanos, System.nanoTime() - intervalNanos) + intervalNanos;
+    }
+
+ /**
+ * <p>Changes the maximum rate at which all of the configuration's imports write documents, without redeploying, returning a JSON object with the rates now in effect.</p>
+ * <p>The rates start as the configuration's Max Documents Per Second and Max Bytes Per Second; a flow can, for example, lower them during business hours and raise them again off-hours.</p>
+ * @param markLogicConfiguration The MarkLogic configuration details
+ * @param documentsPerSecond The maximum number of documents written per second; 0 means not limited.
+ * @param bytesPerSecond The maximum number of bytes written per second; 0 means not limited.
+ * @return java.io.InputStream
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = APPLICATION_JSON, strict = true)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Set Write Rate Limit")
+    public InputStream setWriteRateLimit(
+            @Config MarkLogicConfiguration markLogicConfiguration,
+            @DisplayName("Documents Per Second")
+            @Optional(defaultValue = "0")
+            @Summary("The maximum number of documents written per second; 0 means not limited.")
+            @Example("1000") long documentsPerSecond,
+            @DisplayName("Bytes Per Second")
+            @Optional(defaultValue = "0")
+            @Summary("The maximum number of bytes written per second; 0 means not limited.")
+            @Example("10485760") long bytesPerSecond
+            )
+    {
+        WriteRateLimiter rateLimiter = markLogicConfiguration.getWriteRateLimiter();
+        rateLimiter.setRates(documentsPerSecond, bytesPerSecond);
+
+        ObjectNode rootObj = jsonFactory.createObjectNode();
+        rootObj.put("documentsPerSecond", rateLimiter.getDocumentsPerSecond());
+        rootObj.put("bytesPerSecond", rateLimiter.getBytesPerSecond());
+        LOGGER.info("Write rate limit: {}", rootObj);
+        try {
+            return new ByteArrayInputStream(jsonFactory.writeValueAsBytes(rootObj));
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException("Unable to write the write rate limit", ex);
+        }
+    }
+
+ /**
+ * <p>Reports the insertion batchers that the configuration's imports, including importDocs, are currently writing through on the connection, returning a JSON object with a <code>batchers</code> array.</p>
+ * <p>Each batcher is listed with its DMSDK JobTicket ID, temporal collection and transform, and the batch size it currently uses. When Adaptive Batching is enabled, an <code>adaptiveBatching</code> object gives the batch size and concurrency it has chosen, and the throughput and batch latency those are based on.</p>
+ * @param markLogicConfiguration The MarkLogic configuration details
+ * @param connection The MarkLogic connection details
+ * @return java.io.InputStream
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = APPLICATION_JSON, strict = true)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Get Insertion Batcher Report")
+    public InputStream getInsertionBatcherReport(
+            @Config MarkLogicConfiguration markLogicConfiguration,
+            @Connection MarkLogicConnection connection
+            )
+    {
+        ObjectNode rootObj = jsonFactory.createObjectNode();
+        ArrayNode batchers = rootObj.putArray("batchers");
+        for (Map.Entry<InsertionBatcherContext, MarkLogicInsertionBatcher> entry : connection.getInsertionBatchers().entrySet()) {
+            InsertionBatcherContext context = entry.getKey();
+            if (!markLogicConfiguration.equals(context.getConfiguration())) {
+                continue;
+            }
+            MarkLogicInsertionBatcher batcher = entry.getValue();
+            ObjectNode batcherObj = batchers.addObject();
+            batcherObj.put("jobTicketId", batcher.getJobId());
+            batcherObj.put("temporalCollection", context.getTemporalCollection());
+            batcherObj.put("serverTransform", context.getServerTransform());
+            batcherObj.put("serverTransformParams", context.getServerTransformParams());
+            batcherObj.put("batchSize", batcher.getEffectiveBatchSize());
+            putAdaptiveBatching(batcherObj, batcher);
+        }
+        LOGGER.debug("Insertion batcher report: {}", rootObj);
+        try {
+            return new ByteArrayInputStream(jsonFactory.writeValueAsBytes(rootObj));
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException("Unable to write the insertion batcher report", ex);
+        }
     }
 
  /**
  * <p>Retrieves a JSON representation of a <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a> <a target="_blank" href="https://docs.marklogic.com/javadoc/client/com/marklogic/client/datamovement/JobReport.html">JobReport</a> following an importDocs operation.</p>
+ * <p>The batch size, concurrency, throughput and latency chosen by adaptive batching are not part of this report: it takes no configuration to find an import's batchers by, and adding one would break the flows that still use it. Use Get Insertion Batcher Report instead.</p>
  * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
  * @since 1.0.0
  * @return java.io.InputStream
@@ -325,7 +898,7 @@ public class MarkLogicOperations
             @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams
     )
     {
-        return queryDocs(configuration, structuredQuery, optionsName, null, null, structuredQueryStrategy, fmt, serverTransform, serverTransformParams);
+        return queryDocs(configuration, structuredQuery, optionsName, null, null, MarkLogicPagingStrategy.OFFSET, 0, 1, false, structuredQueryStrategy, fmt, serverTransform, serverTransformParams, null);
     }
 
  /**
@@ -335,10 +908,15 @@ public class MarkLogicOperations
  * @param optionsName The server-side Search API options file used to configure the search.
  * @param pageLength Number of documents fetched at a time, defaults to the connection batch size.
  * @param maxResults Maximum total number of documents to be fetched, defaults to unlimited.
+ * @param pagingStrategy How each page of results is located; URI_KEYSET keeps the cost of deep pages constant, but the order of the documents is unspecified and it can't be combined with prefetching or parallel page fetches.
+ * @param prefetchDepth Number of pages fetched in the background ahead of the page being processed, defaults to no prefetching.
+ * @param parallelPageFetches Number of consecutive pages that may be fetched concurrently; pages are still returned in order.
+ * @param useConsistentSnapshot Whether every page is retrieved at the point-in-time of the first page.
  * @param queryStrategy The Java class used to execute the serialized query
  * @param fmt The format of the serialized query.
  * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
  * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @param streamingHelper Used to return documents spooled to temporary files as repeatable streams.
  * @return org.mule.runtime.extension.api.runtime.streaming.PagingProvider
  * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
  * @since 1.1.0
@@ -363,6 +941,87 @@ public class MarkLogicOperations
             @DisplayName("Maximum Number of Results")
             @Optional
             @Summary("Maximum total number of documents to be fetched, defaults to unlimited.") Long maxResults,
+            @DisplayName("Paging Strategy")
+            @Optional(defaultValue = "OFFSET")
+            @Summary("How each page of results is located; URI_KEYSET keeps the cost of deep pages constant, but the order of the documents is unspecified and it can't be combined with prefetching or parallel page fetches.") MarkLogicPagingStrategy pagingStrategy,
+            @DisplayName("Prefetch Depth")
+            @Optional(defaultValue = "0")
+            @Summary("Number of pages fetched in the background ahead of the page being processed, defaults to no prefetching.") int prefetchDepth,
+            @DisplayName("Parallel Page Fetches")
+            @Optional(defaultValue = "1")
+            @Summary("Number of consecutive pages that may be fetched concurrently; pages are still returned in order.") int parallelPageFetches,
+            @DisplayName("Use Consistent Snapshot")
+            @Optional(defaultValue = "false")
+            @Summary("Whether every page is retrieved at the point-in-time of the first page.") boolean useConsistentSnapshot,
+            @DisplayName("Search Strategy")
+            @Summary("The Java class used to execute the serialized query.") MarkLogicQueryStrategy queryStrategy,
+            @DisplayName("Serialized Query Format")
+            @Summary("The format of the serialized query.") MarkLogicQueryFormat fmt,
+            @Summary("The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.")
+            @Optional(defaultValue = "null")
+            @Example("ml:sjsInputFlow") String serverTransform,
+            @Summary("A comma-separated list of alternating transform parameter names and values.")
+            @Optional(defaultValue = "null")
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams,
+            StreamingHelper streamingHelper)
+    {
+        return newQueryDocsPagingProvider(configuration, queryString, optionsName, pageLength, maxResults, pagingStrategy,
+            prefetchDepth, parallelPageFetches, useConsistentSnapshot, queryStrategy, fmt, serverTransform, serverTransformParams,
+            new RecordExtractor(MarkLogicOutputMode.STRUCTURED, configuration.getInMemoryDocumentThreshold(), streamingHelper));
+    }
+
+ /**
+ * <p>Retrieve query-selected document content synchronously from MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a>, returning each document unparsed, as a stream with the document's media type.</p>
+ * <p>The flow decides whether and how each document is parsed, so documents it only passes on are never parsed at all.</p>
+ * @param configuration The MarkLogic configuration details
+ * @param queryString The serialized query XML or JSON.
+ * @param optionsName The server-side Search API options file used to configure the search.
+ * @param pageLength Number of documents fetched at a time, defaults to the connection batch size.
+ * @param maxResults Maximum total number of documents to be fetched, defaults to unlimited.
+ * @param pagingStrategy How each page of results is located; URI_KEYSET keeps the cost of deep pages constant, but the order of the documents is unspecified and it can't be combined with prefetching or parallel page fetches.
+ * @param prefetchDepth Number of pages fetched in the background ahead of the page being processed, defaults to no prefetching.
+ * @param parallelPageFetches Number of consecutive pages that may be fetched concurrently; pages are still returned in order.
+ * @param useConsistentSnapshot Whether every page is retrieved at the point-in-time of the first page.
+ * @param queryStrategy The Java class used to execute the serialized query
+ * @param fmt The format of the serialized query.
+ * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
+ * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @param streamingHelper Used to return documents spooled to temporary files as repeatable streams.
+ * @return org.mule.runtime.extension.api.runtime.streaming.PagingProvider
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = ANY, strict = false)
+    @OutputResolver(output = MarkLogicAnyMetadataResolver.class)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Query Docs Raw")
+    // sonarqube flags this because of the number of args, which mirror those of queryDocs
+    @SuppressWarnings("java:S107")
+    public PagingProvider<MarkLogicConnection, Result<Object, Void>> queryDocsRaw(
+            @Config MarkLogicConfiguration configuration,
+            @DisplayName("Serialized Query String")
+            @Summary("The serialized query XML or JSON.")
+            @Text String queryString,
+            @DisplayName("Search API Options")
+            @Optional
+            @Summary("The server-side Search API options file used to configure the search.") String optionsName,
+            @DisplayName("Page Length")
+            @Optional
+            @Summary("Number of documents fetched at a time, defaults to the connection batch size.") Integer pageLength,
+            @DisplayName("Maximum Number of Results")
+            @Optional
+            @Summary("Maximum total number of documents to be fetched, defaults to unlimited.") Long maxResults,
+            @DisplayName("Paging Strategy")
+            @Optional(defaultValue = "OFFSET")
+            @Summary("How each page of results is located; URI_KEYSET keeps the cost of deep pages constant, but the order of the documents is unspecified and it can't be combined with prefetching or parallel page fetches.") MarkLogicPagingStrategy pagingStrategy,
+            @DisplayName("Prefetch Depth")
+            @Optional(defaultValue = "0")
+            @Summary("Number of pages fetched in the background ahead of the page being processed, defaults to no prefetching.") int prefetchDepth,
+            @DisplayName("Parallel Page Fetches")
+            @Optional(defaultValue = "1")
+            @Summary("Number of consecutive pages that may be fetched concurrently; pages are still returned in order.") int parallelPageFetches,
+            @DisplayName("Use Consistent Snapshot")
+            @Optional(defaultValue = "false")
+            @Summary("Whether every page is retrieved at the point-in-time of the first page.") boolean useConsistentSnapshot,
             @DisplayName("Search Strategy")
             @Summary("The Java class used to execute the serialized query.") MarkLogicQueryStrategy queryStrategy,
             @DisplayName("Serialized Query Format")
@@ -372,24 +1031,43 @@ public class MarkLogicOperations
             @Example("ml:sjsInputFlow") String serverTransform,
             @Summary("A comma-separated list of alternating transform parameter names and values.")
             @Optional(defaultValue = "null")
-            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams)
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams,
+            StreamingHelper streamingHelper)
     {
-        return new PagingProvider<MarkLogicConnection, Object>()
+        return newQueryDocsPagingProvider(configuration, queryString, optionsName, pageLength, maxResults, pagingStrategy,
+            prefetchDepth, parallelPageFetches, useConsistentSnapshot, queryStrategy, fmt, serverTransform, serverTransformParams,
+            new RecordExtractor(MarkLogicOutputMode.RAW, configuration.getInMemoryDocumentThreshold(), streamingHelper));
+    }
+
+    // sonarqube flags this because of the number of args, but they all come straight from the queryDocs operations.
+    // The record extractor decides the type of every item, so the pages it fills are returned as pages of that type.
+    @SuppressWarnings({"java:S107", "unchecked"})
+    private <T> PagingProvider<MarkLogicConnection, T> newQueryDocsPagingProvider(
+            MarkLogicConfiguration configuration, String queryString, String optionsName, Integer pageLength, Long maxResults,
+            MarkLogicPagingStrategy pagingStrategy, int prefetchDepth, int parallelPageFetches, boolean useConsistentSnapshot,
+            MarkLogicQueryStrategy queryStrategy, MarkLogicQueryFormat fmt, String serverTransform, String serverTransformParams,
+            RecordExtractor recordExtractor)
+    {
+        // DMSDK hands out each batch of URIs as it is retrieved, so pages can't be fetched ahead or in parallel
+        if (MarkLogicPagingStrategy.URI_KEYSET.equals(pagingStrategy) && (prefetchDepth > 0 || parallelPageFetches > 1)) {
+            throw new MarkLogicConnectorException("Prefetch Depth and Parallel Page Fetches can't be used with the URI_KEYSET paging strategy");
+        }
+        return new PagingProvider<MarkLogicConnection, T>()
         {
             private final AtomicBoolean initialised = new AtomicBoolean(false);
             private MarkLogicResultSetCloser resultSetCloser;
-            private MarkLogicResultSetIterator iterator;
+            private MarkLogicPageIterator iterator;
             private long startTime;
 
             @Override
-            public List<Object> getPage(MarkLogicConnection connection)
+            public List<T> getPage(MarkLogicConnection connection)
             {
                 if (initialised.compareAndSet(false, true)) {
                     LOGGER.info("Initializing queryDocs operation; query: {}", queryString);
                     startTime = System.currentTimeMillis();
                     initializeIterator(connection);
                 }
-                return iterator.next();
+                return (List<T>) iterator.next();
             }
 
             private void initializeIterator(MarkLogicConnection connection) {
@@ -399,14 +1077,22 @@ public class MarkLogicOperations
                 QueryDefinition query = getQueryDefinition(connection.getClient().newQueryManager(),queryString,fmt,options, queryStrategy);
 
                 java.util.Optional<ServerTransform> transform = configuration.generateServerTransform(serverTransform, serverTransformParams);
+
+                if (MarkLogicPagingStrategy.URI_KEYSET.equals(pagingStrategy)) {
+                    int batchSize = pageLength != null && pageLength > 0 ? pageLength : configuration.getBatchSize();
+                    iterator = newUriKeysetIterator(connection.getClient().newDataMovementManager(), query, queryStrategy,
+                        batchSize, maxResults, transform, recordExtractor);
+                    return;
+                }
+
                 if(transform.isPresent())
                 {
                     query.setResponseTransform(transform.get());
                 }
 
                 iterator = pageLength != null && pageLength < 1 ?
-                    new MarkLogicResultSetIterator(connection, query, configuration.getBatchSize(), maxResults) :
-                    new MarkLogicResultSetIterator(connection, query, pageLength, maxResults);
+                    new MarkLogicResultSetIterator(connection, query, configuration.getBatchSize(), maxResults, prefetchDepth, parallelPageFetches, useConsistentSnapshot, recordExtractor) :
+                    new MarkLogicResultSetIterator(connection, query, pageLength, maxResults, prefetchDepth, parallelPageFetches, useConsistentSnapshot, recordExtractor);
             }
 
             @Override
@@ -419,7 +1105,12 @@ public class MarkLogicOperations
             public void close(MarkLogicConnection connection)
             {
                 LOGGER.info("Finished queryDocs operation; duration: {}", (System.currentTimeMillis() - startTime));
-                resultSetCloser.closeResultSets();
+                if (iterator != null) {
+                    iterator.close();
+                }
+                if (resultSetCloser != null) {
+                    resultSetCloser.closeResultSets();
+                }
             }
 
             @Override
@@ -431,7 +1122,8 @@ public class MarkLogicOperations
     }
 
  /**
- * <p>Retrieve query-selected document content asynchronously from MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>.</p>
+ * <p>Retrieve query-selected document content asynchronously from MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>.
+ * A page is returned for each batch completed by DMSDK; the export is paused while the flow catches up on pages it has not yet consumed.</p>
  * @param configuration The MarkLogic configuration details
  * @param queryString The serialized query XML or JSON.
  * @param optionsName The server-side Search API options file used to configure the search.
@@ -441,6 +1133,7 @@ public class MarkLogicOperations
  * @param useConsistentSnapshot Whether to use a consistent point-in-time snapshot for operations.
  * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
  * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @param streamingHelper Used to return documents spooled to temporary files as repeatable streams.
  * @return org.mule.runtime.extension.api.runtime.streaming.PagingProvider
  * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
  * @since 1.1.0
@@ -473,54 +1166,91 @@ public class MarkLogicOperations
             @Example("ml:sjsInputFlow") String serverTransform,
             @Summary("A comma-separated list of alternating transform parameter names and values.")
             @Optional(defaultValue = "null")
-            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams,
+            StreamingHelper streamingHelper
     )
     {
-        return new PagingProvider<MarkLogicConnection, Object>() {
-            private final AtomicBoolean pageReturned = new AtomicBoolean(false);
-
-            @Override
-            public List<Object> getPage(MarkLogicConnection markLogicConnector)
-            {
-                if (pageReturned.get()) {
-                    return new ArrayList<>();
-                }
-
-                DatabaseClient client = markLogicConnector.getClient();
-                QueryManager qm = client.newQueryManager();
-                DataMovementManager dmm = client.newDataMovementManager();
-
-                QueryDefinition query = getQueryDefinition(qm, queryString, fmt, optionsName, queryStrategy);
-                QueryBatcher batcher = newQueryBatcher(dmm, query, queryStrategy);
+        return newExportDocsPagingProvider(configuration, queryString, optionsName, queryStrategy, fmt, maxResults,
+            useConsistentSnapshot, serverTransform, serverTransformParams,
+            new RecordExtractor(MarkLogicOutputMode.STRUCTURED, configuration.getInMemoryDocumentThreshold(), streamingHelper));
+    }
 
-                MarkLogicExportListener exportListener = new MarkLogicExportListener(maxResults != null ? maxResults : 0);
+ /**
+ * <p>Retrieve query-selected document content asynchronously from MarkLogic, via the <a target="_blank" href="https://docs.marklogic.com/guide/java/intro">MarkLogic Java API</a> <a target="_blank" href="https://docs.marklogic.com/guide/java/data-movement">Data Movement SDK (DMSDK)</a>, returning each document unparsed, as a stream with the document's media type.
+ * A page is returned for each batch completed by DMSDK; the export is paused while the flow catches up on pages it has not yet consumed.</p>
+ * @param configuration The MarkLogic configuration details
+ * @param queryString The serialized query XML or JSON.
+ * @param optionsName The server-side Search API options file used to configure the search.
+ * @param queryStrategy The Java class used to execute the serialized query.
+ * @param fmt The format of the serialized query.
+ * @param maxResults Maximum total number of documents to be fetched, defaults to unlimited.
+ * @param useConsistentSnapshot Whether to use a consistent point-in-time snapshot for operations.
+ * @param serverTransform The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.
+ * @param serverTransformParams A comma-separated list of alternating transform parameter names and values.
+ * @param streamingHelper Used to return documents spooled to temporary files as repeatable streams.
+ * @return org.mule.runtime.extension.api.runtime.streaming.PagingProvider
+ * @throws com.marklogic.mule.extension.connector.internal.error.provider.MarkLogicExecuteErrorsProvider
+ */
+    @MediaType(value = ANY, strict = false)
+    @OutputResolver(output = MarkLogicAnyMetadataResolver.class)
+    @Throws(MarkLogicExecuteErrorsProvider.class)
+    @DisplayName("Export Docs Raw")
+    // sonarqube flags this because of the number of args, which mirror those of exportDocs
+    @SuppressWarnings("java:S107")
+    public PagingProvider<MarkLogicConnection, Result<Object, Void>> exportDocsRaw(
+            @Config MarkLogicConfiguration configuration,
+            @DisplayName("Serialized Query String")
+            @Summary("The serialized query XML or JSON.")
+            @Text String queryString,
+            @DisplayName("Search API Options")
+            @Optional
+            @Summary("The server-side Search API options file used to configure the search.") String optionsName,
+            @DisplayName("Search Strategy")
+            @Summary("The Java class used to execute the serialized query.") MarkLogicQueryStrategy queryStrategy,
+            @DisplayName("Serialized Query Format")
+            @Summary("The format of the serialized query.") MarkLogicQueryFormat fmt,
+            @DisplayName("Maximum Number of Results")
+            @Optional
+            @Summary("Maximum total number of documents to be fetched, defaults to unlimited.") Long maxResults,
+            @DisplayName("Use Consistent Snapshot")
+            @Summary("Whether to use a consistent point-in-time snapshot for operations.") boolean useConsistentSnapshot,
+            @Summary("The name of a deployed MarkLogic server-side Javascript, XQuery, or XSLT.")
+            @Optional(defaultValue = "null")
+            @Example("ml:sjsInputFlow") String serverTransform,
+            @Summary("A comma-separated list of alternating transform parameter names and values.")
+            @Optional(defaultValue = "null")
+            @Example("entity-name,MyEntity,flow-name,loadMyEntity") String serverTransformParams,
+            StreamingHelper streamingHelper
+    )
+    {
+        return newExportDocsPagingProvider(configuration, queryString, optionsName, queryStrategy, fmt, maxResults,
+            useConsistentSnapshot, serverTransform, serverTransformParams,
+            new RecordExtractor(MarkLogicOutputMode.RAW, configuration.getInMemoryDocumentThreshold(), streamingHelper));
+    }
 
-                java.util.Optional<ServerTransform> transform = configuration.generateServerTransform(serverTransform, serverTransformParams);
-                if (transform.isPresent()) {
-                    LOGGER.info("Configuring transform for exportListener: {}", transform.get().getName());
-                    exportListener.withTransform(transform.get());
-                }
+    // sonarqube flags this because of the number of args, but they all come straight from the exportDocs operations.
+    // The record extractor decides the type of every item, so the pages it fills are returned as pages of that type.
+    @SuppressWarnings({"java:S107", "unchecked"})
+    private <T> PagingProvider<MarkLogicConnection, T> newExportDocsPagingProvider(
+            MarkLogicConfiguration configuration, String queryString, String optionsName, MarkLogicQueryStrategy queryStrategy,
+            MarkLogicQueryFormat fmt, Long maxResults, boolean useConsistentSnapshot, String serverTransform,
+            String serverTransformParams, RecordExtractor recordExtractor)
+    {
+        return new PagingProvider<MarkLogicConnection, T>() {
+            private final AtomicBoolean initialised = new AtomicBoolean(false);
+            private MarkLogicQueryBatcherIterator iterator;
 
-                if (useConsistentSnapshot) {
-                    batcher.withConsistentSnapshot();
-                    exportListener.withConsistentSnapshot();
+            @Override
+            public List<T> getPage(MarkLogicConnection markLogicConnector)
+            {
+                if (initialised.compareAndSet(false, true)) {
+                    QueryDefinition query = getQueryDefinition(markLogicConnector.getClient().newQueryManager(), queryString, fmt, optionsName, queryStrategy);
+                    iterator = newQueryBatcherIterator(markLogicConnector.getClient().newDataMovementManager(), query,
+                        queryStrategy, configuration.getBatchSize(),
+                        configuration.getThreadCount(), maxResults, useConsistentSnapshot,
+                        configuration.generateServerTransform(serverTransform, serverTransformParams), recordExtractor);
                 }
-
-                batcher.withBatchSize(configuration.getBatchSize())
-                        .withThreadCount(configuration.getThreadCount())
-                        .onUrisReady(exportListener)
-                        .onQueryFailure(throwable -> LOGGER.error("Exception thrown by an onBatchSuccess listener", throwable));
-
-                long start = System.currentTimeMillis();
-                LOGGER.info("Starting job");
-                dmm.startJob(batcher);
-                batcher.awaitCompletion();
-                dmm.stopJob(batcher);
-                LOGGER.info("Finished job, duration in ms: {}", System.currentTimeMillis() - start);
-                pageReturned.set(true);
-                List<Object> docs = exportListener.getDocs();
-                LOGGER.info("Document count: {}", docs.size());
-                return docs;
+                return (List<T>) iterator.next();
             }
 
             @Override
@@ -530,11 +1260,57 @@ public class MarkLogicOperations
 
             @Override
             public void close(MarkLogicConnection markLogicConnector) {
-                LOGGER.debug("No action on close");
+                // Stops the job if the consumer did not read every page, e.g. when the flow stops iterating early
+                if (iterator != null) {
+                    iterator.close();
+                }
             }
         };
     }
 
+    /**
+     * The URIs are retrieved by a single DMSDK thread at a consistent snapshot, so that pages are handed off one at a
+     * time. DMSDK walks the URIs of each forest and interleaves the batches of different forests, so the documents
+     * are in no particular order.
+     */
+    MarkLogicQueryBatcherIterator newUriKeysetIterator(DataMovementManager dmm, QueryDefinition query,
+                                                       MarkLogicQueryStrategy queryStrategy, int pageLength, Long maxResults,
+                                                       java.util.Optional<ServerTransform> transform,
+                                                       RecordExtractor recordExtractor)
+    {
+        return newQueryBatcherIterator(dmm, query, queryStrategy, pageLength, 1, maxResults, true, transform, recordExtractor);
+    }
+
+    // sonarqube flags this because of the number of args, but they are all needed to configure the job
+    @SuppressWarnings("java:S107")
+    private MarkLogicQueryBatcherIterator newQueryBatcherIterator(DataMovementManager dmm, QueryDefinition query,
+                                                                  MarkLogicQueryStrategy queryStrategy, int batchSize,
+                                                                  int threadCount, Long maxResults, boolean useConsistentSnapshot,
+                                                                  java.util.Optional<ServerTransform> transform,
+                                                                  RecordExtractor recordExtractor)
+    {
+        QueryBatcher batcher = newQueryBatcher(dmm, query, queryStrategy);
+
+        // Allow each DMSDK thread to have one page waiting for the consumer before the batcher is paused
+        MarkLogicExportListener exportListener = new MarkLogicExportListener(maxResults != null ? maxResults : 0, threadCount, recordExtractor);
+
+        if (transform.isPresent()) {
+            LOGGER.info("Configuring transform for exportListener: {}", transform.get().getName());
+            exportListener.withTransform(transform.get());
+        }
+
+        if (useConsistentSnapshot) {
+            batcher.withConsistentSnapshot();
+            exportListener.withConsistentSnapshot();
+        }
+
+        batcher.withBatchSize(batchSize)
+                .withThreadCount(threadCount)
+                .onQueryFailure(throwable -> LOGGER.error("Exception thrown by an onBatchSuccess listener", throwable));
+
+        return new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+    }
+
     private static String generateOutputUri(String outputUriPrefix, String outputUriSuffix, boolean generateOutputUriBasename, String basenameUri) {
         // Determine output URI
         // If the config tells us to generate a new UUID, do that
@@ -555,8 +1331,7 @@ public class MarkLogicOperations
                 new StringHandle().withFormat(getClientFormat(format)).with(queryString), optionsName);
         }
         if (MarkLogicQueryStrategy.StructuredQueryBuilder.equals(strategy)) {
-            JexlEngine jexl = new JexlBuilder().create();
-            JexlExpression e = jexl.createExpression(queryString);
+            JexlExpression e = compileStructuredQuery(queryString);
             JexlContext jc = new MapContext();
             if (optionsName == null) {
                 jc.set("sb", queryManager.newStructuredQueryBuilder());
@@ -571,6 +1346,13 @@ public class MarkLogicOperations
         return queryManager.newRawCtsQueryDefinitionAs(getClientFormat(format), queryString, optionsName);
     }
 
+    static JexlExpression compileStructuredQuery(String queryString) {
+        if (queryString.length() > JEXL_EXPRESSION_CACHE_MAX_LENGTH) {
+            return JEXL_ENGINE.createExpression(queryString);
+        }
+        return JEXL_EXPRESSIONS.computeIfAbsent(queryString, JEXL_ENGINE::createExpression);
+    }
+
     private Format getClientFormat(MarkLogicQueryFormat queryFormat) {
         if (MarkLogicQueryFormat.JSON.equals(queryFormat)) {
             return Format.JSON;
@@ -0,0 +1,110 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import java.util.Arrays;
+
+/**
+ * Maps the URIs of a pending batch to their positions in it, with open addressing and linear probing over flat
+ * arrays, so that a lookup allocates nothing. The table is at most half full for the batch size it was made for, and
+ * is cleared by moving to a new generation rather than by wiping the arrays.
+ */
+final class UriIndex
+{
+    private final String[] uris;
+
+    private final int[] hashes;
+
+    private final int[] positions;
+
+    // A slot is only in use when its stamp matches the current generation
+    private final int[] stamps;
+
+    private final int mask;
+
+    private int generation = 1;
+
+    private int size;
+
+    UriIndex(int maxSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+        this.uris = new String[capacity];
+        this.hashes = new int[capacity];
+        this.positions = new int[capacity];
+        this.stamps = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns the position recorded for the URI, or -1 if it is not in the batch.
+     */
+    int get(String uri)
+    {
+        int hash = spread(uri.hashCode());
+        for (int slot = hash & mask; stamps[slot] == generation; slot = (slot + 1) & mask)
+        {
+            if (hashes[slot] == hash && uris[slot].equals(uri))
+            {
+                return positions[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the position of a URI that is not in the batch yet.
+     */
+    void put(String uri, int position)
+    {
+        if (size >= mask)
+        {
+            // One slot is always left free, so that a lookup always ends
+            throw new IllegalStateException("The URI index is full");
+        }
+        int hash = spread(uri.hashCode());
+        int slot = hash & mask;
+        while (stamps[slot] == generation)
+        {
+            slot = (slot + 1) & mask;
+        }
+        stamps[slot] = generation;
+        uris[slot] = uri;
+        hashes[slot] = hash;
+        positions[slot] = position;
+        size++;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void clear()
+    {
+        size = 0;
+        generation++;
+        if (generation == 0)
+        {
+            // The stamps have wrapped around, so old ones could match again
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+}
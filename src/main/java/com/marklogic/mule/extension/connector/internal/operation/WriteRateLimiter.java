@@ -0,0 +1,171 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the documents and bytes per second written by every insertion batcher of a configuration, with a token
+ * bucket for each that holds up to one second's worth of tokens. A write takes its tokens straight away, even when
+ * that leaves a bucket in debt, and then waits until the debt would have been paid off; a document larger than a
+ * second's worth of bytes is therefore still written, just slowly. The rates can be changed while documents are
+ * being written, including by writes that are already waiting, which work out the rest of their wait at the new rates.
+ * A rate of 0 is not limited, and while neither rate is limited a write goes straight through without locking.
+ */
+public final class WriteRateLimiter
+{
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongSupplier clock;
+
+    // Volatile so that writes can see that neither rate is limited without taking the monitor
+    private volatile long documentsPerSecond;
+
+    private volatile long bytesPerSecond;
+
+    private double documentTokens;
+
+    private double byteTokens;
+
+    private long lastRefillNanos;
+
+    // The tokens added to each bucket so far, so that a waiting write can tell how much of its debt has been paid off
+    // whatever the rates have been in the meantime
+    private double documentsRefilled;
+
+    private double bytesRefilled;
+
+    public WriteRateLimiter(long documentsPerSecond, long bytesPerSecond)
+    {
+        this(documentsPerSecond, bytesPerSecond, System::nanoTime);
+    }
+
+    WriteRateLimiter(long documentsPerSecond, long bytesPerSecond, LongSupplier clock)
+    {
+        this.clock = clock;
+        this.lastRefillNanos = clock.getAsLong();
+        setRates(documentsPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Changes the rates; a bucket keeps its tokens, or its debt, up to the new capacity, and a bucket that was not
+     * limited before starts full.
+     */
+    public synchronized void setRates(long documentsPerSecond, long bytesPerSecond)
+    {
+        refill();
+        long newDocumentsPerSecond = Math.max(0, documentsPerSecond);
+        long newBytesPerSecond = Math.max(0, bytesPerSecond);
+        documentTokens = this.documentsPerSecond > 0 ? Math.min(documentTokens, newDocumentsPerSecond) : newDocumentsPerSecond;
+        byteTokens = this.bytesPerSecond > 0 ? Math.min(byteTokens, newBytesPerSecond) : newBytesPerSecond;
+        this.documentsPerSecond = newDocumentsPerSecond;
+        this.bytesPerSecond = newBytesPerSecond;
+        // Waiting writes work out how much longer to wait at the new rates
+        notifyAll();
+    }
+
+    public long getDocumentsPerSecond()
+    {
+        return documentsPerSecond;
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Waits until a document of the given size may be written.
+     */
+    public void acquire(long bytes)
+    {
+        if (documentsPerSecond == 0 && bytesPerSecond == 0)
+        {
+            return;
+        }
+        awaitTokens(bytes);
+    }
+
+    private synchronized void awaitTokens(long bytes)
+    {
+        reserve(bytes);
+        // The refill totals at which this document's share of each bucket's debt has been paid off
+        double documentTarget = documentsRefilled + Math.max(0, -documentTokens);
+        double byteTarget = bytesRefilled + Math.max(0, -byteTokens);
+        try
+        {
+            long waitNanos;
+            while ((waitNanos = remainingNanos(documentTarget, byteTarget)) > 0)
+            {
+                // Gives up the monitor, so that other writes can take their tokens and the rates can be changed
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new MarkLogicConnectorException("Interrupted while waiting for the write rate limit", ex);
+        }
+    }
+
+    // Must be called while synchronized
+    private long remainingNanos(double documentTarget, double byteTarget)
+    {
+        refill();
+        return Math.max(debtNanos(documentsRefilled - documentTarget, documentsPerSecond),
+            debtNanos(bytesRefilled - byteTarget, bytesPerSecond));
+    }
+
+    /**
+     * Takes the tokens for a document of the given size, and returns how many nanoseconds to wait before writing it.
+     */
+    synchronized long reserve(long bytes)
+    {
+        refill();
+        long waitNanos = 0;
+        if (documentsPerSecond > 0)
+        {
+            documentTokens -= 1;
+            waitNanos = Math.max(waitNanos, debtNanos(documentTokens, documentsPerSecond));
+        }
+        if (bytesPerSecond > 0)
+        {
+            byteTokens -= bytes;
+            waitNanos = Math.max(waitNanos, debtNanos(byteTokens, bytesPerSecond));
+        }
+        return waitNanos;
+    }
+
+    // A bucket that is no longer limited has no debt
+    private static long debtNanos(double tokens, long ratePerSecond)
+    {
+        return tokens < 0 && ratePerSecond > 0 ? (long) Math.ceil(-tokens * NANOS_PER_SECOND / ratePerSecond) : 0;
+    }
+
+    private void refill()
+    {
+        long now = clock.getAsLong();
+        double elapsedSeconds = (now - lastRefillNanos) / NANOS_PER_SECOND;
+        lastRefillNanos = now;
+        double documents = Math.min(documentsPerSecond, documentTokens + elapsedSeconds * documentsPerSecond);
+        documentsRefilled += Math.max(0, documents - documentTokens);
+        documentTokens = documents;
+        double bytes = Math.min(bytesPerSecond, byteTokens + elapsedSeconds * bytesPerSecond);
+        bytesRefilled += Math.max(0, bytes - byteTokens);
+        byteTokens = bytes;
+    }
+}
@@ -14,57 +14,174 @@
 package com.marklogic.mule.extension.connector.internal.result.resultset;
 
 import com.marklogic.client.datamovement.ExportListener;
+import com.marklogic.client.datamovement.QueryBatch;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.document.DocumentRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Extracts the documents of each DMSDK batch into a page and hands that page off to the consumer through a bounded
+ * queue. When the queue is full, the DMSDK threads block until the consumer catches up, which pauses the
+ * QueryBatcher and keeps memory flat regardless of the size of the result set.
+ * <p>
+ * Once the maximum number of documents has been collected, the QueryBatcher is capped at its current batch so that
+ * no further URIs are retrieved, and batches that were already retrieved are skipped without downloading their
+ * documents.
+ * <p>
+ * Documents are collected without locking: each DMSDK thread extracts records into the page for its own batch, and
+ * the maximum number of documents is enforced by reserving a slot from an atomic counter before a record is
+ * extracted.
+ */
 public class MarkLogicExportListener extends ExportListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicExportListener.class);
 
-    private List<Object> docs;
+    // How long a DMSDK thread waits for room in the queue before checking whether the export has been closed
+    private static final long HAND_OFF_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<List<Object>> pages;
+
+    // The page being built for the batch currently processed by the calling DMSDK thread
+    private final ThreadLocal<List<Object>> batchPage = new ThreadLocal<>();
+
+    private final RecordExtractor recordExtractor;
+
+    private final long maxDocs;
+
+    private final AtomicLong reservedDocs = new AtomicLong();
+
+    private volatile boolean maxDocsReached;
+
+    private final AtomicBoolean batcherCapped = new AtomicBoolean(false);
 
-    private final RecordExtractor recordExtractor = new RecordExtractor();
+    private final AtomicInteger batchesInProgress = new AtomicInteger();
 
-    private int resultCount;
+    private volatile boolean closed;
 
-    public MarkLogicExportListener(long maxDocs) {
+    public MarkLogicExportListener(long maxDocs, int maxPendingPages) {
+        this(maxDocs, maxPendingPages, new RecordExtractor());
+    }
+
+    public MarkLogicExportListener(long maxDocs, int maxPendingPages, RecordExtractor recordExtractor) {
         super();
-        if (maxDocs > 0) {
-            addDocsToListUntilMax(maxDocs);
-        } else {
-            addAllDocsToList();
-        }
+        this.recordExtractor = recordExtractor;
+        this.maxDocs = maxDocs;
+        this.pages = new ArrayBlockingQueue<>(Math.max(1, maxPendingPages));
+        this.onDocumentReady(this::addDocToPage);
         this.onFailure((batch, throwable) -> LOGGER.error("Unable to process batch; URIs: {}; cause: {}",
             Arrays.asList(batch.getItems()), throwable.getMessage())
         );
     }
 
-    private void addDocsToListUntilMax(long maxDocs) {
-        this.docs = new ArrayList<>();
-        // Must synchronize entire operation so that both the check on the number of documents and the addition to
-        // the list are threadsafe.
-        this.onDocumentReady(doc -> {
-            synchronized (docs) {
-                if (resultCount < maxDocs) {
-                    resultCount++;
-                    docs.add(recordExtractor.extractRecord(doc));
+    private void addDocToPage(DocumentRecord doc) {
+        if (maxDocs > 0) {
+            long slot = reservedDocs.getAndIncrement();
+            if (slot >= maxDocs) {
+                return;
+            }
+            if (slot == maxDocs - 1) {
+                maxDocsReached = true;
+            }
+        }
+        // Each page is only touched by the DMSDK thread processing its batch, so no synchronization is needed.
+        batchPage.get().add(recordExtractor.extractRecord(doc));
+    }
+
+    @Override
+    public void processEvent(QueryBatch batch) {
+        if (maxDocsReached) {
+            capBatcher(batch.getBatcher());
+            return;
+        }
+
+        batchesInProgress.incrementAndGet();
+        try {
+            List<Object> page = new ArrayList<>(batch.getItems().length);
+            batchPage.set(page);
+            try {
+                super.processEvent(batch);
+            } catch (RuntimeException ex) {
+                // The page will never be handed off, so the documents already spooled for it must be cleaned up here
+                RecordExtractor.discard(page);
+                throw ex;
+            } finally {
+                batchPage.remove();
+            }
+            if (!page.isEmpty()) {
+                handOff(page);
+            }
+            if (maxDocsReached) {
+                capBatcher(batch.getBatcher());
+            }
+        } finally {
+            batchesInProgress.decrementAndGet();
+        }
+    }
+
+    private void capBatcher(QueryBatcher batcher) {
+        if (batcherCapped.compareAndSet(false, true)) {
+            LOGGER.info("Collected the user-supplied maximum number of documents; no further URIs will be retrieved");
+            batcher.setMaxBatches();
+        }
+    }
+
+    private void handOff(List<Object> page) {
+        try {
+            while (!closed) {
+                if (pages.offer(page, HAND_OFF_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        // Closed while the page was being queued, possibly after the queue was drained
+                        close();
+                    }
+                    return;
                 }
             }
-        });
+            LOGGER.debug("Export has been closed; discarding page of {} documents", page.size());
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while handing off page of {} documents", page.size());
+            Thread.currentThread().interrupt();
+        }
+        RecordExtractor.discard(page);
+    }
+
+    /**
+     * @param timeout how long to wait for a page to be handed off by DMSDK
+     * @param unit the unit of the timeout
+     * @return the next page of documents, or null if none became available before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Object> pollPage(long timeout, TimeUnit unit) throws InterruptedException {
+        return pages.poll(timeout, unit);
     }
 
-    private void addAllDocsToList() {
-        // If no limit is set, just need threadsafe access to the list.
-        this.docs = Collections.synchronizedList(new ArrayList<>());
-        this.onDocumentReady(doc -> docs.add(recordExtractor.extractRecord(doc)));
+    /**
+     * @return true if the maximum number of documents has been collected and every page holding them has been handed
+     * off, in which case no further pages will be handed off
+     */
+    public boolean isFinished() {
+        return maxDocsReached && batchesInProgress.get() == 0;
     }
 
-    public List<Object> getDocs() {
-        return docs;
+    /**
+     * Releases any DMSDK threads waiting to hand off a page; pages that were never consumed, and pages handed off after
+     * this, are discarded along with any temporary files their documents were spooled to.
+     */
+    public void close() {
+        closed = true;
+        List<Object> page;
+        while ((page = pages.poll()) != null) {
+            RecordExtractor.discard(page);
+        }
     }
 }
@@ -0,0 +1,33 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates across the pages of documents returned to a paged operation.
+ *
+ * @since 1.2.2
+ */
+public interface MarkLogicPageIterator extends Iterator<Object>
+{
+    @Override
+    List<Object> next();
+
+    /**
+     * Releases any resources still held for fetching pages, whether or not every page has been returned.
+     */
+    void close();
+}
@@ -0,0 +1,115 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Returns a page for each batch of documents exported by a DMSDK {@link QueryBatcher} job. The job is started when
+ * the first page is requested and stopped once the last page has been returned, the export listener has collected its
+ * maximum number of documents, or the iterator is closed.
+ *
+ * @since 1.2.2
+ */
+public class MarkLogicQueryBatcherIterator implements MarkLogicPageIterator
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicQueryBatcherIterator.class);
+
+    private static final long PAGE_POLL_MILLIS = 50;
+
+    private final DataMovementManager dmm;
+    private final QueryBatcher batcher;
+    private final MarkLogicExportListener exportListener;
+    private final AtomicBoolean jobStarted = new AtomicBoolean(false);
+    private final AtomicBoolean jobStopped = new AtomicBoolean(false);
+    private boolean exhausted;
+    private long startTime;
+    private long documentCount;
+
+    /**
+     * @param dmm the manager used to start and stop the job
+     * @param batcher a batcher already configured with its batch size, thread count and failure listeners
+     * @param exportListener the listener that hands off a page for each batch
+     */
+    public MarkLogicQueryBatcherIterator(DataMovementManager dmm, QueryBatcher batcher, MarkLogicExportListener exportListener)
+    {
+        this.dmm = dmm;
+        this.batcher = batcher;
+        this.exportListener = exportListener;
+        batcher.onUrisReady(exportListener);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !exhausted;
+    }
+
+    // sonarqube is concerned about a NoSuchElementException not being thrown at some point, but that doesn't fit
+    // with how this iterator works; it returns an empty page instead
+    @SuppressWarnings("java:S2272")
+    @Override
+    public List<Object> next()
+    {
+        if (jobStarted.compareAndSet(false, true)) {
+            startTime = System.currentTimeMillis();
+            LOGGER.info("Starting job");
+            dmm.startJob(batcher);
+        }
+
+        try {
+            List<Object> page = exportListener.pollPage(PAGE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            while (page == null) {
+                if (exportListener.isFinished() || batcher.awaitCompletion(PAGE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // Every batch with documents to return has been processed, so anything left is already in the queue
+                    page = exportListener.pollPage(0, TimeUnit.MILLISECONDS);
+                    if (page == null) {
+                        exhausted = true;
+                        close();
+                        return new ArrayList<>();
+                    }
+                } else {
+                    page = exportListener.pollPage(PAGE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            documentCount += page.size();
+            return page;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new MarkLogicConnectorException("Interrupted while waiting for exported documents", ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        exhausted = true;
+        if (jobStarted.get() && jobStopped.compareAndSet(false, true)) {
+            exportListener.close();
+            dmm.stopJob(batcher);
+            LOGGER.info("Finished job, duration in ms: {}", System.currentTimeMillis() - startTime);
+            LOGGER.info("Document count: {}", documentCount);
+        }
+    }
+}
@@ -15,42 +15,83 @@ package com.marklogic.mule.extension.connector.internal.result.resultset;
 
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.document.DocumentPage;
-import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.document.GenericDocumentManager;
+import com.marklogic.client.io.SearchHandle;
 import com.marklogic.client.query.QueryDefinition;
 import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import org.mule.runtime.api.scheduler.Scheduler;
+import org.mule.runtime.api.scheduler.SchedulerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Iterates across all results returned by a synchronous {@link QueryDefinition}
  * execution.
+ * <p>
+ * When a prefetch depth is given, pages are fetched on a background scheduler ahead of the page being processed,
+ * so that the round trip for the next page overlaps with the processing of the current one. When parallel page
+ * fetches are allowed, up to that many consecutive pages are requested concurrently; pages are always returned in
+ * order of their start offset.
+ * <p>
+ * When a consistent snapshot is requested, the server timestamp of the first page is captured and every later page
+ * is requested at that point in time, so pages neither skip nor repeat documents under concurrent writes.
  *
  * @since 1.0.1
  *
  */
 //N.B.: Support server-side transforms
-public class MarkLogicResultSetIterator implements Iterator<Object>
+public class MarkLogicResultSetIterator implements MarkLogicPageIterator
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MarkLogicResultSetIterator.class);
-    private DocumentPage documentPage = null;
     private final GenericDocumentManager documentManager;
     private final QueryDefinition query;
     private long maxResults = 0;
     private final AtomicLong start = new AtomicLong(1);
     private final AtomicLong resultCount = new AtomicLong(0);
-    private final RecordExtractor recordExtractor = new RecordExtractor();
+    private final RecordExtractor recordExtractor;
+    private final int prefetchDepth;
+    private final int parallelPageFetches;
+    private final Scheduler scheduler;
+    private final LinkedList<CompletableFuture<ResultPage>> prefetchedPages = new LinkedList<>();
+    private final boolean useConsistentSnapshot;
+    private volatile long serverTimestamp = -1;
+    // Set once prefetching stops, so that pages waiting for an earlier one are never requested
+    private volatile boolean prefetchesCancelled;
+    private boolean hasNextPage = true;
 
     public MarkLogicResultSetIterator(MarkLogicConnection connection, QueryDefinition query, Integer pageLength, Long maxResults)
+    {
+        this(connection, query, pageLength, maxResults, 0, 1, false, new RecordExtractor());
+    }
+
+    // sonarqube flags this because of the number of args, but they all come straight from the queryDocs operation
+    @SuppressWarnings("java:S107")
+    public MarkLogicResultSetIterator(MarkLogicConnection connection, QueryDefinition query, Integer pageLength, Long maxResults,
+                                      int prefetchDepth, int parallelPageFetches, boolean useConsistentSnapshot,
+                                      RecordExtractor recordExtractor)
+    {
+        this(connection.getClient(), connection.getSchedulerService(), query, pageLength, maxResults, prefetchDepth,
+            parallelPageFetches, useConsistentSnapshot, recordExtractor);
+    }
+
+    // Takes the client and scheduler service directly so that tests can supply their own
+    @SuppressWarnings("java:S107")
+    MarkLogicResultSetIterator(DatabaseClient client, SchedulerService schedulerService, QueryDefinition query,
+                               Integer pageLength, Long maxResults, int prefetchDepth, int parallelPageFetches,
+                               boolean useConsistentSnapshot, RecordExtractor recordExtractor)
     {
         this.query = query;
-        DatabaseClient client = connection.getClient();
+        this.recordExtractor = recordExtractor;
+        this.useConsistentSnapshot = useConsistentSnapshot;
         documentManager = client.newDocumentManager();
         if (pageLength != null) {
             documentManager.setPageLength(pageLength);
@@ -58,14 +99,26 @@ public class MarkLogicResultSetIterator implements Iterator<Object>
         if (maxResults != null)  {
             this.maxResults = maxResults;
         }
+
+        // The service will be null in unit tests that don't inject a SchedulerService; pages are then fetched on
+        // the calling thread.
+        if ((prefetchDepth > 0 || parallelPageFetches > 1) && schedulerService != null) {
+            this.parallelPageFetches = Math.max(1, parallelPageFetches);
+            // Every page fetched in parallel is held until it is returned, so the depth is at least the parallelism
+            this.prefetchDepth = Math.max(prefetchDepth, this.parallelPageFetches);
+            this.scheduler = schedulerService.ioScheduler();
+        } else {
+            this.parallelPageFetches = 1;
+            this.prefetchDepth = 0;
+            this.scheduler = null;
+        }
     }
 
     @Override
     public boolean hasNext()
     {
-        boolean isFirstPageHasNext = start.longValue() == 1 || documentPage.hasNextPage();
         boolean notAtEnd = maxResults == 0 || resultCount.get() < maxResults;
-        return isFirstPageHasNext && notAtEnd;
+        return hasNextPage && notAtEnd;
     }
 
     // sonarqube is concerned about a NoSuchElementException not being thrown at some point, but that doesn't fit
@@ -73,21 +126,155 @@ public class MarkLogicResultSetIterator implements Iterator<Object>
     @SuppressWarnings("java:S2272")
     @Override
     public List<Object> next()
+    {
+        // The PagingProvider keeps asking for pages until it is given an empty one, which may be after the last page
+        // or maxResults has already been reached
+        if (!hasNext()) {
+            return Collections.emptyList();
+        }
+
+        // The first page of a consistent snapshot is always fetched on its own, as every other page needs its timestamp
+        boolean awaitingTimestamp = useConsistentSnapshot && serverTimestamp < 0 && resultCount.get() == 0;
+        ResultPage page = prefetchDepth > 0 && !awaitingTimestamp ?
+            nextPrefetchedPage() :
+            fetchPage(start.getAndAdd(documentManager.getPageLength()));
+
+        hasNextPage = page.hasNextPage;
+        if (maxResults > 0 && resultCount.addAndGet(page.records.size()) >= maxResults) {
+            LOGGER.info("Processed the user-supplied maximum number of results, which is {}", maxResults);
+        }
+
+        if (prefetchDepth > 0) {
+            if (hasNext()) {
+                schedulePrefetches();
+            } else {
+                cancelPrefetches();
+            }
+        }
+        return page.records;
+    }
+
+    /**
+     * Cancels any page still being prefetched and releases the scheduler used for prefetching.
+     */
+    @Override
+    public void close()
+    {
+        if (scheduler != null) {
+            cancelPrefetches();
+            scheduler.stop();
+        }
+    }
+
+    private ResultPage nextPrefetchedPage()
+    {
+        if (prefetchedPages.isEmpty()) {
+            schedulePrefetches();
+            if (prefetchedPages.isEmpty()) {
+                return ResultPage.LAST;
+            }
+        }
+        try {
+            return prefetchedPages.removeFirst().join();
+        } catch (CompletionException ex) {
+            cancelPrefetches();
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private void schedulePrefetches()
+    {
+        final long pageLength = documentManager.getPageLength();
+        while (prefetchedPages.size() < prefetchDepth && (maxResults == 0 || start.get() <= maxResults)) {
+            final long pageStart = start.getAndAdd(pageLength);
+            // A page is only requested once the page parallelPageFetches positions before it has been received. This
+            // bounds the number of concurrent requests and keeps pages from being fetched far past the last page of
+            // results; a page fetched past the end is simply empty.
+            int dependencyIndex = prefetchedPages.size() - parallelPageFetches;
+            prefetchedPages.addLast(dependencyIndex < 0 ?
+                CompletableFuture.supplyAsync(() -> prefetchPage(pageStart), scheduler) :
+                prefetchedPages.get(dependencyIndex).thenApplyAsync(
+                    page -> page.hasNextPage ? prefetchPage(pageStart) : ResultPage.LAST, scheduler));
+        }
+    }
+
+    private void cancelPrefetches()
+    {
+        prefetchesCancelled = true;
+        // A request already sent can't be interrupted, so pages fetched or still being fetched are discarded once
+        // they arrive rather than cancelled, which would drop them along with any files their documents were spooled to
+        prefetchedPages.forEach(page -> page.thenAccept(fetched -> RecordExtractor.discard(fetched.records)));
+        prefetchedPages.clear();
+    }
+
+    private ResultPage prefetchPage(long pageStart)
+    {
+        return prefetchesCancelled ? ResultPage.LAST : fetchPage(pageStart);
+    }
+
+    private ResultPage fetchPage(long pageStart)
     {
         long fetchSize = documentManager.getPageLength();
-        documentPage = documentManager.search(query, start.getAndAdd(fetchSize));
-        final List<Object> page = new ArrayList<>((int)fetchSize);
-        for (int i = 0; i < fetchSize && documentPage.hasNext(); i++)
-        {
-            if ((maxResults > 0) && (resultCount.getAndIncrement() >= maxResults)) {
-                LOGGER.info("Processed the user-supplied maximum number of results, which is {}", maxResults);
-                break;
+        DocumentPage documentPage = useConsistentSnapshot ?
+            searchAtSnapshot(pageStart) :
+            documentManager.search(query, pageStart);
+        final List<Object> records = new ArrayList<>((int)fetchSize);
+        try {
+            for (long position = pageStart; position < pageStart + fetchSize && documentPage.hasNext(); position++)
+            {
+                if (maxResults > 0 && position > maxResults) {
+                    break;
+                }
+                records.add(recordExtractor.extractRecord(documentPage.next()));
             }
-            DocumentRecord nextRecord = documentPage.next();
-            Object content = recordExtractor.extractRecord(nextRecord);
-            page.add(content);
+            return new ResultPage(records, documentPage.hasNextPage());
+        } catch (RuntimeException ex) {
+            // The page will never be returned, so the documents already spooled for it must be cleaned up here
+            RecordExtractor.discard(records);
+            throw ex;
+        } finally {
+            documentPage.close();
+        }
+    }
+
+    private DocumentPage searchAtSnapshot(long pageStart)
+    {
+        SearchHandle searchHandle = newSearchHandle();
+        if (serverTimestamp >= 0) {
+            searchHandle.setPointInTimeQueryTimestamp(serverTimestamp);
+            return documentManager.search(query, pageStart, searchHandle);
+        }
+
+        DocumentPage documentPage = documentManager.search(query, pageStart, searchHandle);
+        serverTimestamp = searchHandle.getServerTimestamp();
+        if (serverTimestamp < 0) {
+            LOGGER.warn("No server timestamp was returned for the first page; later pages will not use a consistent snapshot");
+        } else {
+            LOGGER.debug("Using consistent snapshot at server timestamp {}", serverTimestamp);
+        }
+        return documentPage;
+    }
+
+    // Overridden by tests, as only the client sets the server timestamp of a handle
+    SearchHandle newSearchHandle()
+    {
+        return new SearchHandle();
+    }
+
+    private static class ResultPage
+    {
+        private static final ResultPage LAST = new ResultPage(Collections.emptyList(), false);
+
+        private final List<Object> records;
+        private final boolean hasNextPage;
+
+        private ResultPage(List<Object> records, boolean hasNextPage)
+        {
+            this.records = records;
+            this.hasNextPage = hasNextPage;
         }
-        documentPage.close();
-        return page;
     }
-}
\ No newline at end of file
+}
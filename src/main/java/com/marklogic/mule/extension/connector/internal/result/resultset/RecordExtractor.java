@@ -13,19 +13,32 @@
  */
 package com.marklogic.mule.extension.connector.internal.result.resultset;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.io.BytesHandle;
 import com.marklogic.client.io.Format;
-import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.io.StringHandle;
 import com.marklogic.mule.extension.connector.api.operation.MarkLogicMimeType;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicOutputMode;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.mule.runtime.api.metadata.MediaType;
+import org.mule.runtime.api.streaming.bytes.CursorStreamProvider;
+import org.mule.runtime.extension.api.runtime.operation.Result;
+import org.mule.runtime.extension.api.runtime.streaming.StreamingHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Intent is for a dependent to hold onto an instance of this to avoid re-instantiation of the Jackson ObjectMapper.
@@ -33,39 +46,157 @@ import java.util.Map;
  */
 public class RecordExtractor {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordExtractor.class);
+
     private ObjectMapper objectMapper = new ObjectMapper();
 
+    private final MarkLogicOutputMode outputMode;
+
+    // Documents with more bytes than this are spooled to a temporary file; zero or less keeps every document in memory
+    private final int inMemoryThreshold;
+
+    private final StreamingHelper streamingHelper;
+
+    public RecordExtractor() {
+        this(MarkLogicOutputMode.STRUCTURED);
+    }
+
+    public RecordExtractor(MarkLogicOutputMode outputMode) {
+        this(outputMode, 0, null);
+    }
+
+    /**
+     * @param outputMode how the content of each document is returned
+     * @param inMemoryThreshold the number of bytes above which XML, text and binary documents are spooled to a
+     *                          temporary file and returned as a stream; zero or less disables spooling
+     * @param streamingHelper used to make spooled documents repeatable streams; may be null, in which case spooled
+     *                        documents are returned as plain streams
+     */
+    public RecordExtractor(MarkLogicOutputMode outputMode, int inMemoryThreshold, StreamingHelper streamingHelper) {
+        this.outputMode = outputMode != null ? outputMode : MarkLogicOutputMode.STRUCTURED;
+        this.inMemoryThreshold = inMemoryThreshold;
+        this.streamingHelper = streamingHelper;
+    }
+
     public Object extractRecord(DocumentRecord doc) {
         MarkLogicMimeType mimeType = fromString(doc.getMimetype());
+        if (MarkLogicOutputMode.RAW.equals(outputMode)) {
+            return extractRawRecord(doc, mimeType);
+        }
+        if (inMemoryThreshold > 0 && !MarkLogicMimeType.json.equals(mimeType)) {
+            return extractBoundedRecord(doc, mimeType);
+        }
         if (MarkLogicMimeType.xml.equals(mimeType)) {
             return doc.getContent(new StringHandle()).withMimetype("application/xml").withFormat(Format.XML).get();
         } else if (MarkLogicMimeType.json.equals(mimeType)) {
-            Object content;
-            JsonNode jsonNode = doc.getContent(new JacksonHandle()).get();
-            JsonNodeType nodeType = jsonNode.getNodeType();
-            if (null == nodeType) {
-                content = objectMapper.convertValue(jsonNode, Map.class);
-            } else switch (nodeType) {
-                case ARRAY:
-                    content = objectMapper.convertValue(jsonNode, List.class);
-                    break;
-                case STRING:
-                    content = objectMapper.convertValue(jsonNode, String.class);
-                    break;
-                case NUMBER:
-                    content = objectMapper.convertValue(jsonNode, Number.class);
-                    break;
-                default:
-                    content = objectMapper.convertValue(jsonNode, Map.class);
-                    break;
+            // Parse straight from the bytes into maps, lists and values rather than building a JsonNode tree first
+            byte[] content = doc.getContent(new BytesHandle()).get();
+            try {
+                return objectMapper.readValue(content, Object.class);
+            } catch (IOException ex) {
+                throw new MarkLogicConnectorException(String.format("Unable to parse JSON document %s", doc.getUri()), ex);
             }
-            return content;
         } else if (MarkLogicMimeType.text.equals(mimeType)) {
             return doc.getContent(new StringHandle()).get();
         }
         return doc.getContent(new BytesHandle()).get();
     }
 
+    /**
+     * Small documents are returned exactly as they would be without a threshold; documents that had to be spooled are
+     * returned as a plain stream, as a page of parsed documents can't carry a media type for each item.
+     */
+    private Object extractBoundedRecord(DocumentRecord doc, MarkLogicMimeType mimeType) {
+        Object content = readContent(doc);
+        if (!(content instanceof byte[])) {
+            return content;
+        }
+        byte[] bytes = (byte[]) content;
+        return MarkLogicMimeType.binary.equals(mimeType) ? bytes : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Result<Object, Void> extractRawRecord(DocumentRecord doc, MarkLogicMimeType mimeType) {
+        // The content must be read before the page it belongs to is closed, so it is returned as a stream over its
+        // bytes, or over its spooled copy, rather than the stream of the response itself
+        Object content = inMemoryThreshold > 0 ? readContent(doc) : doc.getContent(new BytesHandle()).get();
+        Object output = content instanceof byte[] ? new ByteArrayInputStream((byte[]) content) : content;
+        return Result.<Object, Void>builder()
+            .output(output)
+            .mediaType(toMediaType(doc, mimeType))
+            .build();
+    }
+
+    private MediaType toMediaType(DocumentRecord doc, MarkLogicMimeType mimeType) {
+        MediaType mediaType = doc.getMimetype() != null ? MediaType.parse(doc.getMimetype()) : MediaType.BINARY;
+        if (!MarkLogicMimeType.binary.equals(mimeType) && !mediaType.getCharset().isPresent()) {
+            mediaType = mediaType.withCharset(StandardCharsets.UTF_8);
+        }
+        return mediaType;
+    }
+
+    /**
+     * Reads the content in chunks, so that at most inMemoryThreshold bytes of it are ever held in memory.
+     *
+     * @return the content as a byte array if it fits within the threshold, otherwise a stream over a temporary file
+     * holding the content
+     */
+    private Object readContent(DocumentRecord doc) {
+        try (InputStream in = doc.getContent(new InputStreamHandle()).get()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(inMemoryThreshold, 8192));
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (buffer.size() + read > inMemoryThreshold) {
+                    return spool(buffer, chunk, read, in);
+                }
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toByteArray();
+        } catch (IOException ex) {
+            throw new MarkLogicConnectorException(String.format("Unable to read document %s", doc.getUri()), ex);
+        }
+    }
+
+    private Object spool(ByteArrayOutputStream buffer, byte[] chunk, int read, InputStream in) throws IOException {
+        Path file = Files.createTempFile("marklogic-document-", ".tmp");
+        InputStream spooled;
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                buffer.writeTo(out);
+                out.write(chunk, 0, read);
+                int count;
+                while ((count = in.read(chunk)) != -1) {
+                    out.write(chunk, 0, count);
+                }
+            }
+            spooled = new SpooledDocumentInputStream(file);
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return streamingHelper != null ? streamingHelper.resolveCursorProvider(spooled) : spooled;
+    }
+
+    /**
+     * Closes the content of records that will never be returned, such as those of pages that were fetched but not
+     * consumed, so that any temporary files they were spooled to are deleted.
+     */
+    public static void discard(List<Object> records) {
+        for (Object record : records) {
+            Object content = record instanceof Result ? ((Result<?, ?>) record).getOutput() : record;
+            try {
+                if (content instanceof CursorStreamProvider) {
+                    ((CursorStreamProvider) content).close();
+                    ((CursorStreamProvider) content).releaseResources();
+                } else if (content instanceof InputStream) {
+                    ((InputStream) content).close();
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Unable to close the content of a discarded document", ex);
+            }
+        }
+    }
+
     private MarkLogicMimeType fromString(String mimeString) {
         if (mimeString != null) {
             List<String> typeString = Arrays.asList(mimeString.split("/"));
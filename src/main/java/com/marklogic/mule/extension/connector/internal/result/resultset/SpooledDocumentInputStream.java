@@ -0,0 +1,61 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads a document that was spooled to a temporary file because it was too large to hold in memory, and deletes the
+ * file once the stream is closed.
+ */
+class SpooledDocumentInputStream extends FilterInputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpooledDocumentInputStream.class);
+
+    private final Path file;
+
+    private boolean closed;
+
+    SpooledDocumentInputStream(Path file) throws IOException {
+        super(Files.newInputStream(file));
+        this.file = file;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to delete spooled document file {}", file, ex);
+            }
+        }
+    }
+}
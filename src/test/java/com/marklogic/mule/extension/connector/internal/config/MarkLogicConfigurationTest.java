@@ -14,7 +14,9 @@
 package com.marklogic.mule.extension.connector.internal.config;
 
 import com.marklogic.client.document.ServerTransform;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicBackpressurePolicy;
 import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import com.marklogic.mule.extension.connector.internal.operation.WriteRateLimiter;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -121,6 +123,184 @@ public class MarkLogicConfigurationTest
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of getInMemoryDocumentThreshold method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetInMemoryDocumentThreshold()
+    {
+        int expResult = 1048576;
+        instance.setInMemoryDocumentThreshold(expResult);
+        int result = instance.getInMemoryDocumentThreshold();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getMaxInsertionBatchers method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMaxInsertionBatchers()
+    {
+        int expResult = 64;
+        instance.setMaxInsertionBatchers(expResult);
+        int result = instance.getMaxInsertionBatchers();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getInsertionBatcherIdleTimeout method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetInsertionBatcherIdleTimeout()
+    {
+        int expResult = 300;
+        instance.setInsertionBatcherIdleTimeout(expResult);
+        int result = instance.getInsertionBatcherIdleTimeout();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getMaxConcurrentBatches method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMaxConcurrentBatches()
+    {
+        int expResult = 8;
+        instance.setMaxConcurrentBatches(expResult);
+        int result = instance.getMaxConcurrentBatches();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getMaxInFlightDocuments method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMaxInFlightDocuments()
+    {
+        int expResult = 10000;
+        instance.setMaxInFlightDocuments(expResult);
+        int result = instance.getMaxInFlightDocuments();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getBackpressurePolicy method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetBackpressurePolicy()
+    {
+        MarkLogicBackpressurePolicy expResult = MarkLogicBackpressurePolicy.TIMEOUT;
+        instance.setBackpressurePolicy(expResult);
+        MarkLogicBackpressurePolicy result = instance.getBackpressurePolicy();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getMaxBatchBytes method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMaxBatchBytes()
+    {
+        long expResult = 10485760L;
+        instance.setMaxBatchBytes(expResult);
+        long result = instance.getMaxBatchBytes();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getLingerMillis method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetLingerMillis()
+    {
+        int expResult = 250;
+        instance.setLingerMillis(expResult);
+        int result = instance.getLingerMillis();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getMaxBatchRetries method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMaxBatchRetries()
+    {
+        int expResult = 5;
+        instance.setMaxBatchRetries(expResult);
+        int result = instance.getMaxBatchRetries();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getBatchRetryBackoff method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetBatchRetryBackoff()
+    {
+        long expResult = 1000L;
+        instance.setBatchRetryBackoff(expResult);
+        long result = instance.getBatchRetryBackoff();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getDeadLetterDirectory method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetDeadLetterDirectory()
+    {
+        String expResult = "/var/spool/marklogic-mule";
+        instance.setDeadLetterDirectory(expResult);
+        String result = instance.getDeadLetterDirectory();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of isAdaptiveBatching method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testIsAdaptiveBatching()
+    {
+        instance.setAdaptiveBatching(true);
+        assertTrue(instance.isAdaptiveBatching());
+    }
+
+    /**
+     * Test of getMinBatchSize method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetMinBatchSize()
+    {
+        int expResult = 10;
+        instance.setMinBatchSize(expResult);
+        int result = instance.getMinBatchSize();
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of getWriteRateLimiter method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testGetWriteRateLimiter()
+    {
+        instance.setMaxDocumentsPerSecond(1000L);
+        instance.setMaxBytesPerSecond(10485760L);
+        WriteRateLimiter result = instance.getWriteRateLimiter();
+        assertEquals(1000L, result.getDocumentsPerSecond());
+        assertEquals(10485760L, result.getBytesPerSecond());
+        assertSame("Every batcher of the configuration shares the limiter", result, instance.getWriteRateLimiter());
+    }
+
+    /**
+     * Test of isDeduplicateUris method, of class MarkLogicConfiguration.
+     */
+    @Test
+    public void testIsDeduplicateUris()
+    {
+        instance.setDeduplicateUris(true);
+        assertTrue(instance.isDeduplicateUris());
+    }
+
     /**
      * Test of isDefine static method, of class MarkLogicConfiguration.
      */
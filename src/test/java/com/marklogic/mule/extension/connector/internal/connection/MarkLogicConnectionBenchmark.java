@@ -0,0 +1,126 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.connection;
+
+import com.marklogic.mule.extension.connector.api.connection.AuthenticationType;
+import com.marklogic.mule.extension.connector.api.connection.MarkLogicConnectionType;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
+import com.marklogic.mule.extension.connector.internal.operation.MarkLogicInsertionBatcher;
+import org.mule.runtime.api.connection.ConnectionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link MarkLogicConnection#getInsertionBatcher} lookups, i.e. the path every importDocs
+ * call takes once its batcher exists, including taking and returning the lease that keeps the batcher from being
+ * evicted. Each batcher is created during setup, so only cache hits are measured.
+ * <p>
+ * Like {@code MarkLogicOperationTest}, this needs the test application deployed by "./gradlew -i mlDeploy", as
+ * creating a batcher starts a DMSDK job. Run {@link #main(String[])} from the IDE or with the test classpath to
+ * benchmark 1 through 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkLogicConnectionBenchmark {
+
+    private static final String PROPERTIES_FILE = "src/test/resources/automation-credentials.properties";
+    private static final int PORT = 8011;
+    private static final int MAX_THREAD_COUNT = 64;
+    // Distinct temporal collections, so that lookups are spread over several batchers as in a flow importing to
+    // different destinations; nothing is written, so they do not need to exist
+    private static final String[] TEMPORAL_COLLECTIONS = {
+        "benchmark-a", "benchmark-b", "benchmark-c", "benchmark-d",
+        "benchmark-e", "benchmark-f", "benchmark-g", "benchmark-h"
+    };
+
+    private MarkLogicConfiguration configuration;
+    private MarkLogicConnection connection;
+
+    @Setup
+    public void setUp() throws IOException, ConnectionException {
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(PROPERTIES_FILE)) {
+            prop.load(input);
+        }
+        configuration = new MarkLogicConfiguration();
+        configuration.setConfigId("benchmarkConfig");
+        configuration.setThreadCount(4);
+        configuration.setBatchSize(100);
+        configuration.setSecondsBeforeFlush(2);
+        configuration.setJobName("benchmarkJob");
+
+        connection = new MarkLogicConnection(new MarkLogicConnectionProvider()
+            .withHostname(prop.getProperty("config.hostName"))
+            .withPort(PORT)
+            .withUsername(prop.getProperty("config.username"))
+            .withPassword(prop.getProperty("config.password"))
+            .withAuthenticationType(AuthenticationType.digest)
+            .withMarklogicConnectionType(MarkLogicConnectionType.DIRECT)
+            .withConnectionId("benchmark-connection-id"));
+        connection.connect();
+
+        for (String temporalCollection : TEMPORAL_COLLECTIONS) {
+            getInsertionBatcher(temporalCollection).returnLease();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.invalidate();
+    }
+
+    @Benchmark
+    public MarkLogicInsertionBatcher getInsertionBatcher() {
+        MarkLogicInsertionBatcher batcher = getInsertionBatcher(TEMPORAL_COLLECTIONS[ThreadLocalRandom.current().nextInt(TEMPORAL_COLLECTIONS.length)]);
+        batcher.returnLease();
+        return batcher;
+    }
+
+    private MarkLogicInsertionBatcher getInsertionBatcher(String temporalCollection) {
+        return connection.getInsertionBatcher(configuration, temporalCollection, "null", "null");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threadCount = 1; threadCount <= MAX_THREAD_COUNT; threadCount *= 2) {
+            new Runner(new OptionsBuilder()
+                .include(MarkLogicConnectionBenchmark.class.getSimpleName())
+                .threads(threadCount)
+                .build()).run();
+        }
+    }
+}
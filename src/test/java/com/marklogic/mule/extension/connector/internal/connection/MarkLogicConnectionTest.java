@@ -24,6 +24,7 @@ import com.marklogic.mule.extension.connector.internal.operation.MarkLogicConnec
 import org.junit.Test;
 import org.mule.runtime.api.connection.ConnectionException;
 import org.mule.runtime.api.lifecycle.InitialisationException;
+import org.mule.runtime.api.scheduler.SchedulerService;
 import org.mule.runtime.api.tls.TlsContextFactory;
 import org.mule.runtime.api.tls.TlsContextKeyStoreConfiguration;
 import org.mule.runtime.api.tls.TlsContextTrustStoreConfiguration;
@@ -36,6 +37,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 public class MarkLogicConnectionTest {
@@ -68,6 +70,22 @@ public class MarkLogicConnectionTest {
         assertEquals(CONNECTION_ID, result);
     }
     
+    @Test
+    public void testSchedulerIsNotTakenUntilABatcherIsCreated()
+    {
+        SchedulerService schedulerService = mock(SchedulerService.class);
+        new MarkLogicConnection(new MarkLogicConnectionProvider()
+            .withHostname(LOCALHOST)
+            .withPort(PORT)
+            .withUsername(USER_NAME)
+            .withPassword(USER_PASSWORD)
+            .withAuthenticationType(AuthenticationType.digest)
+            .withMarklogicConnectionType(MarkLogicConnectionType.DIRECT)
+            .withConnectionId(CONNECTION_ID), schedulerService);
+
+        verify(schedulerService, never()).ioScheduler();
+    }
+
     @Test
     public void testIsConnectedNull() {
         MarkLogicConnection instance = new MarkLogicConnection(new MarkLogicConnectionProvider()
@@ -0,0 +1,146 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchControllerTest
+{
+    private final AtomicLong clock = new AtomicLong();
+
+    private AdaptiveBatchController instance;
+
+    @Before
+    public void setUp()
+    {
+        instance = new AdaptiveBatchController(10, 100, 4, clock::get);
+    }
+
+    // Writes one window of batches at once, taking the given time, so that the controller adjusts once
+    private void writeWindow(int documentsPerBatch, long millis, boolean success)
+    {
+        int batches = instance.getConcurrency();
+        for (int i = 0; i < batches; i++)
+        {
+            assertTrue(instance.tryAcquireSlot());
+        }
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        for (int i = 0; i < batches; i++)
+        {
+            instance.batchCompleted(documentsPerBatch, millis, success);
+        }
+    }
+
+    @Test
+    public void testStartsAtMinimum()
+    {
+        assertEquals(10, instance.getBatchSize());
+        assertEquals(1, instance.getConcurrency());
+    }
+
+    @Test
+    public void testGrowsWhileThroughputHoldsUp()
+    {
+        writeWindow(10, 1000, true);
+        assertEquals(20, instance.getBatchSize());
+        assertEquals(2, instance.getConcurrency());
+        assertEquals(10.0, instance.getThroughput(), 0.001);
+
+        for (int i = 0; i < 20; i++)
+        {
+            writeWindow(instance.getBatchSize(), 1000, true);
+        }
+        assertEquals("Bounded by the maximum batch size", 100, instance.getBatchSize());
+        assertEquals("Bounded by the maximum concurrency", 4, instance.getConcurrency());
+    }
+
+    @Test
+    public void testShrinksWhenThroughputDrops()
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            writeWindow(instance.getBatchSize(), 1000, true);
+        }
+        assertEquals(60, instance.getBatchSize());
+        assertEquals(4, instance.getConcurrency());
+
+        writeWindow(instance.getBatchSize(), 10000, true);
+        assertEquals(30, instance.getBatchSize());
+        assertEquals(2, instance.getConcurrency());
+    }
+
+    @Test
+    public void testShrinksOnFailure()
+    {
+        writeWindow(10, 1000, true);
+        writeWindow(20, 1000, true);
+        assertEquals(30, instance.getBatchSize());
+
+        assertTrue(instance.tryAcquireSlot());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        instance.batchCompleted(30, 100, false);
+        assertEquals(15, instance.getBatchSize());
+        assertEquals(1, instance.getConcurrency());
+
+        writeWindow(10, 100000, true);
+        assertEquals("Never below the minimum", 10, instance.getBatchSize());
+    }
+
+    @Test
+    public void testIdleTimeIsNotMeasured()
+    {
+        writeWindow(10, 1000, true);
+        assertEquals(20, instance.getBatchSize());
+
+        // No documents arrive for a minute, which says nothing about how fast the cluster writes them
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        writeWindow(20, 1000, true);
+        assertEquals(40.0, instance.getThroughput(), 0.001);
+        assertEquals(30, instance.getBatchSize());
+        assertEquals(3, instance.getConcurrency());
+    }
+
+    @Test
+    public void testOverlappingBatchesAreMeasuredOnce()
+    {
+        writeWindow(10, 1000, true);
+        assertEquals(2, instance.getConcurrency());
+
+        // Two batches written over the same second, one starting half way through the other
+        assertTrue(instance.tryAcquireSlot());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(instance.tryAcquireSlot());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        instance.batchCompleted(20, 1000, true);
+        instance.batchCompleted(20, 500, true);
+        assertEquals(40.0, instance.getThroughput(), 0.001);
+    }
+
+    @Test
+    public void testSlotsLimitConcurrency()
+    {
+        assertTrue(instance.tryAcquireSlot());
+        assertFalse(instance.tryAcquireSlot());
+        instance.releaseSlot();
+        assertTrue(instance.tryAcquireSlot());
+    }
+}
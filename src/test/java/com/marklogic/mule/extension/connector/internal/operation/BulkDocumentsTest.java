@@ -0,0 +1,187 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicSplitFormat;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mule.runtime.api.streaming.object.CursorIterator;
+import org.mule.runtime.api.streaming.object.CursorIteratorProvider;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BulkDocumentsTest
+{
+    private final MarkLogicOperations operations = new MarkLogicOperations();
+
+    private MarkLogicInsertionBatcher batcher;
+
+    @Before
+    public void setUp()
+    {
+        batcher = mock(MarkLogicInsertionBatcher.class);
+        when(batcher.getJobId()).thenReturn("job-1");
+    }
+
+    private long addAll(Object documents)
+    {
+        return operations.addBulkDocuments(batcher, documents, "defaults", "rest-reader,read", 1, "/prefix/", ".json");
+    }
+
+    @Test
+    public void testListUsesPerDocumentOverrides()
+    {
+        Map<String, Object> overridden = new HashMap<>();
+        overridden.put("uri", "/custom.json");
+        overridden.put("collections", Arrays.asList("a", "b"));
+        overridden.put("quality", 5);
+        overridden.put("content", "{\"x\":1}");
+
+        assertEquals(2, addAll(Arrays.asList(overridden, "plain")));
+
+        ArgumentCaptor<AbstractWriteHandle> content = ArgumentCaptor.forClass(AbstractWriteHandle.class);
+        verify(batcher).add(eq("/custom.json"), eq("a,b"), eq("rest-reader,read"), eq(5), content.capture());
+        assertEquals("{\"x\":1}", ((StringHandle) content.getValue()).get());
+        verify(batcher).add(startsWith("/prefix/"), eq("defaults"), eq("rest-reader,read"), eq(1), any(StringHandle.class));
+    }
+
+    @Test
+    public void testIteratorIsConsumedOneDocumentAtATime()
+    {
+        Iterator<String> documents = Arrays.asList("a", "b", "c").iterator();
+
+        assertEquals(3, addAll(documents));
+        verify(batcher, times(3)).add(anyString(), anyString(), anyString(), anyInt(), any(StringHandle.class));
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void testStreamedCollectionCursorIsClosed() throws Exception
+    {
+        CursorIterator<Object> cursor = mock(CursorIterator.class);
+        when(cursor.hasNext()).thenReturn(true, true, false);
+        when(cursor.next()).thenReturn("a", "b");
+        CursorIteratorProvider provider = mock(CursorIteratorProvider.class);
+        when(provider.openCursor()).thenReturn((CursorIterator) cursor);
+
+        assertEquals(2, addAll(provider));
+        verify(cursor).close();
+    }
+
+    @Test
+    public void testJsonArrayStreamIsReadElementByElement()
+    {
+        String payload = "[{\"uri\":\"/one.json\",\"content\":{\"n\":1}}, {\"n\":2}]";
+
+        assertEquals(2, addAll(new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8))));
+
+        ArgumentCaptor<AbstractWriteHandle> content = ArgumentCaptor.forClass(AbstractWriteHandle.class);
+        verify(batcher).add(eq("/one.json"), eq("defaults"), eq("rest-reader,read"), eq(1), content.capture());
+        assertEquals(1, ((JacksonHandle) content.getValue()).get().get("n").asInt());
+        verify(batcher).add(startsWith("/prefix/"), eq("defaults"), eq("rest-reader,read"), eq(1), any(JacksonHandle.class));
+    }
+
+    @Test
+    public void testFailureReportsTheDocumentsAlreadyAdded()
+    {
+        List<Object> documents = Arrays.asList("a", "b", 42, "d");
+
+        try
+        {
+            addAll(documents);
+            fail("Expected the unsupported document to be rejected");
+        }
+        catch (MarkLogicConnectorException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Unable to add document 3; the 2 documents before it were added to job job-1"));
+        }
+        verify(batcher, times(2)).add(anyString(), anyString(), anyString(), anyInt(), any(StringHandle.class));
+    }
+
+    @Test
+    public void testBatcherFailureReportsTheDocumentsAlreadyAdded()
+    {
+        doThrow(new IllegalStateException("Insertion batcher is closed"))
+            .when(batcher).add(eq("/second.json"), anyString(), anyString(), anyInt(), any(AbstractWriteHandle.class));
+        Map<String, Object> first = new HashMap<>();
+        first.put("uri", "/first.json");
+        first.put("content", "1");
+        Map<String, Object> second = new HashMap<>();
+        second.put("uri", "/second.json");
+        second.put("content", "2");
+
+        try
+        {
+            addAll(Arrays.asList(first, second));
+            fail("Expected the batcher failure to be reported");
+        }
+        catch (MarkLogicConnectorException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Unable to add document 2; the 1 documents before it were added"));
+            assertEquals(IllegalStateException.class, ex.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void testSplitBatcherFailureReportsTheRecordsAlreadyAdded()
+    {
+        doThrow(new IllegalStateException("Insertion batcher is closed"))
+            .when(batcher).add(eq("/prefix/3.json"), anyString(), anyString(), anyInt(), any(AbstractWriteHandle.class));
+        String payload = "{\"id\":1}\n{\"id\":2}\n{\"id\":3}\n{\"id\":4}\n";
+
+        try
+        {
+            operations.addSplitDocuments(batcher, new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)),
+                MarkLogicSplitFormat.NDJSON, "id", "defaults", "rest-reader,read", 1, "/prefix/", ".json");
+            fail("Expected the batcher failure to be reported");
+        }
+        catch (MarkLogicConnectorException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Unable to add record 3; the 2 records before it were added to job job-1"));
+            assertEquals(IllegalStateException.class, ex.getCause().getClass());
+        }
+        verify(batcher, times(3)).add(anyString(), anyString(), anyString(), anyInt(), any(JacksonHandle.class));
+    }
+
+    @Test(expected = MarkLogicConnectorException.class)
+    public void testUnsupportedPayloadIsRejected()
+    {
+        addAll(42);
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeadLetterSpoolTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DeadLetterSpool.DeadLetter letter(String uri, String temporalCollection)
+    {
+        return new DeadLetterSpool.DeadLetter(uri, "JSON", "application/json", temporalCollection, "ml:sjsInputFlow",
+            null, "<metadata/>".getBytes(StandardCharsets.UTF_8), "{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Path spoolSegment(Path directory, String... uris)
+    {
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        for (String uri : uris)
+        {
+            spool.append(letter(uri, null));
+        }
+        spool.close();
+        return DeadLetterSpool.completedSegments(directory).get(0);
+    }
+
+    private static List<String> readUris(Path directory)
+    {
+        return readAll(directory).stream().map(letter -> letter.uri).collect(Collectors.toList());
+    }
+
+    private static List<Path> files(Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    private static List<DeadLetterSpool.DeadLetter> readAll(Path directory)
+    {
+        List<DeadLetterSpool.DeadLetter> letters = new ArrayList<>();
+        for (Path segment : DeadLetterSpool.completedSegments(directory))
+        {
+            DeadLetterSpool.read(segment, letters::add);
+        }
+        return letters;
+    }
+
+    @Test
+    public void testAppendAndRead()
+    {
+        Path directory = folder.getRoot().toPath().resolve("spool");
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        spool.append(letter("/a.json", null));
+        spool.append(letter("/b.json", "myTemporalCollection"));
+
+        assertTrue("An open segment is not replayed", DeadLetterSpool.completedSegments(directory).isEmpty());
+        spool.close();
+
+        List<DeadLetterSpool.DeadLetter> letters = readAll(directory);
+        assertEquals(2, letters.size());
+        assertEquals("/a.json", letters.get(0).uri);
+        assertNull(letters.get(0).temporalCollection);
+        assertNull(letters.get(0).serverTransformParams);
+        assertEquals("/b.json", letters.get(1).uri);
+        assertEquals("JSON", letters.get(1).format);
+        assertEquals("application/json", letters.get(1).mimetype);
+        assertEquals("myTemporalCollection", letters.get(1).temporalCollection);
+        assertEquals("ml:sjsInputFlow", letters.get(1).serverTransform);
+        assertArrayEquals("<metadata/>".getBytes(StandardCharsets.UTF_8), letters.get(1).metadata);
+        assertArrayEquals("{\"a\":1}".getBytes(StandardCharsets.UTF_8), letters.get(1).content);
+    }
+
+    @Test
+    public void testRollCompletesTheSegment()
+    {
+        Path directory = folder.getRoot().toPath();
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        spool.append(letter("/a.json", null));
+        spool.roll();
+        spool.append(letter("/b.json", null));
+
+        List<DeadLetterSpool.DeadLetter> letters = readAll(directory);
+        assertEquals("Only the document before the roll can be replayed", 1, letters.size());
+        assertEquals("/a.json", letters.get(0).uri);
+
+        spool.close();
+        assertEquals(2, DeadLetterSpool.completedSegments(directory).size());
+    }
+
+    @Test
+    public void testOrphanedSegmentIsRecovered() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        spool.append(letter("/a.json", null));
+        spool.append(letter("/b.json", null));
+        spool.close();
+
+        // As a spool that crashed partway through its second record would have left it
+        Path completed = DeadLetterSpool.completedSegments(directory).get(0);
+        Path orphan = completed.resolveSibling(completed.getFileName() + ".open");
+        Files.move(completed, orphan);
+        try (FileChannel channel = FileChannel.open(orphan, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 3);
+        }
+
+        List<DeadLetterSpool.DeadLetter> letters = readAll(directory);
+        assertEquals(1, letters.size());
+        assertEquals("/a.json", letters.get(0).uri);
+        assertFalse(Files.exists(orphan));
+    }
+
+    @Test
+    public void testLiveSegmentIsNotRecovered()
+    {
+        Path directory = folder.getRoot().toPath();
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        spool.append(letter("/a.json", null));
+
+        assertTrue(DeadLetterSpool.completedSegments(directory).isEmpty());
+        spool.append(letter("/b.json", null));
+        spool.close();
+        assertEquals(2, readAll(directory).size());
+    }
+
+    @Test
+    public void testIncompleteRecordIsSkipped() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test");
+        spool.append(letter("/a.json", null));
+        spool.append(letter("/b.json", null));
+        spool.close();
+
+        Path segment = DeadLetterSpool.completedSegments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 3);
+        }
+
+        List<DeadLetterSpool.DeadLetter> letters = readAll(directory);
+        assertEquals(1, letters.size());
+        assertEquals("/a.json", letters.get(0).uri);
+    }
+
+    @Test
+    public void testCorruptLengthEndsTheSegmentWithoutAllocatingIt() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        Path segment = spoolSegment(directory, "/a.json");
+
+        // A record header whose first field claims far more bytes than are left in the segment
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 9);
+        header.putInt(0x4D4C444C);
+        header.putInt(Integer.MAX_VALUE);
+        for (int i = 0; i < 7; i++)
+        {
+            header.putInt(-1);
+        }
+        header.flip();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND))
+        {
+            channel.write(header);
+        }
+
+        assertEquals(Collections.singletonList("/a.json"), readUris(directory));
+    }
+
+    @Test
+    public void testClaimedSegmentIsNeitherListedNorClaimedAgain() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        Path segment = spoolSegment(directory, "/a.json", "/b.json");
+
+        DeadLetterSpool.ClaimedSegment claimed = DeadLetterSpool.claim(segment);
+        assertNotNull(claimed);
+        assertNull(DeadLetterSpool.claim(segment));
+        assertTrue("A live claim is not taken for one left by a replay that is gone",
+            DeadLetterSpool.completedSegments(directory).isEmpty());
+
+        List<String> uris = new ArrayList<>();
+        claimed.read((letter, nextOffset) -> uris.add(letter.uri));
+        claimed.confirm(Long.MAX_VALUE);
+        claimed.close();
+
+        assertEquals(2, uris.size());
+        assertTrue("A fully confirmed segment is deleted", files(directory).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentClaimsHaveOneWinner() throws InterruptedException
+    {
+        Path segment = spoolSegment(folder.getRoot().toPath(), "/a.json");
+        final int threadCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<DeadLetterSpool.ClaimedSegment> claims = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++)
+        {
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    start.await();
+                    DeadLetterSpool.ClaimedSegment claimed = DeadLetterSpool.claim(segment);
+                    if (claimed != null)
+                    {
+                        claims.add(claimed);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertEquals(1, claims.size());
+        claims.get(0).confirm(Long.MAX_VALUE);
+        claims.get(0).close();
+    }
+
+    @Test
+    public void testUnconfirmedSegmentIsGivenBackWhole()
+    {
+        Path directory = folder.getRoot().toPath();
+        Path segment = spoolSegment(directory, "/a.json", "/b.json");
+
+        DeadLetterSpool.ClaimedSegment claimed = DeadLetterSpool.claim(segment);
+        claimed.read((letter, nextOffset) -> { });
+        claimed.close();
+
+        assertEquals(Arrays.asList("/a.json", "/b.json"), readUris(directory));
+    }
+
+    @Test
+    public void testOnlyRecordsAfterTheConfirmedOneAreGivenBack() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        Path segment = spoolSegment(directory, "/a.json", "/b.json", "/c.json");
+
+        DeadLetterSpool.ClaimedSegment claimed = DeadLetterSpool.claim(segment);
+        claimed.read((letter, nextOffset) -> {
+            if ("/a.json".equals(letter.uri))
+            {
+                claimed.confirm(nextOffset);
+            }
+        });
+        claimed.close();
+
+        assertEquals(Arrays.asList("/b.json", "/c.json"), readUris(directory));
+        assertEquals("Only the remainder is left", 1, files(directory).size());
+    }
+
+    @Test
+    public void testSegmentLeftClaimedByAReplayThatIsGoneIsReplayedWhole() throws IOException
+    {
+        Path directory = folder.getRoot().toPath();
+        Path segment = spoolSegment(directory, "/a.json", "/b.json");
+        String name = segment.getFileName().toString();
+        Files.move(segment, segment.resolveSibling(name.substring(0, name.length() - DeadLetterSpool.SEGMENT_SUFFIX.length()) +
+            DeadLetterSpool.CLAIMED_SEGMENT_SUFFIX));
+
+        assertEquals(Arrays.asList("/a.json", "/b.json"), readUris(directory));
+    }
+}
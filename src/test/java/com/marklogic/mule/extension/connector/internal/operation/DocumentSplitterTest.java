@@ -0,0 +1,153 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicSplitFormat;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DocumentSplitterTest
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<JsonNode> split(String payload, MarkLogicSplitFormat format) throws IOException
+    {
+        List<JsonNode> records = new ArrayList<>();
+        try (DocumentSplitter splitter = new DocumentSplitter(
+            new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)), format, objectMapper))
+        {
+            JsonNode record;
+            while ((record = splitter.next()) != null)
+            {
+                records.add(record);
+            }
+            assertNull(splitter.next());
+        }
+        return records;
+    }
+
+    @Test
+    public void testNdjson() throws IOException
+    {
+        List<JsonNode> records = split("{\"id\":1}\n{\"id\":2,\"tags\":[\"a\",\"b\"]}\n{\"id\":3}", MarkLogicSplitFormat.NDJSON);
+
+        assertEquals(3, records.size());
+        assertEquals(1, records.get(0).get("id").asInt());
+        assertEquals("b", records.get(1).get("tags").get(1).asText());
+        assertEquals(3, records.get(2).get("id").asInt());
+    }
+
+    @Test
+    public void testNdjsonIgnoresEmptyLinesAndTrailingNewline() throws IOException
+    {
+        List<JsonNode> records = split("\n{\"id\":1}\n\n  \r\n{\"id\":2}\n", MarkLogicSplitFormat.NDJSON);
+
+        assertEquals(2, records.size());
+        assertEquals(2, records.get(1).get("id").asInt());
+    }
+
+    @Test
+    public void testEmptyNdjson() throws IOException
+    {
+        assertEquals(0, split("", MarkLogicSplitFormat.NDJSON).size());
+    }
+
+    @Test
+    public void testJsonArray() throws IOException
+    {
+        List<JsonNode> records = split("[{\"id\":1}, {\"nested\":{\"id\":2}},\n \"text\", 4]\n", MarkLogicSplitFormat.JSON_ARRAY);
+
+        assertEquals(4, records.size());
+        assertEquals(2, records.get(1).get("nested").get("id").asInt());
+        assertEquals("text", records.get(2).asText());
+        assertEquals(4, records.get(3).asInt());
+    }
+
+    @Test
+    public void testEmptyJsonArray() throws IOException
+    {
+        assertEquals(0, split("[]", MarkLogicSplitFormat.JSON_ARRAY).size());
+    }
+
+    @Test(expected = MarkLogicConnectorException.class)
+    public void testJsonArrayRejectsObject() throws IOException
+    {
+        split("{\"id\":1}", MarkLogicSplitFormat.JSON_ARRAY);
+    }
+
+    @Test
+    public void testCsv() throws IOException
+    {
+        List<JsonNode> records = split("id,name\n1,first\n2,second", MarkLogicSplitFormat.CSV);
+
+        assertEquals(2, records.size());
+        assertEquals("1", records.get(0).get("id").asText());
+        assertEquals("second", records.get(1).get("name").asText());
+    }
+
+    @Test
+    public void testCsvQuotedValues() throws IOException
+    {
+        List<JsonNode> records = split("id,note\n1,\"a, b\"\n2,\"said \"\"hi\"\"\"\n3,\"two\nlines\"\n", MarkLogicSplitFormat.CSV);
+
+        assertEquals(3, records.size());
+        assertEquals("a, b", records.get(0).get("note").asText());
+        assertEquals("said \"hi\"", records.get(1).get("note").asText());
+        assertEquals("two\nlines", records.get(2).get("note").asText());
+    }
+
+    @Test
+    public void testCsvIgnoresEmptyLinesAndTrailingNewline() throws IOException
+    {
+        List<JsonNode> records = split("id,name\n1,first\n\n2,second\n", MarkLogicSplitFormat.CSV);
+
+        assertEquals(2, records.size());
+        assertEquals("first", records.get(0).get("name").asText());
+        assertEquals("2", records.get(1).get("id").asText());
+    }
+
+    @Test
+    public void testCsvHeaderOnly() throws IOException
+    {
+        assertEquals(0, split("id,name\n", MarkLogicSplitFormat.CSV).size());
+    }
+
+    @Test
+    public void testIterator() throws IOException
+    {
+        try (DocumentSplitter splitter = new DocumentSplitter(
+            new ByteArrayInputStream("[1,2]".getBytes(StandardCharsets.UTF_8)), MarkLogicSplitFormat.JSON_ARRAY, objectMapper))
+        {
+            Iterator<JsonNode> records = splitter.iterator();
+            // hasNext may be called repeatedly without skipping a record
+            records.hasNext();
+            assertEquals(1, records.next().asInt());
+            assertEquals(2, records.next().asInt());
+            assertFalse(records.hasNext());
+        }
+    }
+}
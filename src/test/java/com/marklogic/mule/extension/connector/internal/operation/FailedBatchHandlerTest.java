@@ -0,0 +1,168 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.MarkLogicServerException;
+import com.marklogic.client.datamovement.WriteEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FailedBatchHandlerTest
+{
+    private final List<String> written = new ArrayList<>();
+
+    private final List<String> rejected = new ArrayList<>();
+
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private int outageWrites;
+
+    private FailedBatchHandler newHandler(int maxRetries)
+    {
+        return new FailedBatchHandler(documents -> {
+            if (outageWrites > 0)
+            {
+                outageWrites--;
+                throw new MarkLogicIOException("Connection refused");
+            }
+            List<String> uris = uris(documents);
+            if (uris.stream().anyMatch(uri -> uri.startsWith("bad")))
+            {
+                throw new IllegalArgumentException("Malformed document");
+            }
+            written.addAll(uris);
+        }, maxRetries, 100, 1000, (document, failure) -> rejected.add(document.getTargetUri()), sleeps::add);
+    }
+
+    private static List<WriteEvent> documents(String... uris)
+    {
+        List<WriteEvent> documents = new ArrayList<>();
+        for (String uri : uris)
+        {
+            WriteEvent document = mock(WriteEvent.class);
+            when(document.getTargetUri()).thenReturn(uri);
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    private static List<String> uris(List<WriteEvent> documents)
+    {
+        return documents.stream().map(WriteEvent::getTargetUri).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testRetryAfterOutage()
+    {
+        outageWrites = 2;
+        newHandler(3).handle(documents("a", "b", "c"), new MarkLogicIOException("Connection refused"));
+
+        assertEquals(Arrays.asList("a", "b", "c"), written);
+        assertTrue(rejected.isEmpty());
+        assertEquals(3, sleeps.size());
+    }
+
+    @Test
+    public void testBadDocumentsAreIsolated()
+    {
+        newHandler(3).handle(documents("a", "bad1", "b", "c", "bad2"), new IllegalArgumentException("Malformed document"));
+
+        assertEquals(Arrays.asList("a", "b", "c"), written);
+        assertEquals(Arrays.asList("bad1", "bad2"), rejected);
+        assertTrue("Failures that can't pass are not retried", sleeps.isEmpty());
+    }
+
+    @Test
+    public void testBadRequestIsSplitWithoutRetries()
+    {
+        newHandler(0).handle(documents("a", "bad1", "b"), serverError(400));
+
+        assertEquals(Arrays.asList("a", "b"), written);
+        assertEquals(Collections.singletonList("bad1"), rejected);
+    }
+
+    @Test
+    public void testFailuresOfTheWholeRequestAreNotSplit()
+    {
+        for (int statusCode : new int[]{401, 403, 404, 500})
+        {
+            rejected.clear();
+            newHandler(3).handle(documents("a", "b", "c"), serverError(statusCode));
+
+            assertEquals(Arrays.asList("a", "b", "c"), rejected);
+        }
+        assertTrue(written.isEmpty());
+        assertTrue(sleeps.isEmpty());
+    }
+
+    private static MarkLogicServerException serverError(int statusCode)
+    {
+        MarkLogicServerException failure = mock(MarkLogicServerException.class);
+        when(failure.getServerStatusCode()).thenReturn(statusCode);
+        return failure;
+    }
+
+    @Test
+    public void testRetriesUsedUp()
+    {
+        outageWrites = 10;
+        newHandler(2).handle(documents("a", "b"), new MarkLogicIOException("Connection refused"));
+
+        assertTrue(written.isEmpty());
+        assertEquals(Arrays.asList("a", "b"), rejected);
+        assertEquals(2, sleeps.size());
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndCapped()
+    {
+        FailedBatchHandler handler = newHandler(10);
+        for (int attempt = 0; attempt < 10; attempt++)
+        {
+            long expected = Math.min(1000, 100L << attempt);
+            long backoff = handler.backoffMillis(attempt);
+            assertTrue(backoff >= expected / 2 && backoff <= expected);
+        }
+    }
+
+    @Test
+    public void testIsRetryable()
+    {
+        assertTrue(FailedBatchHandler.isRetryable(new RuntimeException(new MarkLogicIOException("Read timed out"))));
+        assertFalse(FailedBatchHandler.isRetryable(new IllegalArgumentException("Malformed document")));
+        assertFalse(FailedBatchHandler.isRetryable(null));
+    }
+
+    @Test
+    public void testIsDocumentError()
+    {
+        assertTrue(FailedBatchHandler.isDocumentError(new RuntimeException(serverError(400))));
+        assertTrue(FailedBatchHandler.isDocumentError(new IllegalArgumentException("Malformed document")));
+        assertFalse(FailedBatchHandler.isDocumentError(serverError(403)));
+        assertFalse(FailedBatchHandler.isDocumentError(serverError(503)));
+        assertFalse(FailedBatchHandler.isDocumentError(new MarkLogicIOException("Connection refused")));
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteBatchListener;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.DocumentMetadataWriteHandle;
+import com.marklogic.mule.extension.connector.api.connection.AuthenticationType;
+import com.marklogic.mule.extension.connector.api.connection.MarkLogicConnectionType;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests how a connection creates, leases and evicts its insertion batchers, and limits the batches they write at once,
+ * with batchers whose DMSDK jobs are mocked.
+ */
+public class InsertionBatcherRegistryTest
+{
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private MarkLogicConfiguration configuration;
+
+    private DatabaseClient client;
+
+    private DataMovementManager dmm;
+
+    private WriteBatcher writeBatcher;
+
+    private ScheduledExecutorService executor;
+
+    private final AtomicInteger createdBatchers = new AtomicInteger();
+
+    @Before
+    public void setUp()
+    {
+        configuration = new MarkLogicConfiguration();
+        configuration.setConfigId("registryTestConfig");
+        configuration.setThreadCount(1);
+        configuration.setBatchSize(100);
+        // No timed flushes, so that the only task scheduled is the eviction
+        configuration.setSecondsBeforeFlush(0);
+        configuration.setJobName("registryTestJob");
+
+        executor = mock(ScheduledExecutorService.class);
+        client = mock(DatabaseClient.class);
+        dmm = mock(DataMovementManager.class);
+        writeBatcher = mock(WriteBatcher.class);
+        when(client.newDataMovementManager()).thenReturn(dmm);
+        when(dmm.newWriteBatcher()).thenReturn(writeBatcher);
+        when(dmm.startJob(writeBatcher)).thenReturn(mock(JobTicket.class));
+        when(writeBatcher.withBatchSize(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.withThreadCount(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchSuccess(any())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchFailure(any())).thenReturn(writeBatcher);
+    }
+
+    private MarkLogicConnection newConnection()
+    {
+        return new MarkLogicConnection(new MarkLogicConnectionProvider()
+            .withHostname("localhost")
+            .withPort(8000)
+            .withUsername("test-user")
+            .withPassword("test-password")
+            .withAuthenticationType(AuthenticationType.digest)
+            .withMarklogicConnectionType(MarkLogicConnectionType.DIRECT)
+            .withConnectionId("registry-test-connection"),
+            null,
+            new MarkLogicFlushScheduler(executor),
+            (context, flushScheduler) -> {
+                createdBatchers.incrementAndGet();
+                return new MarkLogicInsertionBatcher(context, client, flushScheduler);
+            });
+    }
+
+    private Runnable scheduledEviction()
+    {
+        ArgumentCaptor<Runnable> eviction = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).scheduleAtFixedRate(eviction.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        return eviction.getValue();
+    }
+
+    @Test
+    public void testLeasedBatcherIsNotEvicted()
+    {
+        configuration.setMaxInsertionBatchers(1);
+        MarkLogicConnection connection = newConnection();
+        MarkLogicInsertionBatcher leased = connection.getInsertionBatcher(configuration, "first", null, null);
+        connection.getInsertionBatcher(configuration, "second", null, null).returnLease();
+
+        scheduledEviction().run();
+
+        // The least recently used batcher holds a lease, so the other one is evicted instead
+        assertSame(leased, connection.getInsertionBatcher(configuration, "first", null, null));
+        leased.returnLease();
+        leased.returnLease();
+        assertEquals(2, createdBatchers.get());
+        verify(dmm, times(1)).stopJob(any(JobTicket.class));
+    }
+
+    @Test
+    public void testRetiredBatcherIsReplaced()
+    {
+        configuration.setMaxInsertionBatchers(1);
+        MarkLogicConnection connection = newConnection();
+        MarkLogicInsertionBatcher retired = connection.getInsertionBatcher(configuration, "first", null, null);
+        retired.returnLease();
+        connection.getInsertionBatcher(configuration, "second", null, null).returnLease();
+
+        scheduledEviction().run();
+
+        MarkLogicInsertionBatcher replacement = connection.getInsertionBatcher(configuration, "first", null, null);
+        assertNotSame(retired, replacement);
+        assertFalse(retired.tryLease());
+        replacement.returnLease();
+    }
+
+    @Test
+    public void testConcurrentCreationPublishesOneBatcher() throws InterruptedException
+    {
+        MarkLogicConnection connection = newConnection();
+        final int threadCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<MarkLogicInsertionBatcher> batchers = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++)
+        {
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    start.await();
+                    MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(configuration, "shared", null, null);
+                    batchers.add(batcher);
+                    batcher.returnLease();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(TIMEOUT_MILLIS);
+        }
+
+        assertEquals(threadCount, batchers.size());
+        for (MarkLogicInsertionBatcher batcher : batchers)
+        {
+            assertSame("Every insert should get the published batcher", batchers.get(0), batcher);
+        }
+        // Batchers created by inserts that lost the race are released rather than left running
+        verify(dmm, times(createdBatchers.get() - 1)).stopJob(any(JobTicket.class));
+    }
+
+    @Test
+    public void testBatchesOfEveryBatcherShareTheConnectionsLimit() throws InterruptedException
+    {
+        configuration.setBatchSize(1);
+        configuration.setMaxConcurrentBatches(1);
+        MarkLogicConnection connection = newConnection();
+        MarkLogicInsertionBatcher first = connection.getInsertionBatcher(configuration, "first", null, null);
+        first.add("/first.json", "null", "rest-reader,read", 1, new StringHandle("{}"));
+        first.returnLease();
+
+        CountDownLatch added = new CountDownLatch(1);
+        Thread inserter = new Thread(() -> {
+            MarkLogicInsertionBatcher second = connection.getInsertionBatcher(configuration, "second", null, null);
+            second.add("/second.json", "null", "rest-reader,read", 1, new StringHandle("{}"));
+            second.returnLease();
+            added.countDown();
+        });
+        inserter.start();
+
+        assertFalse("The other batcher's batch should wait while the first one's is written",
+            added.await(200, TimeUnit.MILLISECONDS));
+        verify(writeBatcher, never()).addAs(eq("/second.json"), any(DocumentMetadataWriteHandle.class), any());
+
+        ArgumentCaptor<WriteBatchListener> success = ArgumentCaptor.forClass(WriteBatchListener.class);
+        verify(writeBatcher, times(2)).onBatchSuccess(success.capture());
+        WriteBatch batch = mock(WriteBatch.class);
+        when(batch.getItems()).thenReturn(new WriteEvent[1]);
+        success.getAllValues().get(0).processEvent(batch);
+
+        assertTrue(added.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        inserter.join(TIMEOUT_MILLIS);
+        verify(writeBatcher).addAs(eq("/second.json"), any(DocumentMetadataWriteHandle.class), any());
+    }
+
+    @Test
+    public void testLeasesRacingEvictionNeverUseAReleasedBatcher() throws InterruptedException
+    {
+        // Two contexts with room for one, so that every eviction pass tries to retire a batcher being leased
+        configuration.setMaxInsertionBatchers(1);
+        MarkLogicConnection connection = newConnection();
+        connection.getInsertionBatcher(configuration, "context-0", null, null).returnLease();
+        Runnable eviction = scheduledEviction();
+
+        AtomicBoolean inserting = new AtomicBoolean(true);
+        Thread evictor = new Thread(() -> {
+            while (inserting.get())
+            {
+                eviction.run();
+            }
+        });
+        evictor.start();
+
+        final int inserterCount = 4;
+        final int insertsPerInserter = 500;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> inserters = new ArrayList<>();
+        for (int t = 0; t < inserterCount; t++)
+        {
+            final int inserter = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < insertsPerInserter; i++)
+                {
+                    MarkLogicInsertionBatcher batcher = connection.getInsertionBatcher(configuration, "context-" + (i % 2), null, null);
+                    try
+                    {
+                        batcher.add("/" + inserter + "/" + i + ".json", "null", "rest-reader,read", 1, new StringHandle("{}"));
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        failures.add(ex);
+                    }
+                    finally
+                    {
+                        batcher.returnLease();
+                    }
+                }
+            });
+            inserters.add(thread);
+            thread.start();
+        }
+        for (Thread thread : inserters)
+        {
+            thread.join(TIMEOUT_MILLIS);
+        }
+        inserting.set(false);
+        evictor.join(TIMEOUT_MILLIS);
+
+        assertTrue("A leased batcher was released: " + failures, failures.isEmpty());
+        verify(writeBatcher, times(inserterCount * insertsPerInserter))
+            .addAs(anyString(), any(DocumentMetadataWriteHandle.class), any());
+        assertTrue("Batchers should have been evicted while leased ones were in use", createdBatchers.get() > 2);
+        verify(dmm, atLeastOnce()).stopJob(any(JobTicket.class));
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.mule.extension.connector.api.connection.AuthenticationType;
+import com.marklogic.mule.extension.connector.api.connection.MarkLogicConnectionType;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InsertionBatcherReportTest
+{
+    private final MarkLogicOperations operations = new MarkLogicOperations();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private MarkLogicConfiguration configuration;
+
+    private MarkLogicConnection connection;
+
+    @Before
+    public void setUp()
+    {
+        configuration = new MarkLogicConfiguration();
+        configuration.setConfigId("reportTestConfig");
+        configuration.setThreadCount(4);
+        configuration.setBatchSize(100);
+        configuration.setMinBatchSize(10);
+        configuration.setSecondsBeforeFlush(0);
+        configuration.setJobName("reportTestJob");
+
+        DatabaseClient client = mock(DatabaseClient.class);
+        DataMovementManager dmm = mock(DataMovementManager.class);
+        WriteBatcher writeBatcher = mock(WriteBatcher.class);
+        JobTicket jobTicket = mock(JobTicket.class);
+        when(jobTicket.getJobId()).thenReturn("job-1");
+        when(client.newDataMovementManager()).thenReturn(dmm);
+        when(dmm.newWriteBatcher()).thenReturn(writeBatcher);
+        when(dmm.startJob(writeBatcher)).thenReturn(jobTicket);
+        when(writeBatcher.withBatchSize(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.withThreadCount(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchSuccess(any())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchFailure(any())).thenReturn(writeBatcher);
+
+        connection = new MarkLogicConnection(new MarkLogicConnectionProvider()
+            .withHostname("localhost")
+            .withPort(8000)
+            .withUsername("test-user")
+            .withPassword("test-password")
+            .withAuthenticationType(AuthenticationType.digest)
+            .withMarklogicConnectionType(MarkLogicConnectionType.DIRECT)
+            .withConnectionId("report-test-connection"),
+            null,
+            new MarkLogicFlushScheduler(mock(ScheduledExecutorService.class)),
+            (context, flushScheduler) -> new MarkLogicInsertionBatcher(context, client, flushScheduler));
+    }
+
+    private JsonNode report() throws IOException
+    {
+        return mapper.readTree(operations.getInsertionBatcherReport(configuration, connection));
+    }
+
+    @Test
+    public void testNoBatchersBeforeTheFirstImport() throws IOException
+    {
+        assertEquals(0, report().get("batchers").size());
+    }
+
+    @Test
+    public void testAdaptiveBatchingIsReported() throws IOException
+    {
+        configuration.setAdaptiveBatching(true);
+        connection.getInsertionBatcher(configuration, "myTemporalCollection", "ml:sjsInputFlow", null).returnLease();
+
+        JsonNode batchers = report().get("batchers");
+
+        assertEquals(1, batchers.size());
+        JsonNode batcher = batchers.get(0);
+        assertEquals("job-1", batcher.get("jobTicketId").asText());
+        assertEquals("myTemporalCollection", batcher.get("temporalCollection").asText());
+        assertEquals("ml:sjsInputFlow", batcher.get("serverTransform").asText());
+        // Adaptive batching starts from the smallest batch and one batch at a time, and grows from there
+        assertEquals(10, batcher.get("batchSize").asInt());
+        JsonNode adaptive = batcher.get("adaptiveBatching");
+        assertEquals(10, adaptive.get("batchSize").asInt());
+        assertEquals(1, adaptive.get("concurrency").asInt());
+        assertEquals(0, adaptive.get("documentsPerSecond").asLong());
+        assertTrue(adaptive.has("lastBatchLatencyMillis"));
+    }
+
+    @Test
+    public void testFixedBatchingReportsTheConfiguredBatchSize() throws IOException
+    {
+        connection.getInsertionBatcher(configuration, null, null, null).returnLease();
+
+        JsonNode batcher = report().get("batchers").get(0);
+
+        assertEquals(100, batcher.get("batchSize").asInt());
+        assertFalse(batcher.has("adaptiveBatching"));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class MarkLogicFlushSchedulerTest
+{
+    private ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> future;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private MarkLogicFlushScheduler instance;
+
+    @Before
+    public void setUp()
+    {
+        executor = mock(ScheduledExecutorService.class);
+        future = mock(ScheduledFuture.class);
+        doReturn(future).when(executor).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+        instance = new MarkLogicFlushScheduler(executor, clock::get);
+    }
+
+    private Runnable scheduledCheck(int scheduleCount, long intervalMillis)
+    {
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(scheduleCount)).scheduleAtFixedRate(check.capture(), eq(intervalMillis),
+            eq(intervalMillis), eq(TimeUnit.MILLISECONDS));
+        return check.getValue();
+    }
+
+    @Test
+    public void testCheckPassesClockTime()
+    {
+        MarkLogicFlushable flushable = mock(MarkLogicFlushable.class);
+        instance.register(flushable, 500);
+
+        clock.set(1234L);
+        scheduledCheck(1, 500).run();
+
+        verify(flushable).flushIfDue(1234L);
+    }
+
+    @Test
+    public void testShorterIntervalReschedules()
+    {
+        instance.register(mock(MarkLogicFlushable.class), 500);
+        instance.register(mock(MarkLogicFlushable.class), 1000);
+        instance.register(mock(MarkLogicFlushable.class), 100);
+
+        scheduledCheck(1, 500);
+        scheduledCheck(1, 100);
+        verify(future).cancel(false);
+    }
+
+    @Test
+    public void testUnregisteredIsNotChecked()
+    {
+        MarkLogicFlushable flushable = mock(MarkLogicFlushable.class);
+        instance.register(flushable, 500);
+        instance.unregister(flushable);
+
+        scheduledCheck(1, 500).run();
+
+        verify(flushable, never()).flushIfDue(anyLong());
+    }
+
+    @Test
+    public void testFailingFlushDoesNotStopOthers()
+    {
+        MarkLogicFlushable failing = mock(MarkLogicFlushable.class);
+        doThrow(new IllegalStateException("test")).when(failing).flushIfDue(anyLong());
+        MarkLogicFlushable flushable = mock(MarkLogicFlushable.class);
+        instance.register(failing, 500);
+        instance.register(flushable, 500);
+
+        Runnable check = scheduledCheck(1, 500);
+        check.run();
+        check.run();
+
+        verify(flushable, times(2)).flushIfDue(anyLong());
+    }
+
+    @Test
+    public void testShutdown()
+    {
+        MarkLogicFlushable flushable = mock(MarkLogicFlushable.class);
+        instance.register(flushable, 500);
+        Runnable check = scheduledCheck(1, 500);
+
+        instance.shutdown();
+        check.run();
+        instance.register(flushable, 100);
+
+        verify(future).cancel(false);
+        verify(executor).shutdown();
+        verify(flushable, never()).flushIfDue(anyLong());
+        scheduledCheck(1, 500);
+    }
+
+    @Test
+    public void testScheduledTaskRunsSeparatelyAndSurvivesFailures()
+    {
+        AtomicLong runs = new AtomicLong();
+        instance.schedule(() -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException("test");
+        }, 1000);
+
+        Runnable task = scheduledCheck(1, 1000);
+        task.run();
+        task.run();
+
+        assertEquals(2, runs.get());
+        instance.shutdown();
+        verify(future).cancel(false);
+    }
+
+    @Test
+    public void testNothingScheduledWithoutBatchers()
+    {
+        instance.shutdown();
+        verify(executor).shutdown();
+        verify(future, never()).cancel(anyBoolean());
+    }
+}
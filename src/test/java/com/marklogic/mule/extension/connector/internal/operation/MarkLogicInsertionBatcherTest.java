@@ -0,0 +1,460 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.JobTicket;
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteBatchListener;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.datamovement.WriteFailureListener;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
+import com.marklogic.client.io.marker.DocumentMetadataWriteHandle;
+import com.marklogic.mule.extension.connector.api.connection.AuthenticationType;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicBackpressurePolicy;
+import com.marklogic.mule.extension.connector.api.connection.MarkLogicConnectionType;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.connection.provider.MarkLogicConnectionProvider;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MarkLogicInsertionBatcherTest
+{
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MarkLogicConfiguration configuration;
+
+    private WriteBatcher writeBatcher;
+
+    private DatabaseClient client;
+
+    private ScheduledExecutorService executor;
+
+    private WriteBatchListener successListener;
+
+    private WriteFailureListener failureListener;
+
+    @Before
+    public void setUp()
+    {
+        configuration = new MarkLogicConfiguration();
+        configuration.setConfigId("batcherTestConfig");
+        configuration.setThreadCount(1);
+        configuration.setBatchSize(100);
+        configuration.setSecondsBeforeFlush(1);
+        configuration.setJobName("batcherTestJob");
+
+        executor = mock(ScheduledExecutorService.class);
+        client = mock(DatabaseClient.class);
+        DataMovementManager dmm = mock(DataMovementManager.class);
+        writeBatcher = mock(WriteBatcher.class);
+        when(client.newDataMovementManager()).thenReturn(dmm);
+        when(dmm.newWriteBatcher()).thenReturn(writeBatcher);
+        when(dmm.startJob(writeBatcher)).thenReturn(mock(JobTicket.class));
+        when(writeBatcher.withBatchSize(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.withThreadCount(anyInt())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchSuccess(any())).thenReturn(writeBatcher);
+        when(writeBatcher.onBatchFailure(any())).thenReturn(writeBatcher);
+    }
+
+    private MarkLogicInsertionBatcher newBatcher()
+    {
+        InsertionBatcherContext context = new InsertionBatcherContext();
+        context.setConfiguration(configuration);
+        context.setConnection(new MarkLogicConnection(new MarkLogicConnectionProvider()
+            .withHostname("localhost")
+            .withPort(8000)
+            .withUsername("test-user")
+            .withPassword("test-password")
+            .withAuthenticationType(AuthenticationType.digest)
+            .withMarklogicConnectionType(MarkLogicConnectionType.DIRECT)
+            .withConnectionId("batcher-test-connection")));
+        context.setJobName(configuration.getJobName());
+        MarkLogicInsertionBatcher batcher = new MarkLogicInsertionBatcher(context, client,
+            new MarkLogicFlushScheduler(executor, clock::get));
+
+        ArgumentCaptor<WriteBatchListener> success = ArgumentCaptor.forClass(WriteBatchListener.class);
+        verify(writeBatcher).onBatchSuccess(success.capture());
+        successListener = success.getValue();
+        ArgumentCaptor<WriteFailureListener> failure = ArgumentCaptor.forClass(WriteFailureListener.class);
+        verify(writeBatcher).onBatchFailure(failure.capture());
+        failureListener = failure.getValue();
+        return batcher;
+    }
+
+    private static void add(MarkLogicInsertionBatcher batcher, String uri, String content)
+    {
+        batcher.add(uri, "null", "rest-reader,read", 1, new StringHandle(content));
+    }
+
+    private void verifyAdded(String uri)
+    {
+        verify(writeBatcher).addAs(eq(uri), any(DocumentMetadataWriteHandle.class), any());
+    }
+
+    // The document as the WriteBatcher would report it in a batch
+    private WriteEvent addedDocument(String uri)
+    {
+        ArgumentCaptor<DocumentMetadataWriteHandle> metadata = ArgumentCaptor.forClass(DocumentMetadataWriteHandle.class);
+        ArgumentCaptor<Object> content = ArgumentCaptor.forClass(Object.class);
+        verify(writeBatcher).addAs(eq(uri), metadata.capture(), content.capture());
+        WriteEvent document = mock(WriteEvent.class);
+        when(document.getTargetUri()).thenReturn(uri);
+        when(document.getMetadata()).thenReturn(metadata.getValue());
+        when(document.getContent()).thenReturn((AbstractWriteHandle) content.getValue());
+        return document;
+    }
+
+    private static class TrackedStream extends ByteArrayInputStream
+    {
+        private boolean closed;
+
+        TrackedStream(String content)
+        {
+            super(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    // A document as a batcher on an invalidated connection hands it off, with its content already in memory
+    private static WriteEvent resubmittedDocument(String uri)
+    {
+        WriteEvent document = mock(WriteEvent.class);
+        when(document.getTargetUri()).thenReturn(uri);
+        when(document.getMetadata()).thenReturn(new DocumentMetadataHandle());
+        when(document.getContent()).thenReturn(new BytesHandle("{}".getBytes(StandardCharsets.UTF_8)));
+        return document;
+    }
+
+    private static WriteBatch batchOf(WriteEvent... documents)
+    {
+        WriteBatch batch = mock(WriteBatch.class);
+        when(batch.getItems()).thenReturn(documents);
+        return batch;
+    }
+
+    @Test
+    public void testByteLimitFlushesBeforeTheBatchWouldExceedIt()
+    {
+        configuration.setMaxBatchBytes(10);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/1.json", "1234");
+        add(batcher, "/2.json", "1234");
+        verify(writeBatcher, never()).flushAsync();
+
+        add(batcher, "/3.json", "1234");
+
+        InOrder order = inOrder(writeBatcher);
+        order.verify(writeBatcher).addAs(eq("/2.json"), any(DocumentMetadataWriteHandle.class), any());
+        order.verify(writeBatcher).flushAsync();
+        order.verify(writeBatcher).addAs(eq("/3.json"), any(DocumentMetadataWriteHandle.class), any());
+    }
+
+    @Test
+    public void testDocumentLargerThanTheByteLimitIsWrittenInItsOwnBatch()
+    {
+        configuration.setMaxBatchBytes(10);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/small.json", "1");
+        add(batcher, "/large.json", "12345678901234567890");
+        add(batcher, "/next.json", "1");
+
+        InOrder order = inOrder(writeBatcher);
+        order.verify(writeBatcher).addAs(eq("/small.json"), any(DocumentMetadataWriteHandle.class), any());
+        order.verify(writeBatcher).flushAsync();
+        order.verify(writeBatcher).addAs(eq("/large.json"), any(DocumentMetadataWriteHandle.class), any());
+        order.verify(writeBatcher).flushAsync();
+        order.verify(writeBatcher).addAs(eq("/next.json"), any(DocumentMetadataWriteHandle.class), any());
+    }
+
+    @Test
+    public void testLingerFlushesPartialBatchOnceItIsDue()
+    {
+        configuration.setLingerMillis(50);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        clock.set(10 * MILLIS);
+        add(batcher, "/1.json", "{}");
+        clock.set(30 * MILLIS);
+        add(batcher, "/2.json", "{}");
+
+        // The batch's age is measured from its first document
+        batcher.flushIfDue(59 * MILLIS);
+        verify(writeBatcher, never()).flushAsync();
+        batcher.flushIfDue(60 * MILLIS);
+        verify(writeBatcher).flushAsync();
+
+        // Nothing is pending any more
+        batcher.flushIfDue(500 * MILLIS);
+        verify(writeBatcher, times(1)).flushAsync();
+    }
+
+    @Test
+    public void testLingerIsNotAppliedToAFullBatch()
+    {
+        configuration.setLingerMillis(50);
+        configuration.setBatchSize(2);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/1.json", "{}");
+        add(batcher, "/2.json", "{}");
+
+        // The WriteBatcher writes a full batch on its own
+        batcher.flushIfDue(100 * MILLIS);
+        verify(writeBatcher, never()).flushAsync();
+    }
+
+    @Test
+    public void testUntrackedBatchIsFlushedOnTheTimerWhateverItsAge()
+    {
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/1.json", "{}");
+        verifyAdded("/1.json");
+
+        batcher.flushIfDue(999 * MILLIS);
+        verify(writeBatcher, never()).flushAsync();
+        batcher.flushIfDue(1000 * MILLIS);
+        verify(writeBatcher).flushAsync();
+        batcher.flushIfDue(1500 * MILLIS);
+        verify(writeBatcher, times(1)).flushAsync();
+        batcher.flushIfDue(2000 * MILLIS);
+        verify(writeBatcher, times(2)).flushAsync();
+    }
+
+    @Test
+    public void testBatchIsCheckedTwicePerFlushPeriod()
+    {
+        newBatcher();
+
+        verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(500L), eq(500L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testZeroSecondsBeforeFlushSchedulesNoTimedFlush()
+    {
+        configuration.setSecondsBeforeFlush(0);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/1.json", "{}");
+        verify(executor, never()).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+
+        // The partial batch is still written when the batcher is released
+        batcher.release();
+        verify(writeBatcher).flushAndWait();
+    }
+
+    @Test
+    public void testStreamedDocumentIsHandedOffAfterInvalidation()
+    {
+        // Retries need the content again, so it is read into memory
+        configuration.setMaxBatchRetries(1);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+        batcher.add("/streamed.json", "null", "rest-reader,read", 1,
+            new InputStreamHandle(new ByteArrayInputStream("{\"a\":1}".getBytes(StandardCharsets.UTF_8))));
+        WriteEvent document = addedDocument("/streamed.json");
+
+        batcher.markLogicConnectionInvalidated();
+        failureListener.processFailure(batchOf(document), new IllegalStateException("Client released"));
+
+        assertEquals(1, batcher.getRetainedDocumentCount());
+        List<WriteEvent> unwritten = batcher.drainUnwrittenDocuments();
+        assertEquals(1, unwritten.size());
+        // The stream was read when the document was added, so the content can be sent again
+        assertEquals("{\"a\":1}", new String(((BytesHandle) unwritten.get(0).getContent()).get(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamIsPassedOnUnreadWhenNothingNeedsItsBytes()
+    {
+        MarkLogicInsertionBatcher batcher = newBatcher();
+        TrackedStream stream = new TrackedStream("{\"a\":1}");
+        batcher.add("/streamed.json", "null", "rest-reader,read", 1, new InputStreamHandle(stream));
+
+        WriteEvent document = addedDocument("/streamed.json");
+        assertSame(stream, ((InputStreamHandle) document.getContent()).get());
+        assertEquals("The stream is only read as its batch is written", 7, stream.available());
+        assertFalse(stream.closed);
+
+        // The failed request consumed the stream, so the document can't be handed to the next connection
+        batcher.markLogicConnectionInvalidated();
+        failureListener.processFailure(batchOf(document), new IllegalStateException("Client released"));
+        assertEquals(1, batcher.getRetainedDocumentCount());
+        assertTrue(batcher.drainUnwrittenDocuments().isEmpty());
+    }
+
+    @Test
+    public void testStreamIsReadWhenADeadLetterDirectoryIsConfigured() throws IOException
+    {
+        configuration.setDeadLetterDirectory(folder.newFolder().getPath());
+        MarkLogicInsertionBatcher batcher = newBatcher();
+        TrackedStream stream = new TrackedStream("{\"a\":1}");
+        batcher.add("/streamed.json", "null", "rest-reader,read", 1, new InputStreamHandle(stream));
+
+        WriteEvent document = addedDocument("/streamed.json");
+        assertEquals("{\"a\":1}", new String(((BytesHandle) document.getContent()).get(), StandardCharsets.UTF_8));
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void testResubmittedDocumentsThatCantBeAddedAreLeftForTheCaller()
+    {
+        configuration.setMaxInFlightDocuments(1);
+        configuration.setBackpressurePolicy(MarkLogicBackpressurePolicy.FAIL);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+        List<WriteEvent> documents = new ArrayList<>(Arrays.asList(
+            resubmittedDocument("/a.json"), resubmittedDocument("/b.json"), resubmittedDocument("/c.json")));
+
+        try
+        {
+            batcher.resubmit(documents);
+            fail("Expected the in-flight limit to be reached");
+        }
+        catch (MarkLogicConnectorException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Unable to resubmit document /b.json; 2 documents were not resubmitted"));
+        }
+        verifyAdded("/a.json");
+        assertEquals(Arrays.asList("/b.json", "/c.json"),
+            documents.stream().map(WriteEvent::getTargetUri).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testResubmittedDocumentsThatCantBeAddedAreSpooled() throws IOException
+    {
+        Path deadLetters = folder.newFolder().toPath();
+        configuration.setDeadLetterDirectory(deadLetters.toString());
+        configuration.setMaxInFlightDocuments(1);
+        configuration.setBackpressurePolicy(MarkLogicBackpressurePolicy.FAIL);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+        List<WriteEvent> documents = new ArrayList<>(Arrays.asList(
+            resubmittedDocument("/a.json"), resubmittedDocument("/b.json"), resubmittedDocument("/c.json")));
+
+        batcher.resubmit(documents);
+
+        assertTrue(documents.isEmpty());
+        List<String> spooled = new ArrayList<>();
+        for (Path segment : DeadLetterSpool.completedSegments(deadLetters))
+        {
+            DeadLetterSpool.read(segment, letter -> spooled.add(letter.uri));
+        }
+        assertEquals(Arrays.asList("/b.json", "/c.json"), spooled);
+    }
+
+    @Test
+    public void testReplacedDocumentGivesBackItsPermit()
+    {
+        configuration.setDeduplicateUris(true);
+        configuration.setMaxInFlightDocuments(2);
+        configuration.setBackpressurePolicy(MarkLogicBackpressurePolicy.FAIL);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        TrackedStream first = new TrackedStream("{\"version\":1}");
+        TrackedStream second = new TrackedStream("{\"version\":2}");
+        batcher.add("/a.json", "null", "rest-reader,read", 1, new InputStreamHandle(first));
+        batcher.add("/a.json", "null", "rest-reader,read", 1, new InputStreamHandle(second));
+        assertTrue("The replaced document's stream is released", first.closed);
+
+        // Only one permit is held, by the document that replaced the first
+        add(batcher, "/b.json", "{}");
+        try
+        {
+            add(batcher, "/c.json", "{}");
+            fail("Expected the in-flight limit to be reached");
+        }
+        catch (MarkLogicConnectorException ex)
+        {
+            assertTrue(ex.getMessage().contains("in-flight"));
+        }
+
+        // The held documents were handed to the WriteBatcher when the limit was reached, the URI only once
+        WriteEvent a = addedDocument("/a.json");
+        WriteEvent b = addedDocument("/b.json");
+        assertSame(second, ((InputStreamHandle) a.getContent()).get());
+
+        successListener.processEvent(batchOf(a, b));
+        add(batcher, "/c.json", "{}");
+        add(batcher, "/d.json", "{}");
+    }
+
+    @Test
+    public void testReplacementIsCountedOnce()
+    {
+        configuration.setDeduplicateUris(true);
+        configuration.setBatchSize(2);
+        MarkLogicInsertionBatcher batcher = newBatcher();
+
+        add(batcher, "/a.json", "{\"version\":1}");
+        add(batcher, "/a.json", "{\"version\":2}");
+        verify(writeBatcher, never()).flushAsync();
+
+        // The second URI completes the batch
+        add(batcher, "/b.json", "{}");
+        verify(writeBatcher).flushAsync();
+        addedDocument("/a.json");
+        addedDocument("/b.json");
+    }
+}
@@ -126,7 +126,7 @@ public class MarkLogicOperationTest {
         String serverTransform = "transformTestEgress";
         String serverTransformParams = "text,hello";
         connection.connect();
-        PagingProvider<MarkLogicConnection, Object> export = operation.exportDocs(configuration, queryString, optionsName, MarkLogicQueryStrategy.RawStructuredQueryDefinition, MarkLogicQueryFormat.JSON, resultCount, useConsistentSnapshot, serverTransform, serverTransformParams);
+        PagingProvider<MarkLogicConnection, Object> export = operation.exportDocs(configuration, queryString, optionsName, MarkLogicQueryStrategy.RawStructuredQueryDefinition, MarkLogicQueryFormat.JSON, resultCount, useConsistentSnapshot, serverTransform, serverTransformParams, null);
         assertEquals("Optional.empty", export.getTotalResults(connection).toString());
     }
 }
\ No newline at end of file
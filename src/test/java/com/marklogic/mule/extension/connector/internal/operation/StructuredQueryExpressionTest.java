@@ -0,0 +1,71 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.query.StructuredQueryBuilder;
+import com.marklogic.client.query.StructuredQueryDefinition;
+import org.apache.commons.jexl3.JexlContext;
+import org.apache.commons.jexl3.JexlExpression;
+import org.apache.commons.jexl3.MapContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StructuredQueryExpressionTest
+{
+    private static final String QUERY = "sb.and(sb.collection(\"employees\"), sb.term(\"Human Resources\"))";
+
+    @Test
+    public void testRepeatedQueryReusesTheCompiledExpression()
+    {
+        JexlExpression first = MarkLogicOperations.compileStructuredQuery(QUERY);
+
+        assertSame(first, MarkLogicOperations.compileStructuredQuery(QUERY));
+        assertSame("Every operations instance should share the cache", first,
+            MarkLogicOperations.compileStructuredQuery(new String(QUERY.toCharArray())));
+        assertNotSame(first, MarkLogicOperations.compileStructuredQuery("sb.collection(\"managers\")"));
+    }
+
+    @Test
+    public void testCachedExpressionBuildsTheQuery()
+    {
+        MarkLogicOperations.compileStructuredQuery(QUERY);
+        JexlContext context = new MapContext();
+        context.set("sb", new StructuredQueryBuilder());
+
+        Object query = MarkLogicOperations.compileStructuredQuery(QUERY).evaluate(context);
+
+        assertTrue(query instanceof StructuredQueryDefinition);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedExpressionIsEvicted()
+    {
+        String evicted = "sb.collection(\"evicted\")";
+        String kept = "sb.collection(\"kept\")";
+        JexlExpression evictedExpression = MarkLogicOperations.compileStructuredQuery(evicted);
+        JexlExpression keptExpression = MarkLogicOperations.compileStructuredQuery(kept);
+
+        for (int i = 0; i < 300; i++)
+        {
+            MarkLogicOperations.compileStructuredQuery(kept);
+            MarkLogicOperations.compileStructuredQuery("sb.collection(\"filler-" + i + "\")");
+        }
+
+        assertSame(keptExpression, MarkLogicOperations.compileStructuredQuery(kept));
+        assertNotSame(evictedExpression, MarkLogicOperations.compileStructuredQuery(evicted));
+    }
+}
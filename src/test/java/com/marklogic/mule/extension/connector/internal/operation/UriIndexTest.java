@@ -0,0 +1,73 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UriIndexTest
+{
+    @Test
+    public void testPutAndGet()
+    {
+        UriIndex instance = new UriIndex(100);
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(-1, instance.get("/doc" + i + ".json"));
+            instance.put("/doc" + i + ".json", i);
+        }
+        assertEquals(100, instance.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(i, instance.get("/doc" + i + ".json"));
+        }
+        assertEquals(-1, instance.get("/other.json"));
+    }
+
+    @Test
+    public void testCollidingHashes()
+    {
+        // "Aa" and "BB" have the same hash code
+        UriIndex instance = new UriIndex(4);
+        instance.put("Aa", 0);
+        instance.put("BB", 1);
+        assertEquals(0, instance.get("Aa"));
+        assertEquals(1, instance.get("BB"));
+    }
+
+    @Test
+    public void testClear()
+    {
+        UriIndex instance = new UriIndex(2);
+        instance.put("/a.json", 0);
+        instance.put("/b.json", 1);
+        instance.clear();
+        assertEquals(0, instance.size());
+        assertEquals(-1, instance.get("/a.json"));
+
+        instance.put("/b.json", 0);
+        assertEquals(0, instance.get("/b.json"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFull()
+    {
+        UriIndex instance = new UriIndex(2);
+        for (int i = 0; i < 4; i++)
+        {
+            instance.put("/doc" + i + ".json", i);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.query.RawStructuredQueryDefinition;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicPagingStrategy;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicQueryFormat;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicQueryStrategy;
+import com.marklogic.mule.extension.connector.internal.config.MarkLogicConfiguration;
+import com.marklogic.mule.extension.connector.internal.connection.MarkLogicConnection;
+import com.marklogic.mule.extension.connector.internal.error.exception.MarkLogicConnectorException;
+import com.marklogic.mule.extension.connector.internal.result.resultset.MarkLogicExportListener;
+import com.marklogic.mule.extension.connector.internal.result.resultset.RecordExtractor;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.runtime.extension.api.runtime.streaming.PagingProvider;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UriKeysetPagingTest
+{
+    private static final String QUERY = "{\"query\": {\"queries\": [{\"collection-query\": {\"uri\": [\"employees\"]}}]}}";
+
+    private final MarkLogicOperations operations = new MarkLogicOperations();
+
+    private MarkLogicConfiguration configuration;
+
+    @Before
+    public void setUp()
+    {
+        configuration = new MarkLogicConfiguration();
+        configuration.setConfigId("uriKeysetTestConfig");
+        configuration.setBatchSize(100);
+        configuration.setThreadCount(4);
+    }
+
+    private PagingProvider<MarkLogicConnection, Object> queryDocs(MarkLogicPagingStrategy pagingStrategy, int prefetchDepth,
+                                                                   int parallelPageFetches)
+    {
+        return operations.queryDocs(configuration, QUERY, null, 10, null, pagingStrategy, prefetchDepth, parallelPageFetches,
+            false, MarkLogicQueryStrategy.RawStructuredQueryDefinition, MarkLogicQueryFormat.JSON, null, null, null);
+    }
+
+    @Test(expected = MarkLogicConnectorException.class)
+    public void testPrefetchingIsRejected()
+    {
+        queryDocs(MarkLogicPagingStrategy.URI_KEYSET, 2, 1);
+    }
+
+    @Test(expected = MarkLogicConnectorException.class)
+    public void testParallelPageFetchesAreRejected()
+    {
+        queryDocs(MarkLogicPagingStrategy.URI_KEYSET, 0, 2);
+    }
+
+    @Test
+    public void testSequentialPagingIsAccepted()
+    {
+        assertNotNull(queryDocs(MarkLogicPagingStrategy.URI_KEYSET, 0, 1));
+        assertNotNull(queryDocs(MarkLogicPagingStrategy.OFFSET, 2, 2));
+    }
+
+    @Test
+    public void testUrisAreRetrievedByOneThreadAtAConsistentSnapshot()
+    {
+        DataMovementManager dmm = mock(DataMovementManager.class);
+        QueryBatcher batcher = mock(QueryBatcher.class);
+        RawStructuredQueryDefinition query = mock(RawStructuredQueryDefinition.class);
+        when(dmm.newQueryBatcher(query)).thenReturn(batcher);
+        when(batcher.withBatchSize(anyInt())).thenReturn(batcher);
+        when(batcher.withThreadCount(anyInt())).thenReturn(batcher);
+        when(batcher.onQueryFailure(any())).thenReturn(batcher);
+
+        assertNotNull(operations.newUriKeysetIterator(dmm, query, MarkLogicQueryStrategy.RawStructuredQueryDefinition, 25,
+            null, Optional.empty(), new RecordExtractor()));
+
+        verify(batcher).withBatchSize(25);
+        verify(batcher).withThreadCount(1);
+        verify(batcher).withConsistentSnapshot();
+        verify(batcher).onUrisReady(any(MarkLogicExportListener.class));
+        verify(dmm, never()).startJob(batcher);
+    }
+}
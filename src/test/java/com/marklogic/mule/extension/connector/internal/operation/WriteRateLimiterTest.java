@@ -0,0 +1,138 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.operation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteRateLimiterTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private WriteRateLimiter instance;
+
+    @Before
+    public void setUp()
+    {
+        instance = new WriteRateLimiter(10, 0, clock::get);
+    }
+
+    @Test
+    public void testBurstThenRate()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("A second's worth of documents is written straight away", 0, instance.reserve(100));
+        }
+        assertEquals(SECOND / 10, instance.reserve(100));
+        assertEquals(2 * SECOND / 10, instance.reserve(100));
+
+        clock.addAndGet(SECOND);
+        assertEquals("The debt has been paid off", 0, instance.reserve(100));
+    }
+
+    @Test
+    public void testBytesPerSecond()
+    {
+        instance.setRates(0, 1000);
+        assertEquals(0, instance.reserve(1000));
+        assertEquals("A document larger than a second's worth still passes", 3 * SECOND, instance.reserve(3000));
+    }
+
+    @Test
+    public void testUnlimited()
+    {
+        instance.setRates(0, 0);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(0, instance.reserve(1000000));
+        }
+    }
+
+    @Test
+    public void testUnlimitedWriteDoesNotLock() throws InterruptedException
+    {
+        WriteRateLimiter limiter = new WriteRateLimiter(0, 0);
+        Thread writer = new Thread(() -> limiter.acquire(1000000));
+
+        synchronized (limiter)
+        {
+            writer.start();
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        assertFalse("An unlimited write should not wait for the monitor", writer.isAlive());
+    }
+
+    @Test
+    public void testSetRatesWhileRunning()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            instance.reserve(0);
+        }
+        instance.setRates(1000, 0);
+        assertEquals(1000, instance.getDocumentsPerSecond());
+        assertEquals("The bucket keeps its level when the rate changes", SECOND / 1000, instance.reserve(0));
+
+        clock.addAndGet(SECOND);
+        instance.setRates(1, 0);
+        assertEquals(0, instance.reserve(0));
+        assertEquals(SECOND, instance.reserve(0));
+    }
+
+    @Test
+    public void testWaitingWriteSeesRaisedRate() throws InterruptedException
+    {
+        WriteRateLimiter limiter = new WriteRateLimiter(1, 0);
+        limiter.acquire(0);
+        Thread waiting = new Thread(() -> limiter.acquire(0));
+        long start = System.nanoTime();
+        waiting.start();
+
+        // At the original rate the write would wait a second
+        Thread.sleep(50);
+        limiter.setRates(1000, 0);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(waiting.isAlive());
+        assertTrue("The rest of the wait is worked out at the new rate", System.nanoTime() - start < SECOND / 2);
+    }
+
+    @Test
+    public void testWaitingWriteIsReleasedWhenNoLongerLimited() throws InterruptedException
+    {
+        WriteRateLimiter limiter = new WriteRateLimiter(0, 1000);
+        limiter.acquire(1000);
+        Thread waiting = new Thread(() -> limiter.acquire(100000));
+        long start = System.nanoTime();
+        waiting.start();
+
+        Thread.sleep(50);
+        limiter.setRates(0, 0);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(waiting.isAlive());
+        assertTrue(System.nanoTime() - start < SECOND / 2);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.client.datamovement.QueryBatch;
+import com.marklogic.client.document.DocumentPage;
+import com.marklogic.client.document.DocumentRecord;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.io.StringHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the throughput of {@link MarkLogicExportListener} scales with the number of DMSDK threads delivering
+ * batches to it. Documents are served from memory so that only the listener's own collection path is measured.
+ * <p>
+ * Run {@link #main(String[])} from the IDE or with the test classpath to benchmark 4 through 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkLogicExportListenerBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_THREAD_COUNT = 64;
+    private static final String JSON_CONTENT = "{\"employee\": {\"name\": \"Jane Doe\", \"department\": \"Human Resources\", \"salary\": 123456}}";
+
+    // 0 collects every document; a limit that is never reached exercises the reservation counter
+    @Param({"0", "9223372036854775807"})
+    public long maxDocs;
+
+    private MarkLogicExportListener listener;
+    private QueryBatch batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        JsonNode jsonNode = new ObjectMapper().readTree(JSON_CONTENT);
+        DocumentRecord[] records = new DocumentRecord[BATCH_SIZE];
+        String[] uris = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            uris[i] = "/benchmark/" + i + ".json";
+            records[i] = newDocumentRecord(uris[i], jsonNode);
+        }
+        List<DocumentRecord> documents = Arrays.asList(records);
+
+        batch = stub(QueryBatch.class, (methodName, args) -> "getItems".equals(methodName) ? uris : null);
+        listener = new MarkLogicExportListener(maxDocs, MAX_THREAD_COUNT) {
+            @Override
+            protected DocumentPage getDocs(QueryBatch queryBatch) {
+                return newDocumentPage(documents.iterator());
+            }
+        };
+    }
+
+    @Benchmark
+    public List<Object> exportBatch() throws InterruptedException {
+        listener.processEvent(batch);
+        // Take a page back out so that threads never block on a full hand-off queue
+        return listener.pollPage(0, TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threadCount = 4; threadCount <= MAX_THREAD_COUNT; threadCount *= 2) {
+            new Runner(new OptionsBuilder()
+                .include(MarkLogicExportListenerBenchmark.class.getSimpleName())
+                .threads(threadCount)
+                .build()).run();
+        }
+    }
+
+    private static DocumentRecord newDocumentRecord(String uri, JsonNode jsonNode) {
+        byte[] bytes = JSON_CONTENT.getBytes(StandardCharsets.UTF_8);
+        return stub(DocumentRecord.class, (methodName, args) -> {
+            switch (methodName) {
+                case "getUri":
+                    return uri;
+                case "getMimetype":
+                    return "application/json";
+                case "getContent":
+                    return fillHandle(args[0], jsonNode, bytes);
+                default:
+                    throw new UnsupportedOperationException(methodName);
+            }
+        });
+    }
+
+    private static Object fillHandle(Object handle, JsonNode jsonNode, byte[] bytes) {
+        if (handle instanceof JacksonHandle) {
+            ((JacksonHandle) handle).set(jsonNode);
+        } else if (handle instanceof BytesHandle) {
+            ((BytesHandle) handle).set(bytes);
+        } else if (handle instanceof StringHandle) {
+            ((StringHandle) handle).set(JSON_CONTENT);
+        } else if (handle instanceof InputStreamHandle) {
+            ((InputStreamHandle) handle).set(new ByteArrayInputStream(bytes));
+        } else {
+            throw new UnsupportedOperationException(handle.getClass().getName());
+        }
+        return handle;
+    }
+
+    private static DocumentPage newDocumentPage(Iterator<DocumentRecord> documents) {
+        return stub(DocumentPage.class, (methodName, args) -> {
+            switch (methodName) {
+                case "hasNext":
+                    return documents.hasNext();
+                case "next":
+                    return documents.next();
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(methodName);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface StubMethod {
+        Object invoke(String methodName, Object[] args);
+    }
+
+    private static <T> T stub(Class<T> type, StubMethod method) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, m, args) -> {
+            if ("toString".equals(m.getName())) {
+                return type.getSimpleName();
+            }
+            Object result = method.invoke(m.getName(), args);
+            return result == null && m.getReturnType().isPrimitive() ? defaultValue(m.getReturnType()) : result;
+        }));
+    }
+
+    private static Object defaultValue(Class<?> primitiveType) {
+        if (boolean.class.equals(primitiveType)) {
+            return false;
+        }
+        if (long.class.equals(primitiveType)) {
+            return 0L;
+        }
+        return void.class.equals(primitiveType) ? null : 0;
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.marklogic.client.datamovement.QueryBatch;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.document.DocumentPage;
+import com.marklogic.client.document.DocumentRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MarkLogicExportListenerTest
+{
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private RecordExtractor recordExtractor;
+
+    private QueryBatcher queryBatcher;
+
+    // The number of batches whose documents were downloaded
+    private final AtomicInteger batchesRead = new AtomicInteger();
+
+    @Before
+    public void setUp()
+    {
+        recordExtractor = mock(RecordExtractor.class);
+        when(recordExtractor.extractRecord(any(DocumentRecord.class)))
+            .thenAnswer(invocation -> new ExportedDocument(((DocumentRecord) invocation.getArgument(0)).getUri()));
+        queryBatcher = mock(QueryBatcher.class);
+    }
+
+    private MarkLogicExportListener newListener(long maxDocs, int maxPendingPages)
+    {
+        return new MarkLogicExportListener(maxDocs, maxPendingPages, recordExtractor)
+        {
+            @Override
+            protected DocumentPage getDocs(QueryBatch batch)
+            {
+                batchesRead.incrementAndGet();
+                return documentPage(Arrays.asList(batch.getItems()).iterator());
+            }
+        };
+    }
+
+    private QueryBatch batch(String... uris)
+    {
+        QueryBatch batch = mock(QueryBatch.class);
+        when(batch.getItems()).thenReturn(uris);
+        when(batch.getBatcher()).thenReturn(queryBatcher);
+        return batch;
+    }
+
+    private static DocumentPage documentPage(Iterator<String> uris)
+    {
+        DocumentPage page = mock(DocumentPage.class);
+        when(page.hasNext()).thenAnswer(invocation -> uris.hasNext());
+        when(page.next()).thenAnswer(invocation -> {
+            DocumentRecord record = mock(DocumentRecord.class);
+            when(record.getUri()).thenReturn(uris.next());
+            return record;
+        });
+        return page;
+    }
+
+    private static List<String> uris(List<Object> page)
+    {
+        List<String> uris = new ArrayList<>();
+        page.forEach(record -> uris.add(((ExportedDocument) record).uri));
+        return uris;
+    }
+
+    private static Thread process(MarkLogicExportListener listener, QueryBatch batch)
+    {
+        Thread thread = new Thread(() -> listener.processEvent(batch));
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testEachBatchIsHandedOffAsItsOwnPage() throws InterruptedException
+    {
+        MarkLogicExportListener listener = newListener(0, 2);
+
+        listener.processEvent(batch("/a.json", "/b.json"));
+        listener.processEvent(batch("/c.json"));
+
+        assertEquals(Arrays.asList("/a.json", "/b.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+        assertEquals(Collections.singletonList("/c.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+        assertNull(listener.pollPage(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testProducerWaitsForRoomInTheQueue() throws InterruptedException
+    {
+        MarkLogicExportListener listener = newListener(0, 1);
+        listener.processEvent(batch("/a.json"));
+
+        Thread producer = process(listener, batch("/b.json"));
+        producer.join(300);
+        assertTrue("The second page should wait for the first to be consumed", producer.isAlive());
+
+        assertEquals(Collections.singletonList("/a.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+        producer.join(TIMEOUT_MILLIS);
+        assertFalse(producer.isAlive());
+        assertEquals(Collections.singletonList("/b.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void testSlowConsumerReceivesEveryDocumentOnce() throws InterruptedException
+    {
+        final int producerCount = 4;
+        final int batchesPerProducer = 5;
+        MarkLogicExportListener listener = newListener(0, 2);
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++)
+        {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int b = 0; b < batchesPerProducer; b++)
+                {
+                    listener.processEvent(batch("/" + producer + "/" + b + "/1.json", "/" + producer + "/" + b + "/2.json"));
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+
+        Set<String> received = new HashSet<>();
+        int pageCount = 0;
+        while (pageCount < producerCount * batchesPerProducer)
+        {
+            List<Object> page = listener.pollPage(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue("Expected a page from the producers", page != null);
+            for (String uri : uris(page))
+            {
+                assertTrue("Received " + uri + " twice", received.add(uri));
+            }
+            pageCount++;
+            Thread.sleep(5);
+        }
+        for (Thread producer : producers)
+        {
+            producer.join(TIMEOUT_MILLIS);
+            assertFalse(producer.isAlive());
+        }
+        assertEquals(producerCount * batchesPerProducer * 2, received.size());
+        assertNull(listener.pollPage(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCloseReleasesWaitingProducersAndDiscardsTheirPages() throws InterruptedException
+    {
+        MarkLogicExportListener listener = newListener(0, 1);
+        QueryBatch queued = batch("/queued.json");
+        listener.processEvent(queued);
+        List<ExportedDocument> waitingDocuments = new ArrayList<>();
+        doAnswer(invocation -> {
+            ExportedDocument document = new ExportedDocument(((DocumentRecord) invocation.getArgument(0)).getUri());
+            waitingDocuments.add(document);
+            return document;
+        }).when(recordExtractor).extractRecord(any(DocumentRecord.class));
+        Thread producer = process(listener, batch("/waiting.json"));
+        producer.join(300);
+        assertTrue(producer.isAlive());
+
+        listener.close();
+
+        producer.join(TIMEOUT_MILLIS);
+        assertFalse("Closing should release a producer waiting for room in the queue", producer.isAlive());
+        assertNull(listener.pollPage(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, waitingDocuments.size());
+        assertTrue("The page that was never queued should be discarded", waitingDocuments.get(0).closed);
+    }
+
+    @Test
+    public void testCloseWhileBatchIsInFlightDiscardsItsPage() throws InterruptedException
+    {
+        CountDownLatch firstDocumentRead = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        List<ExportedDocument> documents = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            ExportedDocument document = new ExportedDocument(((DocumentRecord) invocation.getArgument(0)).getUri());
+            documents.add(document);
+            firstDocumentRead.countDown();
+            closed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return document;
+        }).when(recordExtractor).extractRecord(any(DocumentRecord.class));
+        MarkLogicExportListener listener = newListener(0, 1);
+
+        Thread producer = process(listener, batch("/in-flight.json"));
+        assertTrue(firstDocumentRead.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        listener.close();
+        closed.countDown();
+
+        producer.join(TIMEOUT_MILLIS);
+        assertFalse(producer.isAlive());
+        assertNull(listener.pollPage(0, TimeUnit.MILLISECONDS));
+        assertTrue("The page of a batch finished after close should be discarded", documents.get(0).closed);
+    }
+
+    @Test
+    public void testMaxDocsThatIsNotAMultipleOfTheBatchSize() throws InterruptedException
+    {
+        MarkLogicExportListener listener = newListener(5, 4);
+
+        listener.processEvent(batch("/1.json", "/2.json", "/3.json"));
+        assertFalse(listener.isFinished());
+        verify(queryBatcher, never()).setMaxBatches();
+
+        listener.processEvent(batch("/4.json", "/5.json", "/6.json"));
+        assertTrue(listener.isFinished());
+        verify(queryBatcher).setMaxBatches();
+
+        listener.processEvent(batch("/7.json", "/8.json", "/9.json"));
+        assertEquals("A batch retrieved after maxDocs should be skipped without reading it", 2, batchesRead.get());
+        verify(queryBatcher, times(1)).setMaxBatches();
+
+        assertEquals(Arrays.asList("/1.json", "/2.json", "/3.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+        assertEquals(Arrays.asList("/4.json", "/5.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+        assertNull(listener.pollPage(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentBatchesNeverCollectMoreThanMaxDocs() throws InterruptedException
+    {
+        final int maxDocs = 25;
+        final int producerCount = 8;
+        MarkLogicExportListener listener = newListener(maxDocs, producerCount * 5);
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++)
+        {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int b = 0; b < 5; b++)
+                {
+                    String prefix = "/" + producer + "/" + b;
+                    listener.processEvent(batch(prefix + "/1.json", prefix + "/2.json", prefix + "/3.json"));
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread producer : producers)
+        {
+            producer.join(TIMEOUT_MILLIS);
+            assertFalse(producer.isAlive());
+        }
+
+        Set<String> received = new HashSet<>();
+        List<Object> page;
+        while ((page = listener.pollPage(0, TimeUnit.MILLISECONDS)) != null)
+        {
+            assertFalse("Empty pages should not be handed off", page.isEmpty());
+            received.addAll(uris(page));
+        }
+        assertEquals(maxDocs, received.size());
+        assertTrue(listener.isFinished());
+        verify(queryBatcher, times(1)).setMaxBatches();
+    }
+
+    @Test
+    public void testNotFinishedWhileTheLastBatchIsInFlight() throws InterruptedException
+    {
+        CountDownLatch lastDocumentReserved = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            String uri = ((DocumentRecord) invocation.getArgument(0)).getUri();
+            if ("/2.json".equals(uri))
+            {
+                lastDocumentReserved.countDown();
+                release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return new ExportedDocument(uri);
+        }).when(recordExtractor).extractRecord(any(DocumentRecord.class));
+        MarkLogicExportListener listener = newListener(2, 1);
+
+        Thread producer = process(listener, batch("/1.json", "/2.json", "/3.json"));
+        assertTrue(lastDocumentReserved.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse("The page holding the last documents has not been handed off yet", listener.isFinished());
+
+        release.countDown();
+        producer.join(TIMEOUT_MILLIS);
+        assertTrue(listener.isFinished());
+        assertEquals(Arrays.asList("/1.json", "/2.json"), uris(listener.pollPage(0, TimeUnit.MILLISECONDS)));
+    }
+
+    // A record whose content is a stream, so that discarding it can be observed
+    private static class ExportedDocument extends ByteArrayInputStream
+    {
+        private final String uri;
+
+        private volatile boolean closed;
+
+        private ExportedDocument(String uri)
+        {
+            super(new byte[0]);
+            this.uri = uri;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
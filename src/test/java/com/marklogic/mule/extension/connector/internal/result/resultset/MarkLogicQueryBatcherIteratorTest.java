@@ -0,0 +1,139 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.QueryBatcher;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MarkLogicQueryBatcherIteratorTest
+{
+    private DataMovementManager dmm;
+
+    private QueryBatcher batcher;
+
+    private MarkLogicExportListener exportListener;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        dmm = mock(DataMovementManager.class);
+        batcher = mock(QueryBatcher.class);
+        exportListener = mock(MarkLogicExportListener.class);
+        when(batcher.awaitCompletion(anyLong(), any(TimeUnit.class))).thenReturn(false);
+    }
+
+    @Test
+    public void testJobIsStartedWithTheFirstPage() throws InterruptedException
+    {
+        List<Object> page = Arrays.asList("a", "b");
+        when(exportListener.pollPage(anyLong(), any(TimeUnit.class))).thenReturn(page);
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+        verify(batcher).onUrisReady(exportListener);
+        verify(dmm, never()).startJob(batcher);
+
+        assertEquals(page, iterator.next());
+        assertEquals(page, iterator.next());
+        verify(dmm, times(1)).startJob(batcher);
+        assertTrue(iterator.hasNext());
+    }
+
+    @Test
+    public void testWaitsForAPageUntilTheJobCompletes() throws InterruptedException
+    {
+        List<Object> page = Collections.singletonList("a");
+        when(exportListener.pollPage(anyLong(), any(TimeUnit.class))).thenReturn(null, null, page, null, null);
+        when(batcher.awaitCompletion(anyLong(), any(TimeUnit.class))).thenReturn(false, true);
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+
+        assertEquals(page, iterator.next());
+        assertTrue(iterator.hasNext());
+
+        assertTrue("No page is left once the job has completed", iterator.next().isEmpty());
+        assertFalse(iterator.hasNext());
+        verify(exportListener).close();
+        verify(dmm).stopJob(batcher);
+    }
+
+    @Test
+    public void testPageQueuedAsTheJobCompletesIsStillReturned() throws InterruptedException
+    {
+        List<Object> page = Collections.singletonList("a");
+        when(exportListener.pollPage(anyLong(), any(TimeUnit.class))).thenReturn(null, page);
+        when(batcher.awaitCompletion(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+
+        assertEquals(page, iterator.next());
+        verify(dmm, never()).stopJob(batcher);
+    }
+
+    @Test
+    public void testCloseStopsTheJobOnce() throws InterruptedException
+    {
+        when(exportListener.pollPage(anyLong(), any(TimeUnit.class))).thenReturn(Collections.singletonList("a"));
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+        iterator.next();
+
+        iterator.close();
+        iterator.close();
+
+        assertFalse(iterator.hasNext());
+        verify(exportListener, times(1)).close();
+        verify(dmm, times(1)).stopJob(batcher);
+    }
+
+    @Test
+    public void testCloseBeforeTheFirstPageDoesNotTouchTheJob()
+    {
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+
+        iterator.close();
+
+        assertFalse(iterator.hasNext());
+        verify(dmm, never()).startJob(batcher);
+        verify(dmm, never()).stopJob(batcher);
+    }
+
+    @Test
+    public void testStopsOnceTheListenerHasCollectedMaxDocs() throws InterruptedException
+    {
+        List<Object> page = Collections.singletonList("a");
+        when(exportListener.pollPage(anyLong(), any(TimeUnit.class))).thenReturn(null, page, null, null);
+        when(exportListener.isFinished()).thenReturn(true);
+        MarkLogicQueryBatcherIterator iterator = new MarkLogicQueryBatcherIterator(dmm, batcher, exportListener);
+
+        assertEquals("A page handed off before maxDocs was reached is still returned", page, iterator.next());
+        assertTrue(iterator.next().isEmpty());
+        assertFalse(iterator.hasNext());
+        verify(batcher, never()).awaitCompletion(anyLong(), any(TimeUnit.class));
+        verify(dmm).stopJob(batcher);
+    }
+}
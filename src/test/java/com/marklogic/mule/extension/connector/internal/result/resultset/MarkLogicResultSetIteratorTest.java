@@ -0,0 +1,359 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.document.DocumentPage;
+import com.marklogic.client.document.DocumentRecord;
+import com.marklogic.client.document.GenericDocumentManager;
+import com.marklogic.client.io.SearchHandle;
+import com.marklogic.client.query.QueryDefinition;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.runtime.api.scheduler.Scheduler;
+import org.mule.runtime.api.scheduler.SchedulerService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MarkLogicResultSetIteratorTest
+{
+    private static final long PAGE_LENGTH = 10;
+
+    private final QueryDefinition query = mock(QueryDefinition.class);
+
+    // The start offset of every page requested from the server
+    private final List<Long> requestedStarts = Collections.synchronizedList(new ArrayList<>());
+
+    private DatabaseClient client;
+
+    private GenericDocumentManager documentManager;
+
+    private Scheduler scheduler;
+
+    private SchedulerService schedulerService;
+
+    private RecordExtractor recordExtractor;
+
+    private long documentCount;
+
+    @Before
+    public void setUp()
+    {
+        client = mock(DatabaseClient.class);
+        documentManager = mock(GenericDocumentManager.class);
+        when(client.newDocumentManager()).thenReturn(documentManager);
+        when(documentManager.getPageLength()).thenReturn(PAGE_LENGTH);
+        when(documentManager.search(any(QueryDefinition.class), anyLong())).thenAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            requestedStarts.add(start);
+            return documentPage(start);
+        });
+
+        // Runs every prefetch on the calling thread, so that pages are requested in a predictable order
+        scheduler = mock(Scheduler.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(scheduler).execute(any(Runnable.class));
+        schedulerService = mock(SchedulerService.class);
+        when(schedulerService.ioScheduler()).thenReturn(scheduler);
+
+        recordExtractor = mock(RecordExtractor.class);
+        when(recordExtractor.extractRecord(any(DocumentRecord.class)))
+            .thenAnswer(invocation -> ((DocumentRecord) invocation.getArgument(0)).getUri());
+    }
+
+    // A page as the server would return it for a query matching documentCount documents
+    private DocumentPage documentPage(long start)
+    {
+        List<String> uris = new ArrayList<>();
+        for (long position = start; position < start + PAGE_LENGTH && position <= documentCount; position++)
+        {
+            uris.add(uri(position));
+        }
+        Iterator<String> remaining = uris.iterator();
+        DocumentPage page = mock(DocumentPage.class);
+        when(page.hasNext()).thenAnswer(invocation -> remaining.hasNext());
+        when(page.next()).thenAnswer(invocation -> {
+            DocumentRecord record = mock(DocumentRecord.class);
+            when(record.getUri()).thenReturn(remaining.next());
+            return record;
+        });
+        when(page.hasNextPage()).thenReturn(start + PAGE_LENGTH <= documentCount);
+        return page;
+    }
+
+    private static String uri(long position)
+    {
+        return "/doc/" + position + ".json";
+    }
+
+    private static List<Object> uris(long first, long last)
+    {
+        List<Object> uris = new ArrayList<>();
+        for (long position = first; position <= last; position++)
+        {
+            uris.add(uri(position));
+        }
+        return uris;
+    }
+
+    private MarkLogicResultSetIterator newIterator(Long maxResults, int prefetchDepth, int parallelPageFetches)
+    {
+        return new MarkLogicResultSetIterator(client, schedulerService, query, (int) PAGE_LENGTH, maxResults,
+            prefetchDepth, parallelPageFetches, false, recordExtractor);
+    }
+
+    @Test
+    public void testPagesAreFetchedOneAtATimeWithoutPrefetching()
+    {
+        documentCount = 25;
+        MarkLogicResultSetIterator iterator = newIterator(null, 0, 1);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals(Collections.singletonList(1L), requestedStarts);
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 25), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.next().isEmpty());
+        assertEquals(Arrays.asList(1L, 11L, 21L), requestedStarts);
+    }
+
+    @Test
+    public void testPrefetchedPagesAreReturnedInOrder()
+    {
+        documentCount = 35;
+        MarkLogicResultSetIterator iterator = newIterator(null, 2, 1);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals("The next two pages should be requested ahead", Arrays.asList(1L, 11L, 21L), requestedStarts);
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 30), iterator.next());
+        assertEquals(uris(31, 35), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.next().isEmpty());
+        assertEquals("A page past the last one should not be requested", Arrays.asList(1L, 11L, 21L, 31L), requestedStarts);
+
+        iterator.close();
+        verify(scheduler).stop();
+    }
+
+    @Test
+    public void testPrefetchingStopsAtMaxResults()
+    {
+        documentCount = 100;
+        MarkLogicResultSetIterator iterator = newIterator(25L, 2, 1);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 25), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertTrue("A page asked for after maxResults should be empty", iterator.next().isEmpty());
+        assertTrue(iterator.next().isEmpty());
+        assertEquals(Arrays.asList(1L, 11L, 21L), requestedStarts);
+    }
+
+    @Test
+    public void testMaxResultsOnAPageBoundaryWithoutPrefetching()
+    {
+        documentCount = 100;
+        MarkLogicResultSetIterator iterator = newIterator(20L, 0, 1);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals(uris(11, 20), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.next().isEmpty());
+        assertEquals(Arrays.asList(1L, 11L), requestedStarts);
+    }
+
+    @Test
+    public void testPrefetchFailureIsThrownWhenItsPageIsReached()
+    {
+        documentCount = 100;
+        IllegalStateException failure = new IllegalStateException("Search failed");
+        doAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            if (start == 11)
+            {
+                throw failure;
+            }
+            return documentPage(start);
+        }).when(documentManager).search(any(QueryDefinition.class), anyLong());
+        MarkLogicResultSetIterator iterator = newIterator(null, 1, 1);
+
+        assertEquals(uris(1, 10), iterator.next());
+        try
+        {
+            iterator.next();
+            fail("Expected the failure of the prefetched page to be thrown");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals(failure, ex);
+        }
+    }
+
+    @Test
+    public void testParallelFetchesAreBoundedAndReturnedInOrder()
+    {
+        documentCount = 55;
+        MarkLogicResultSetIterator iterator = newIterator(null, 0, 3);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals("Three pages should be in flight at once", Arrays.asList(1L, 11L, 21L, 31L), requestedStarts);
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 30), iterator.next());
+        assertEquals(uris(31, 40), iterator.next());
+        assertEquals(uris(41, 50), iterator.next());
+        assertEquals(uris(51, 55), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.next().isEmpty());
+        // Pages are requested past the last one until the last one is received, but never more than two of them
+        assertEquals(Arrays.asList(1L, 11L, 21L, 31L, 41L, 51L, 61L, 71L), requestedStarts);
+    }
+
+    @Test
+    public void testPagesFetchedOnSeveralThreadsAreReturnedInOrder() throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            doAnswer(invocation -> {
+                executor.execute(invocation.getArgument(0));
+                return null;
+            }).when(scheduler).execute(any(Runnable.class));
+            documentCount = 95;
+            MarkLogicResultSetIterator iterator = newIterator(null, 2, 3);
+
+            List<Object> records = new ArrayList<>();
+            List<Object> page;
+            while (!(page = iterator.next()).isEmpty())
+            {
+                records.addAll(page);
+            }
+
+            assertEquals(uris(1, 95), records);
+            iterator.close();
+        }
+        finally
+        {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private MarkLogicResultSetIterator newSnapshotIterator(int prefetchDepth, long serverTimestamp, List<Long> pointsInTime)
+    {
+        doAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            requestedStarts.add(start);
+            pointsInTime.add(((RecordingSearchHandle) invocation.getArgument(2)).pointInTime);
+            return documentPage(start);
+        }).when(documentManager).search(any(QueryDefinition.class), anyLong(), any(SearchHandle.class));
+        return new MarkLogicResultSetIterator(client, schedulerService, query, (int) PAGE_LENGTH, null, prefetchDepth, 1,
+            true, recordExtractor)
+        {
+            @Override
+            SearchHandle newSearchHandle()
+            {
+                return new RecordingSearchHandle(serverTimestamp);
+            }
+        };
+    }
+
+    @Test
+    public void testLaterPagesAreReadAtTheTimestampOfTheFirst()
+    {
+        documentCount = 25;
+        List<Long> pointsInTime = Collections.synchronizedList(new ArrayList<>());
+        MarkLogicResultSetIterator iterator = newSnapshotIterator(0, 42, pointsInTime);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 25), iterator.next());
+        assertTrue(iterator.next().isEmpty());
+        assertEquals(Arrays.asList(-1L, 42L, 42L), pointsInTime);
+    }
+
+    @Test
+    public void testFirstPageOfASnapshotIsNotPrefetched()
+    {
+        documentCount = 35;
+        List<Long> pointsInTime = Collections.synchronizedList(new ArrayList<>());
+        MarkLogicResultSetIterator iterator = newSnapshotIterator(2, 42, pointsInTime);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals("Pages should only be prefetched once the timestamp is known", Arrays.asList(1L, 11L, 21L), requestedStarts);
+        assertEquals(Arrays.asList(-1L, 42L, 42L), pointsInTime);
+        assertEquals(uris(11, 20), iterator.next());
+        assertEquals(uris(21, 30), iterator.next());
+        assertEquals(uris(31, 35), iterator.next());
+        assertEquals(Arrays.asList(-1L, 42L, 42L, 42L), pointsInTime);
+    }
+
+    @Test
+    public void testPagesAreStillReturnedWhenNoTimestampIsReturned()
+    {
+        documentCount = 15;
+        List<Long> pointsInTime = Collections.synchronizedList(new ArrayList<>());
+        MarkLogicResultSetIterator iterator = newSnapshotIterator(0, -1, pointsInTime);
+
+        assertEquals(uris(1, 10), iterator.next());
+        assertEquals(uris(11, 15), iterator.next());
+        assertEquals(Arrays.asList(-1L, -1L), pointsInTime);
+    }
+
+    // Reports a server timestamp as the client would after a search, and records the point in time it was asked for
+    private static class RecordingSearchHandle extends SearchHandle
+    {
+        private final long serverTimestamp;
+
+        private long pointInTime = -1;
+
+        private RecordingSearchHandle(long serverTimestamp)
+        {
+            this.serverTimestamp = serverTimestamp;
+        }
+
+        @Override
+        public long getServerTimestamp()
+        {
+            return serverTimestamp;
+        }
+
+        @Override
+        public void setPointInTimeQueryTimestamp(long pointInTime)
+        {
+            this.pointInTime = pointInTime;
+        }
+    }
+}
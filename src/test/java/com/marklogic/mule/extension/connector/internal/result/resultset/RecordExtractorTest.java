@@ -0,0 +1,224 @@
+/**
+ * MarkLogic Mule Connector
+ *
+ * Copyright © 2023 MarkLogic Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ * This project and its code and functionality is not representative of MarkLogic Server and is not supported by MarkLogic.
+ */
+package com.marklogic.mule.extension.connector.internal.result.resultset;
+
+import com.marklogic.client.document.DocumentDescriptor;
+import com.marklogic.client.document.DocumentRecord;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.Format;
+import com.marklogic.client.io.InputStreamHandle;
+import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.AbstractReadHandle;
+import com.marklogic.client.io.marker.DocumentMetadataReadHandle;
+import com.marklogic.mule.extension.connector.api.operation.MarkLogicOutputMode;
+import org.junit.Test;
+import org.mule.runtime.extension.api.runtime.operation.Result;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordExtractorTest
+{
+    private static final int THRESHOLD = 100;
+
+    private static byte[] content(int length)
+    {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) 'a');
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64];
+        int read;
+        while ((read = in.read(chunk)) != -1)
+        {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDocumentWithinThresholdIsKeptInMemory()
+    {
+        RecordExtractor extractor = new RecordExtractor(MarkLogicOutputMode.STRUCTURED, THRESHOLD, null);
+
+        assertEquals(new String(content(THRESHOLD), StandardCharsets.UTF_8),
+            extractor.extractRecord(new ContentRecord(content(THRESHOLD), "text/plain")));
+        assertArrayEquals(content(10), (byte[]) extractor.extractRecord(new ContentRecord(content(10), null)));
+    }
+
+    @Test
+    public void testDocumentOverThresholdIsSpooled() throws IOException
+    {
+        RecordExtractor extractor = new RecordExtractor(MarkLogicOutputMode.STRUCTURED, THRESHOLD, null);
+
+        Object record = extractor.extractRecord(new ContentRecord(content(THRESHOLD * 50 + 1), "application/xml"));
+
+        assertTrue("A spooled document is returned as a plain stream", record instanceof SpooledDocumentInputStream);
+        SpooledDocumentInputStream spooled = (SpooledDocumentInputStream) record;
+        Path file = spooled.getFile();
+        assertTrue(Files.exists(file));
+        assertArrayEquals(content(THRESHOLD * 50 + 1), readAll(spooled));
+        spooled.close();
+        assertFalse("The temporary file is deleted once the stream is closed", Files.exists(file));
+    }
+
+    @Test
+    public void testRawDocumentOverThresholdIsSpooled() throws IOException
+    {
+        RecordExtractor extractor = new RecordExtractor(MarkLogicOutputMode.RAW, THRESHOLD, null);
+
+        Object record = extractor.extractRecord(new ContentRecord(content(THRESHOLD + 1), "application/json"));
+
+        Result<?, ?> result = (Result<?, ?>) record;
+        assertEquals("application/json", result.getMediaType().get().toRfcString().split(";")[0]);
+        SpooledDocumentInputStream spooled = (SpooledDocumentInputStream) result.getOutput();
+        assertArrayEquals(content(THRESHOLD + 1), readAll(spooled));
+        spooled.close();
+        assertFalse(Files.exists(spooled.getFile()));
+    }
+
+    @Test
+    public void testThresholdOfZeroNeverSpools()
+    {
+        RecordExtractor extractor = new RecordExtractor(MarkLogicOutputMode.STRUCTURED, 0, null);
+
+        assertArrayEquals(content(THRESHOLD * 50), (byte[]) extractor.extractRecord(new ContentRecord(content(THRESHOLD * 50), null)));
+    }
+
+    @Test
+    public void testDiscardDeletesSpooledFiles()
+    {
+        RecordExtractor extractor = new RecordExtractor(MarkLogicOutputMode.RAW, THRESHOLD, null);
+        List<Object> page = new ArrayList<>();
+        page.add(extractor.extractRecord(new ContentRecord(content(THRESHOLD + 1), null)));
+        page.add(extractor.extractRecord(new ContentRecord(content(10), null)));
+        Path file = ((SpooledDocumentInputStream) ((Result<?, ?>) page.get(0)).getOutput()).getFile();
+        assertTrue(Files.exists(file));
+
+        RecordExtractor.discard(page);
+
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testSpooledStreamCanBeClosedTwice() throws IOException
+    {
+        Path file = Files.createTempFile("marklogic-document-", ".tmp");
+        Files.write(file, content(10));
+        SpooledDocumentInputStream spooled = new SpooledDocumentInputStream(file);
+
+        spooled.close();
+        spooled.close();
+
+        assertFalse(Files.exists(file));
+    }
+
+    /**
+     * Fills whichever handle the extractor asks for with the same content, as a document read from MarkLogic would.
+     */
+    private static class ContentRecord implements DocumentRecord
+    {
+        private final byte[] content;
+        private final String mimetype;
+
+        ContentRecord(byte[] content, String mimetype)
+        {
+            this.content = content;
+            this.mimetype = mimetype;
+        }
+
+        @Override
+        public String getUri()
+        {
+            return "/test";
+        }
+
+        @Override
+        public DocumentDescriptor getDescriptor()
+        {
+            return null;
+        }
+
+        @Override
+        public Format getFormat()
+        {
+            return null;
+        }
+
+        @Override
+        public String getMimetype()
+        {
+            return mimetype;
+        }
+
+        @Override
+        public long getLength()
+        {
+            return content.length;
+        }
+
+        @Override
+        public <T extends DocumentMetadataReadHandle> T getMetadata(T handle)
+        {
+            return null;
+        }
+
+        @Override
+        public <T> T getMetadataAs(Class<T> type)
+        {
+            return null;
+        }
+
+        @Override
+        public <T extends AbstractReadHandle> T getContent(T handle)
+        {
+            if (handle instanceof InputStreamHandle)
+            {
+                ((InputStreamHandle) handle).set(new ByteArrayInputStream(content));
+            }
+            else if (handle instanceof BytesHandle)
+            {
+                ((BytesHandle) handle).set(content);
+            }
+            else if (handle instanceof StringHandle)
+            {
+                ((StringHandle) handle).set(new String(content, StandardCharsets.UTF_8));
+            }
+            return handle;
+        }
+
+        @Override
+        public <T> T getContentAs(Class<T> type)
+        {
+            return null;
+        }
+    }
+}